@@ -0,0 +1,110 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import io.github.nscuro.datanucleus.cache.caffeine.benchmark.CacheFixtures;
+import org.datanucleus.PersistenceNucleusContextImpl;
+import org.datanucleus.cache.CachedPC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link BinaryCachedPCCodec} with {@link JavaSerializationCodec}, i.e. {@code ObjectOutputStream}.
+ * <p>
+ * This benchmark lives in the plugin's package because the codecs are package-private.
+ * The fixture classes have no DataNucleus metadata, so every field value is tagged,
+ * which makes the results conservative for the binary codec. Run with {@code -prof gc}
+ * to compare allocation rates; the encoded size of each codec is printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class CachedPCCodecBenchmark {
+
+    private static final int OBJECT_COUNT = 1024;
+
+    @Param({"binary", "java"})
+    public String codecName;
+
+    private PersistenceNucleusContextImpl nucleusCtx;
+    private CachedPCCodec codec;
+    private CachedPC<?>[] pcs;
+    private byte[][] encodedPCs;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        nucleusCtx = CacheFixtures.newNucleusContext(OBJECT_COUNT, Map.of());
+        codec = switch (codecName) {
+            case "binary" -> new BinaryCachedPCCodec(nucleusCtx);
+            case "java" -> new JavaSerializationCodec(nucleusCtx.getClassLoaderResolver(null));
+            default -> throw new IllegalArgumentException("Unknown codec " + codecName);
+        };
+        pcs = CacheFixtures.newCachedPCs(CacheFixtures.newOids(OBJECT_COUNT));
+
+        long totalSize = 0;
+        encodedPCs = new byte[pcs.length][];
+        for (int i = 0; i < pcs.length; i++) {
+            encodedPCs[i] = codec.encode(pcs[i]);
+            totalSize += encodedPCs[i].length;
+        }
+        System.out.printf("%nAverage encoded size of %s codec: %d bytes%n", codecName, totalSize / pcs.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        nucleusCtx.close();
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode(pcs[nextIndex()]);
+    }
+
+    @Benchmark
+    public CachedPC<?> decode() throws IOException {
+        return codec.decode(encodedPCs[nextIndex()]);
+    }
+
+    private int nextIndex() {
+        index = (index + 1) & (OBJECT_COUNT - 1);
+        return index;
+    }
+
+}
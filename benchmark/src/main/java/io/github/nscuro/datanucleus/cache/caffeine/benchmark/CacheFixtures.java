@@ -0,0 +1,109 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine.benchmark;
+
+import io.github.nscuro.datanucleus.cache.caffeine.CaffeineLevel2Cache;
+import org.datanucleus.PersistenceNucleusContextImpl;
+import org.datanucleus.cache.CachedPC;
+import org.datanucleus.identity.LongId;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L2_MAXSIZE;
+import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L2_TYPE;
+
+/**
+ * Builds caches, identities, and {@link CachedPC}s resembling those of a typical JDO application.
+ */
+public final class CacheFixtures {
+
+    static final Class<?>[] CLASSES = {Customer.class, Product.class, PurchaseOrder.class, Invoice.class};
+
+    private static final int FIELD_COUNT = 10;
+
+    private CacheFixtures() {
+    }
+
+    public static PersistenceNucleusContextImpl newNucleusContext(final int maxSize, final Map<String, Object> properties) {
+        final var config = new HashMap<String, Object>();
+        config.put(PROPERTY_CACHE_L2_TYPE, "caffeine");
+        config.put(PROPERTY_CACHE_L2_MAXSIZE, String.valueOf(maxSize));
+        config.putAll(properties);
+
+        return new PersistenceNucleusContextImpl("JDO", config);
+    }
+
+    static CaffeineLevel2Cache newCache(final PersistenceNucleusContextImpl nucleusCtx) {
+        return new CaffeineLevel2Cache(nucleusCtx);
+    }
+
+    public static Object[] newOids(final int count) {
+        final var oids = new Object[count];
+        for (int i = 0; i < count; i++) {
+            oids[i] = new LongId(CLASSES[i % CLASSES.length], i);
+        }
+        return oids;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static CachedPC<?>[] newCachedPCs(final Object[] oids) {
+        final var pcs = new CachedPC<?>[oids.length];
+        for (int i = 0; i < oids.length; i++) {
+            final Class objectClass = CLASSES[i % CLASSES.length];
+
+            final var loadedFields = new boolean[FIELD_COUNT];
+            final var pc = new CachedPC(objectClass, loadedFields, (long) i, oids[i]);
+            pc.setFieldValue(0, (long) i);
+            pc.setFieldValue(1, "name-" + i);
+            pc.setFieldValue(2, "name-" + i + "@example.com");
+            pc.setFieldValue(3, new Date(1_700_000_000_000L + i));
+            pc.setFieldValue(4, BigDecimal.valueOf(i, 2));
+            pc.setFieldValue(5, i % 7);
+            pc.setFieldValue(6, new CachedPC.CachedId(Customer.class.getName(), new LongId(Customer.class, i / 10)));
+            pc.setFieldValue(7, List.of(
+                    new CachedPC.CachedId(Product.class.getName(), new LongId(Product.class, i + 1)),
+                    new CachedPC.CachedId(Product.class.getName(), new LongId(Product.class, i + 2))));
+            for (int fieldNumber = 0; fieldNumber < 8; fieldNumber++) {
+                pc.setLoadedField(fieldNumber, true);
+            }
+
+            pcs[i] = pc;
+        }
+        return pcs;
+    }
+
+    // The cache only needs the classes of cached objects, which don't have to be persistable.
+
+    static final class Customer {
+    }
+
+    static final class Product {
+    }
+
+    static final class PurchaseOrder {
+    }
+
+    static final class Invoice {
+    }
+
+}
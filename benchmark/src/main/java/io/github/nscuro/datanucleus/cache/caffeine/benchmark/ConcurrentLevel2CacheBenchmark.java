@@ -0,0 +1,29 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine.benchmark;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Runs the {@link Level2CacheBenchmark} with multiple threads, to measure contention.
+ * Other thread counts can be benchmarked via JMH's {@code -t} option.
+ */
+@Threads(8)
+public class ConcurrentLevel2CacheBenchmark extends Level2CacheBenchmark {
+}
@@ -0,0 +1,229 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine.benchmark;
+
+import io.github.nscuro.datanucleus.cache.caffeine.benchmark.model.Customer;
+import io.github.nscuro.datanucleus.cache.caffeine.benchmark.model.Product;
+import io.github.nscuro.datanucleus.cache.caffeine.benchmark.model.PurchaseOrder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Map.entry;
+import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L2_TYPE;
+import static org.datanucleus.PropertyNames.PROPERTY_CONNECTION_DRIVER_NAME;
+import static org.datanucleus.PropertyNames.PROPERTY_CONNECTION_PASSWORD;
+import static org.datanucleus.PropertyNames.PROPERTY_CONNECTION_URL;
+import static org.datanucleus.PropertyNames.PROPERTY_CONNECTION_USER_NAME;
+import static org.datanucleus.PropertyNames.PROPERTY_PERSISTENCE_UNIT_NAME;
+import static org.datanucleus.PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_ALL;
+
+/**
+ * Benchmarks the throughput and latency of typical JDO operations against an in-memory H2 database,
+ * without a level 2 cache ({@code none}), with DataNucleus' built-in caches, and with {@code caffeine}.
+ * <p>
+ * Throughput is reported in operations per millisecond, and latency percentiles (including p99)
+ * in milliseconds. Orders are accessed following a Zipfian distribution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class JdoWorkloadBenchmark {
+
+    private static final int CUSTOMER_COUNT = 1_000;
+    private static final int PRODUCT_COUNT = 1_000;
+    private static final int ORDER_COUNT = 20_000;
+    private static final int BATCH_SIZE = 1_000;
+
+    @Param({"none", "soft", "weak", "caffeine"})
+    public String cacheType;
+
+    private PersistenceManagerFactory pmf;
+    private long[] customerIds;
+    private long[] orderIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pmf = JDOHelper.getPersistenceManagerFactory(Map.ofEntries(
+                entry(PROPERTY_PERSISTENCE_UNIT_NAME, "benchmark"),
+                entry(PROPERTY_CONNECTION_URL, "jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1".formatted(UUID.randomUUID())),
+                entry(PROPERTY_CONNECTION_DRIVER_NAME, "org.h2.Driver"),
+                entry(PROPERTY_CONNECTION_USER_NAME, "sa"),
+                entry(PROPERTY_CONNECTION_PASSWORD, ""),
+                entry(PROPERTY_SCHEMA_AUTOCREATE_ALL, "true"),
+                entry(PROPERTY_CACHE_L2_TYPE, cacheType)), "benchmark");
+
+        customerIds = new long[CUSTOMER_COUNT];
+        final var products = new long[PRODUCT_COUNT];
+        orderIds = new long[ORDER_COUNT];
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            pm.currentTransaction().begin();
+            final var customers = new ArrayList<Customer>(CUSTOMER_COUNT);
+            for (int i = 0; i < CUSTOMER_COUNT; i++) {
+                final var customer = new Customer();
+                customer.setName("customer-" + i);
+                customer.setEmail("customer-" + i + "@example.com");
+                customers.add(pm.makePersistent(customer));
+            }
+            final var productList = new ArrayList<Product>(PRODUCT_COUNT);
+            for (int i = 0; i < PRODUCT_COUNT; i++) {
+                final var product = new Product();
+                product.setName("product-" + i);
+                product.setPrice(BigDecimal.valueOf(100 + i, 2));
+                productList.add(pm.makePersistent(product));
+            }
+            pm.currentTransaction().commit();
+
+            for (int i = 0; i < CUSTOMER_COUNT; i++) {
+                customerIds[i] = customers.get(i).getId();
+            }
+            for (int i = 0; i < PRODUCT_COUNT; i++) {
+                products[i] = productList.get(i).getId();
+            }
+        }
+
+        for (int batchStart = 0; batchStart < ORDER_COUNT; batchStart += BATCH_SIZE) {
+            try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+                pm.currentTransaction().begin();
+                final var orders = new ArrayList<PurchaseOrder>(BATCH_SIZE);
+                for (int i = batchStart; i < batchStart + BATCH_SIZE; i++) {
+                    final var order = new PurchaseOrder();
+                    order.setCustomer(pm.getObjectById(Customer.class, customerIds[i % CUSTOMER_COUNT]));
+                    order.setProduct(pm.getObjectById(Product.class, products[(i * 31) % PRODUCT_COUNT]));
+                    order.setQuantity(1 + i % 10);
+                    order.setStatus("NEW");
+                    order.setCreatedAt(new Date());
+                    orders.add(pm.makePersistent(order));
+                }
+                pm.currentTransaction().commit();
+
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    orderIds[batchStart + i] = orders.get(i).getId();
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pmf.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+
+        // Power of two, so that positions can wrap around via masking.
+        private static final int SAMPLE_SIZE = 1 << 16;
+
+        private int[] orderIndexes;
+        private int[] customerIndexes;
+        private int position;
+
+        @Setup(Level.Trial)
+        public void setUp(final ThreadParams threadParams) {
+            orderIndexes = KeyDistribution.ZIPFIAN.sample(SAMPLE_SIZE, ORDER_COUNT, threadParams.getThreadIndex());
+            customerIndexes = KeyDistribution.ZIPFIAN.sample(SAMPLE_SIZE, CUSTOMER_COUNT, threadParams.getThreadIndex());
+        }
+
+        int nextOrder() {
+            final int index = orderIndexes[position];
+            position = (position + 1) & (SAMPLE_SIZE - 1);
+            return index;
+        }
+
+        int nextCustomer() {
+            final int index = customerIndexes[position];
+            position = (position + 1) & (SAMPLE_SIZE - 1);
+            return index;
+        }
+
+    }
+
+    /**
+     * Loads an order by id, and navigates to its customer and product.
+     */
+    @Benchmark
+    public String getObjectById(final Keys keys) {
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final PurchaseOrder order = pm.getObjectById(PurchaseOrder.class, orderIds[keys.nextOrder()]);
+            return order.getCustomer().getName() + order.getProduct().getName();
+        }
+    }
+
+    /**
+     * Queries the orders of a customer, and navigates to their products.
+     */
+    @Benchmark
+    public int query(final Keys keys) {
+        try (final PersistenceManager pm = pmf.getPersistenceManager();
+             final Query<PurchaseOrder> query = pm.newQuery(PurchaseOrder.class, "customer.id == :customerId")) {
+            final List<PurchaseOrder> orders = query.setParameters(customerIds[keys.nextCustomer()]).executeList();
+
+            int nameLengths = 0;
+            for (final PurchaseOrder order : orders) {
+                nameLengths += order.getProduct().getName().length();
+            }
+            return nameLengths;
+        }
+    }
+
+    /**
+     * Loads an order by id and updates it in a transaction.
+     */
+    @Benchmark
+    public void update(final Keys keys) {
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            pm.currentTransaction().begin();
+            final PurchaseOrder order = pm.getObjectById(PurchaseOrder.class, orderIds[keys.nextOrder()]);
+            order.setQuantity(order.getQuantity() + 1);
+            order.setStatus("UPDATED");
+            pm.currentTransaction().commit();
+        }
+    }
+
+}
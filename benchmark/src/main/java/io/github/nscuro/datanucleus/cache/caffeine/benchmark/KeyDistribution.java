@@ -0,0 +1,106 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine.benchmark;
+
+import java.util.SplittableRandom;
+
+/**
+ * Distributions of the keys accessed by a benchmark.
+ */
+public enum KeyDistribution {
+
+    /**
+     * All keys are equally likely to be accessed.
+     */
+    UNIFORM {
+        @Override
+        int[] sample(final int length, final int population, final long seed) {
+            final var random = new SplittableRandom(seed);
+            final var indexes = new int[length];
+            for (int i = 0; i < length; i++) {
+                indexes[i] = random.nextInt(population);
+            }
+            return indexes;
+        }
+    },
+
+    /**
+     * A few keys are accessed very frequently, following a Zipfian distribution
+     * with a skew of {@value #ZIPFIAN_THETA}. This approximates typical OLTP workloads.
+     */
+    ZIPFIAN {
+        @Override
+        int[] sample(final int length, final int population, final long seed) {
+            // Algorithm from Gray et al., "Quickly Generating Billion-Record Synthetic Databases".
+            final double alpha = 1.0 / (1.0 - ZIPFIAN_THETA);
+            final double zetaN = zeta(population);
+            final double eta = (1.0 - Math.pow(2.0 / population, 1.0 - ZIPFIAN_THETA)) / (1.0 - zeta(2) / zetaN);
+
+            final var random = new SplittableRandom(seed);
+            final var indexes = new int[length];
+            for (int i = 0; i < length; i++) {
+                final double u = random.nextDouble();
+                final double uz = u * zetaN;
+                if (uz < 1.0) {
+                    indexes[i] = 0;
+                } else if (uz < 1.0 + Math.pow(0.5, ZIPFIAN_THETA)) {
+                    indexes[i] = 1;
+                } else {
+                    indexes[i] = Math.min(population - 1, (int) (population * Math.pow(eta * u - eta + 1.0, alpha)));
+                }
+            }
+            return indexes;
+        }
+
+        private static double zeta(final int n) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1.0 / Math.pow(i, ZIPFIAN_THETA);
+            }
+            return sum;
+        }
+    },
+
+    /**
+     * Keys are accessed sequentially, starting at a random offset. Since benchmarks use a
+     * population larger than the cache, this is the worst case for recency-based policies.
+     */
+    SCAN {
+        @Override
+        int[] sample(final int length, final int population, final long seed) {
+            final int offset = new SplittableRandom(seed).nextInt(population);
+            final var indexes = new int[length];
+            for (int i = 0; i < length; i++) {
+                indexes[i] = (offset + i) % population;
+            }
+            return indexes;
+        }
+    };
+
+    private static final double ZIPFIAN_THETA = 0.99;
+
+    /**
+     * @param length     Number of indexes to generate
+     * @param population Number of distinct keys
+     * @param seed       Seed of the random number generator
+     * @return Indexes of keys in the range {@code [0, population)}
+     */
+    abstract int[] sample(int length, int population, long seed);
+
+}
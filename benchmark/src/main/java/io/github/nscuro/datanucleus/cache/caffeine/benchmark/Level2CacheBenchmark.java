@@ -0,0 +1,149 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine.benchmark;
+
+import io.github.nscuro.datanucleus.cache.caffeine.CaffeineLevel2Cache;
+import org.datanucleus.PersistenceNucleusContextImpl;
+import org.datanucleus.cache.CachedPC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per-object operations of {@link CaffeineLevel2Cache} on a single thread.
+ * <p>
+ * The key population is twice the size of the cache, so depending on the
+ * {@link KeyDistribution}, a portion of lookups miss and puts cause evictions.
+ *
+ * @see ConcurrentLevel2CacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class Level2CacheBenchmark {
+
+    @Param({"10000", "100000"})
+    public int cacheSize;
+
+    @Param({"UNIFORM", "ZIPFIAN", "SCAN"})
+    public KeyDistribution distribution;
+
+    private PersistenceNucleusContextImpl nucleusCtx;
+    private CaffeineLevel2Cache cache;
+    private Object[] oids;
+    private CachedPC<?>[] pcs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        nucleusCtx = CacheFixtures.newNucleusContext(cacheSize, Map.of());
+        cache = CacheFixtures.newCache(nucleusCtx);
+        oids = CacheFixtures.newOids(populationSize(cacheSize));
+        pcs = CacheFixtures.newCachedPCs(oids);
+
+        for (int i = 0; i < oids.length; i++) {
+            cache.put(oids[i], pcs[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+        nucleusCtx.close();
+    }
+
+    static int populationSize(final int cacheSize) {
+        return 2 * cacheSize;
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+
+        // Power of two, so that positions can wrap around via masking.
+        private static final int SAMPLE_SIZE = 1 << 20;
+
+        private int[] indexes;
+        private int position;
+
+        @Setup(Level.Trial)
+        public void setUp(final BenchmarkParams benchmarkParams, final ThreadParams threadParams) {
+            final var distribution = KeyDistribution.valueOf(benchmarkParams.getParam("distribution"));
+            final int cacheSize = Integer.parseInt(benchmarkParams.getParam("cacheSize"));
+            indexes = distribution.sample(SAMPLE_SIZE, populationSize(cacheSize), threadParams.getThreadIndex());
+        }
+
+        int next() {
+            final int index = indexes[position];
+            position = (position + 1) & (SAMPLE_SIZE - 1);
+            return index;
+        }
+
+    }
+
+    @Benchmark
+    public CachedPC get(final Keys keys) {
+        return cache.get(oids[keys.next()]);
+    }
+
+    @Benchmark
+    public CachedPC put(final Keys keys) {
+        final int index = keys.next();
+        return cache.put(oids[index], pcs[index]);
+    }
+
+    @Benchmark
+    public boolean containsOid(final Keys keys) {
+        return cache.containsOid(oids[keys.next()]);
+    }
+
+    /**
+     * Evicts an object and puts it back, so that the cache doesn't drain over the course of an iteration.
+     */
+    @Benchmark
+    public CachedPC evict(final Keys keys) {
+        final int index = keys.next();
+        cache.evict(oids[index]);
+        return cache.put(oids[index], pcs[index]);
+    }
+
+    @Benchmark
+    public int getSize() {
+        return cache.getSize();
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine.benchmark;
+
+import io.github.nscuro.datanucleus.cache.caffeine.CaffeineLevel2Cache;
+import org.datanucleus.PersistenceNucleusContextImpl;
+import org.datanucleus.cache.CachedPC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_CLASS_EVICTION_MODE;
+
+/**
+ * Benchmarks {@link CaffeineLevel2Cache#evictAll(Class, boolean)} for each class eviction mode.
+ * <p>
+ * The cache holds objects of four classes in equal parts, and one of them is evicted per invocation.
+ * Evicted objects are put back before each invocation, which is not included in the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Level2CacheEvictAllBenchmark {
+
+    @Param({"10000", "100000"})
+    public int cacheSize;
+
+    @Param({"scan", "index", "epoch"})
+    public String classEvictionMode;
+
+    private PersistenceNucleusContextImpl nucleusCtx;
+    private CaffeineLevel2Cache cache;
+    private Object[] oids;
+    private CachedPC<?>[] pcs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        nucleusCtx = CacheFixtures.newNucleusContext(cacheSize,
+                Map.of(PROPERTY_CACHE_L2_CAFFEINE_CLASS_EVICTION_MODE, classEvictionMode));
+        cache = CacheFixtures.newCache(nucleusCtx);
+        oids = CacheFixtures.newOids(cacheSize);
+        pcs = CacheFixtures.newCachedPCs(oids);
+
+        for (int i = 0; i < oids.length; i++) {
+            cache.put(oids[i], pcs[i]);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void refill() {
+        for (int i = 0; i < oids.length; i += CacheFixtures.CLASSES.length) {
+            cache.put(oids[i], pcs[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+        nucleusCtx.close();
+    }
+
+    @Benchmark
+    public void evictAllByClass() {
+        cache.evictAll(CacheFixtures.Customer.class, false);
+    }
+
+}
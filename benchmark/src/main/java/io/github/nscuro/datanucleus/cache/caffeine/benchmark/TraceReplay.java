@@ -0,0 +1,309 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine.benchmark;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.github.nscuro.datanucleus.cache.caffeine.AccessTrace;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays an {@link AccessTrace} recorded by the level 2 cache through several eviction policies,
+ * maximum sizes and expiry settings, and reports the hit rate each of them would have achieved.
+ * <p>
+ * Caffeine's own simulator isn't published to Maven Central. For policies beyond those replayed here,
+ * the trace's lookups can be exported in the LIRS format, which the simulator reads as {@code lirs}.
+ * <pre>
+ * java -cp target/benchmarks.jar io.github.nscuro.datanucleus.cache.caffeine.benchmark.TraceReplay \
+ *     /var/log/app/l2-trace.bin --sizes=1000,10000,100000 --expire-after-access=5m,1h
+ * </pre>
+ * All rotated files of the trace are replayed, oldest first. Evictions of entire classes can't be
+ * replayed, since the trace does not record the class of each object, and are therefore ignored.
+ */
+public final class TraceReplay {
+
+    private static final AccessTrace.Operation[] OPERATIONS = AccessTrace.Operation.values();
+
+    private byte[] operations = new byte[1 << 16];
+    private long[] keyHashes = new long[1 << 16];
+    private long[] timestamps = new long[1 << 16];
+    private int length;
+
+    private TraceReplay() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: TraceReplay <trace-file> [--sizes=<n>,...] [--expire-after-access=<duration>,...]"
+                               + " [--expire-after-write=<duration>,...] [--export-lirs=<file>]");
+            System.exit(1);
+        }
+
+        final Path traceFile = Path.of(args[0]);
+        long[] sizes = null;
+        final var expiries = new ArrayList<Expiry>();
+        expiries.add(new Expiry(ExpiryMode.NONE, null));
+        Path lirsFile = null;
+        for (final String arg : Arrays.copyOfRange(args, 1, args.length)) {
+            if (arg.startsWith("--sizes=")) {
+                sizes = Arrays.stream(getValues(arg)).mapToLong(Long::parseLong).toArray();
+            } else if (arg.startsWith("--expire-after-access=")) {
+                Arrays.stream(getValues(arg)).map(value -> new Expiry(ExpiryMode.AFTER_ACCESS, parseDuration(value))).forEach(expiries::add);
+            } else if (arg.startsWith("--expire-after-write=")) {
+                Arrays.stream(getValues(arg)).map(value -> new Expiry(ExpiryMode.AFTER_WRITE, parseDuration(value))).forEach(expiries::add);
+            } else if (arg.startsWith("--export-lirs=")) {
+                lirsFile = Path.of(getValues(arg)[0]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        final List<Path> files = AccessTrace.getFiles(traceFile);
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No trace found at " + traceFile);
+        }
+
+        final var replay = new TraceReplay();
+        long startEpochMillis = 0;
+        for (final Path file : files) {
+            final long fileStartEpochMillis = AccessTrace.read(file, replay::add);
+            if (startEpochMillis == 0) {
+                startEpochMillis = fileStartEpochMillis;
+            }
+        }
+
+        replay.printSummary(files, startEpochMillis);
+        if (lirsFile != null) {
+            replay.exportLirs(lirsFile);
+        }
+
+        if (sizes == null) {
+            final long distinctKeys = replay.countDistinctKeys();
+            sizes = Arrays.stream(new double[]{0.01, 0.05, 0.1, 0.25, 0.5, 1.0})
+                    .mapToLong(fraction -> Math.max(1, (long) (distinctKeys * fraction)))
+                    .distinct()
+                    .toArray();
+        }
+
+        System.out.printf("%n%-10s %12s %-22s %10s%n", "Policy", "MaximumSize", "Expiry", "HitRate");
+        for (final long size : sizes) {
+            for (final Expiry expiry : expiries) {
+                replay.print("W-TinyLFU", size, expiry, replay.replayCaffeine(size, expiry));
+            }
+            replay.print("LRU", size, expiries.get(0), replay.replayLinked(size, true));
+            replay.print("FIFO", size, expiries.get(0), replay.replayLinked(size, false));
+        }
+    }
+
+    private void add(final AccessTrace.Operation operation, final long keyHash, final long timestampNanos) {
+        if (length == operations.length) {
+            operations = Arrays.copyOf(operations, length * 2);
+            keyHashes = Arrays.copyOf(keyHashes, length * 2);
+            timestamps = Arrays.copyOf(timestamps, length * 2);
+        }
+
+        operations[length] = (byte) operation.ordinal();
+        keyHashes[length] = keyHash;
+        timestamps[length] = timestampNanos;
+        length++;
+    }
+
+    private void printSummary(final List<Path> files, final long startEpochMillis) {
+        final var counts = new long[OPERATIONS.length];
+        for (int i = 0; i < length; i++) {
+            counts[operations[i]]++;
+        }
+
+        final long hits = counts[AccessTrace.Operation.HIT.ordinal()];
+        final long misses = counts[AccessTrace.Operation.MISS.ordinal()];
+        System.out.printf("Replaying %d records from %d file(s), recorded from %s over %s%n",
+                length, files.size(), Instant.ofEpochMilli(startEpochMillis),
+                Duration.ofNanos(length > 0 ? timestamps[length - 1] : 0));
+        for (final AccessTrace.Operation operation : OPERATIONS) {
+            System.out.printf("  %-12s %d%n", operation, counts[operation.ordinal()]);
+        }
+        System.out.printf("Recorded hit rate: %.4f%n", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+    }
+
+    private long countDistinctKeys() {
+        final Set<Long> keys = new HashSet<>();
+        for (int i = 0; i < length; i++) {
+            if (isLookup(i)) {
+                keys.add(keyHashes[i]);
+            }
+        }
+        return keys.size();
+    }
+
+    private void exportLirs(final Path lirsFile) throws IOException {
+        try (final BufferedWriter writer = Files.newBufferedWriter(lirsFile)) {
+            for (int i = 0; i < length; i++) {
+                if (isLookup(i)) {
+                    writer.write(Long.toString(keyHashes[i]));
+                    writer.newLine();
+                }
+            }
+        }
+        System.out.printf("Exported lookups to %s%n", lirsFile);
+    }
+
+    private double replayCaffeine(final long maximumSize, final Expiry expiry) {
+        final var ticker = new ReplayTicker();
+        final Caffeine<Object, Object> caffeine = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .executor(Runnable::run)
+                .ticker(ticker);
+        if (expiry.mode() == ExpiryMode.AFTER_ACCESS) {
+            caffeine.expireAfterAccess(expiry.duration());
+        } else if (expiry.mode() == ExpiryMode.AFTER_WRITE) {
+            caffeine.expireAfterWrite(expiry.duration());
+        }
+        final Cache<Long, Boolean> cache = caffeine.build();
+
+        long hits = 0;
+        long lookups = 0;
+        for (int i = 0; i < length; i++) {
+            // Concurrent operations may be recorded slightly out of order, but time must not go backwards.
+            ticker.nanos = Math.max(ticker.nanos, timestamps[i]);
+            final Long key = keyHashes[i];
+            switch (OPERATIONS[operations[i]]) {
+                case HIT, MISS -> {
+                    lookups++;
+                    if (cache.getIfPresent(key) != null) {
+                        hits++;
+                    } else {
+                        cache.put(key, Boolean.TRUE);
+                    }
+                }
+                case PUT -> cache.put(key, Boolean.TRUE);
+                case EVICT -> cache.invalidate(key);
+                case EVICT_ALL -> cache.invalidateAll();
+                case EVICT_CLASS -> {
+                }
+            }
+        }
+
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    private double replayLinked(final long maximumSize, final boolean accessOrder) {
+        final var cache = new LinkedHashMap<Long, Boolean>(16, 0.75f, accessOrder) {
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Boolean> eldest) {
+                return size() > maximumSize;
+            }
+
+        };
+
+        long hits = 0;
+        long lookups = 0;
+        for (int i = 0; i < length; i++) {
+            final Long key = keyHashes[i];
+            switch (OPERATIONS[operations[i]]) {
+                case HIT, MISS -> {
+                    lookups++;
+                    if (cache.get(key) != null) {
+                        hits++;
+                    } else {
+                        cache.put(key, Boolean.TRUE);
+                    }
+                }
+                case PUT -> cache.put(key, Boolean.TRUE);
+                case EVICT -> cache.remove(key);
+                case EVICT_ALL -> cache.clear();
+                case EVICT_CLASS -> {
+                }
+            }
+        }
+
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    private boolean isLookup(final int index) {
+        return operations[index] == AccessTrace.Operation.HIT.ordinal()
+               || operations[index] == AccessTrace.Operation.MISS.ordinal();
+    }
+
+    private void print(final String policy, final long maximumSize, final Expiry expiry, final double hitRate) {
+        System.out.printf("%-10s %12d %-22s %10.4f%n", policy, maximumSize, expiry, hitRate);
+    }
+
+    private static String[] getValues(final String arg) {
+        return arg.substring(arg.indexOf('=') + 1).split(",");
+    }
+
+    private static Duration parseDuration(final String value) {
+        // Same format as CaffeineSpec, e.g. 30s, 5m or 1h.
+        final String trimmed = value.trim().toLowerCase();
+        final long amount = Long.parseLong(trimmed.substring(0, trimmed.length() - 1));
+        return switch (trimmed.charAt(trimmed.length() - 1)) {
+            case 'd' -> Duration.ofDays(amount);
+            case 'h' -> Duration.ofHours(amount);
+            case 'm' -> Duration.ofMinutes(amount);
+            case 's' -> Duration.ofSeconds(amount);
+            default -> throw new IllegalArgumentException("Invalid duration " + value + "; expected e.g. 30s, 5m or 1h");
+        };
+    }
+
+    private enum ExpiryMode {
+        NONE,
+        AFTER_ACCESS,
+        AFTER_WRITE
+    }
+
+    private record Expiry(ExpiryMode mode, Duration duration) {
+
+        @Override
+        public String toString() {
+            return switch (mode) {
+                case NONE -> "-";
+                case AFTER_ACCESS -> "afterAccess=" + duration;
+                case AFTER_WRITE -> "afterWrite=" + duration;
+            };
+        }
+
+    }
+
+    private static final class ReplayTicker implements Ticker {
+
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+    }
+
+}
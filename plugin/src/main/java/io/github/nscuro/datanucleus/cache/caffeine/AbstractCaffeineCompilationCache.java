@@ -0,0 +1,94 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.datanucleus.Configuration;
+
+/**
+ * Base class for Caffeine-backed query compilation caches.
+ * <p>
+ * Unlike DataNucleus' default soft and weak compilation caches, entries are not
+ * cleared wholesale under GC pressure, but evicted individually once the cache
+ * exceeds its maximum size.
+ *
+ * @param <V> Type of the cached compilations
+ */
+abstract class AbstractCaffeineCompilationCache<V> {
+
+    static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final Cache<String, V> caffeineCache;
+
+    AbstractCaffeineCompilationCache(final Configuration config, final String maxSizePropertyName, final String statisticsEnabledPropertyName) {
+        final Caffeine<Object, Object> caffeine = Caffeine.newBuilder();
+        if (config.getIntProperty(maxSizePropertyName) > 0) {
+            caffeine.maximumSize(config.getIntProperty(maxSizePropertyName));
+        } else {
+            caffeine.maximumSize(DEFAULT_MAXIMUM_SIZE);
+        }
+        if (config.getBooleanProperty(statisticsEnabledPropertyName)) {
+            caffeine.recordStats();
+        }
+
+        caffeineCache = caffeine.build();
+    }
+
+    public Cache<?, ?> getCaffeineCache() {
+        return caffeineCache;
+    }
+
+    public void close() {
+        caffeineCache.invalidateAll();
+    }
+
+    public void evict(final String queryKey) {
+        caffeineCache.invalidate(queryKey);
+    }
+
+    public void clear() {
+        caffeineCache.invalidateAll();
+    }
+
+    public boolean isEmpty() {
+        return caffeineCache.asMap().isEmpty();
+    }
+
+    public int size() {
+        return (int) Math.min(caffeineCache.estimatedSize(), Integer.MAX_VALUE);
+    }
+
+    public V get(final String queryKey) {
+        return caffeineCache.getIfPresent(queryKey);
+    }
+
+    public V put(final String queryKey, final V compilation) {
+        if (queryKey == null || compilation == null) {
+            return null;
+        }
+
+        return caffeineCache.asMap().put(queryKey, compilation);
+    }
+
+    public boolean contains(final String queryKey) {
+        return caffeineCache.asMap().containsKey(queryKey);
+    }
+
+}
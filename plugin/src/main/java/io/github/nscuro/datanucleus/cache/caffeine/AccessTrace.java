@@ -0,0 +1,223 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.identity.IntId;
+import org.datanucleus.identity.LongId;
+import org.datanucleus.identity.StringId;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary format of access traces recorded by {@link CaffeineLevel2Cache}.
+ * <p>
+ * A trace file starts with a header of a magic number, a format version, the wall-clock time
+ * at which recording started in epoch milliseconds, and the timestamp that the file's first
+ * record is relative to. Each record consists of:
+ * <ul>
+ *     <li>the {@link Operation}'s ordinal (1 byte)</li>
+ *     <li>a 64-bit hash of the object identity (8 bytes), which for DataNucleus identities is stable
+ *     across JVMs, but does not reveal the identity itself, see {@link #hash(Object)}</li>
+ *     <li>the nanoseconds elapsed since the previous record, as a zigzag-encoded varint (usually 1-4 bytes)</li>
+ * </ul>
+ * Timestamps are relative to the start of recording, and continue across rotated files.
+ * They may decrease slightly between records, since concurrent operations are not recorded in strict order.
+ */
+public final class AccessTrace {
+
+    /**
+     * Operations recorded in access traces. Ordinals are part of the format and must not change.
+     */
+    public enum Operation {
+
+        /**
+         * A lookup that returned a cached object.
+         */
+        HIT,
+
+        /**
+         * A lookup that did not return a cached object.
+         */
+        MISS,
+
+        /**
+         * An object was put into the cache.
+         */
+        PUT,
+
+        /**
+         * An object was evicted explicitly.
+         */
+        EVICT,
+
+        /**
+         * All objects of a class were evicted. The key hash is that of the class name.
+         */
+        EVICT_CLASS,
+
+        /**
+         * All objects were evicted. The key hash is always zero.
+         */
+        EVICT_ALL;
+
+        private static final Operation[] VALUES = values();
+
+    }
+
+    @FunctionalInterface
+    public interface Visitor {
+
+        void visit(Operation operation, long keyHash, long timestampNanos);
+
+    }
+
+    static final int MAGIC = 0x444E4354; // "DNCT"
+    static final byte VERSION = 1;
+
+    private AccessTrace() {
+    }
+
+    /**
+     * @return The given trace file and its rotated predecessors that exist, oldest first
+     */
+    public static List<Path> getFiles(final Path traceFile) {
+        final var files = new ArrayList<Path>();
+        for (int i = 1; ; i++) {
+            final Path rotatedFile = getRotatedFile(traceFile, i);
+            if (!Files.exists(rotatedFile)) {
+                break;
+            }
+
+            files.add(0, rotatedFile);
+        }
+        if (Files.exists(traceFile)) {
+            files.add(traceFile);
+        }
+
+        return files;
+    }
+
+    /**
+     * Reads all records of the given trace file, in the order they were written.
+     * <p>
+     * A truncated record at the end of the file, e.g. because the application was
+     * killed while the trace was being written, is ignored.
+     *
+     * @return The wall-clock time at which recording started, in epoch milliseconds
+     * @throws IOException When the file could not be read, or is not an access trace
+     */
+    public static long read(final Path traceFile, final Visitor visitor) throws IOException {
+        try (final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(traceFile), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("%s is not an access trace".formatted(traceFile));
+            }
+            final byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("%s has unsupported version %d".formatted(traceFile, version));
+            }
+            final long startEpochMillis = in.readLong();
+            long timestampNanos = in.readLong();
+
+            while (true) {
+                final int operation = in.read();
+                if (operation < 0) {
+                    break;
+                }
+
+                try {
+                    final long keyHash = in.readLong();
+                    timestampNanos += readZigZagVarLong(in);
+                    visitor.visit(Operation.VALUES[operation], keyHash, timestampNanos);
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+
+            return startEpochMillis;
+        }
+    }
+
+    static Path getRotatedFile(final Path traceFile, final int index) {
+        return traceFile.resolveSibling(traceFile.getFileName() + "." + index);
+    }
+
+    /**
+     * @return A well-distributed 64-bit hash of the given object. Single-field identities are hashed by their
+     * full key and target class. All other objects are hashed by their {@link Object#hashCode()}, whose 32 bits
+     * make collisions likely once a trace contains more than tens of thousands of distinct identities.
+     */
+    static long hash(final Object key) {
+        if (key instanceof LongId longId) {
+            return mix(mix(longId.getKey()) ^ longId.getTargetClassName().hashCode());
+        } else if (key instanceof IntId intId) {
+            return mix(mix(intId.getKey()) ^ intId.getTargetClassName().hashCode());
+        } else if (key instanceof StringId stringId) {
+            return mix(hashString(stringId.getKey()) ^ stringId.getTargetClassName().hashCode());
+        }
+
+        return mix(key != null ? key.hashCode() : 0);
+    }
+
+    private static long hashString(final String value) {
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(final long value) {
+        // Finalization step of MurmurHash3's 64-bit variant.
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long readZigZagVarLong(final InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+
+        throw new IOException("Malformed varint");
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import io.github.nscuro.datanucleus.cache.caffeine.AccessTrace.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records an {@link AccessTrace} to a rotating file.
+ * <p>
+ * Recording threads only claim a slot in a bounded ring buffer and never block. When the buffer is
+ * full, records are dropped rather than slowing down the cache. A dedicated writer thread drains
+ * the buffer in batches, and writes them to the trace file through a {@link FileChannel}.
+ */
+final class AccessTraceRecorder implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccessTraceRecorder.class);
+    private static final int BUFFER_CAPACITY = 1 << 16;
+    private static final int MAX_RECORD_BYTES = 1 + 8 + 10;
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 8;
+    // Idle writers are woken by the first record, so this only bounds the delay of missed wake-ups.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long PUBLICATION_GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path traceFile;
+    private final long maxFileSize;
+    private final int fileCount;
+    private final long startEpochMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    // Slot i holds the record of sequence (i + n * BUFFER_CAPACITY). Its published sequence is
+    // the record's sequence plus one, which tells the writer that the slot has been fully written.
+    private final byte[] operations = new byte[BUFFER_CAPACITY];
+    private final long[] keyHashes = new long[BUFFER_CAPACITY];
+    private final long[] timestamps = new long[BUFFER_CAPACITY];
+    private final AtomicLongArray published = new AtomicLongArray(BUFFER_CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicBoolean writerIdle = new AtomicBoolean();
+
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1 << 16);
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    private FileChannel channel;
+    private long lastTimestamp;
+
+    AccessTraceRecorder(final Path traceFile, final long maxFileSize, final int fileCount) throws IOException {
+        this.traceFile = traceFile.toAbsolutePath();
+        this.maxFileSize = maxFileSize;
+        this.fileCount = fileCount;
+
+        final Path directory = this.traceFile.getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        openFile();
+
+        writerThread = new Thread(this::runWriter, "caffeine-l2-trace-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    void record(final Operation operation, final long keyHash) {
+        if (!running) {
+            return;
+        }
+
+        final long timestamp = System.nanoTime() - startNanos;
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= BUFFER_CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        final int slot = (int) (sequence & (BUFFER_CAPACITY - 1));
+        operations[slot] = (byte) operation.ordinal();
+        keyHashes[slot] = keyHash;
+        timestamps[slot] = timestamp;
+        published.lazySet(slot, sequence + 1);
+
+        // Only the record that finds the writer idle wakes it. The writer may go idle concurrently
+        // without seeing this record, in which case it is written once the writer's park times out.
+        if (writerIdle.get() && writerIdle.compareAndSet(true, false)) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (getDroppedCount() > 0) {
+            LOGGER.warn("Dropped {} records of access trace {} because the writer could not keep up",
+                    getDroppedCount(), traceFile);
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (running) {
+                if (drain() == 0) {
+                    writerIdle.set(true);
+                    if (!isHeadPublished()) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    writerIdle.set(false);
+                }
+            }
+
+            // Records claimed before recording was stopped are published shortly after.
+            LockSupport.parkNanos(PUBLICATION_GRACE_NANOS);
+            drain();
+        } catch (IOException | RuntimeException e) {
+            running = false;
+            LOGGER.error("Failed to write access trace {}; Recording was stopped", traceFile, e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close access trace {}", traceFile, e);
+            }
+        }
+    }
+
+    private boolean isHeadPublished() {
+        final long sequence = head.get();
+        return published.get((int) (sequence & (BUFFER_CAPACITY - 1))) == sequence + 1;
+    }
+
+    private int drain() throws IOException {
+        int drained = 0;
+        long sequence = head.get();
+        while (sequence < tail.get()) {
+            final int slot = (int) (sequence & (BUFFER_CAPACITY - 1));
+            if (published.get(slot) != sequence + 1) {
+                // The slot was claimed, but is still being written.
+                break;
+            }
+
+            if (writeBuffer.remaining() < MAX_RECORD_BYTES) {
+                flush();
+            }
+            writeBuffer.put(operations[slot]);
+            writeBuffer.putLong(keyHashes[slot]);
+            putZigZagVarLong(timestamps[slot] - lastTimestamp);
+            lastTimestamp = timestamps[slot];
+
+            head.lazySet(++sequence);
+            drained++;
+        }
+
+        if (writeBuffer.position() > 0) {
+            flush();
+        }
+        return drained;
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+
+        if (channel.size() >= maxFileSize) {
+            rotate();
+        }
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        if (fileCount > 1) {
+            Files.deleteIfExists(AccessTrace.getRotatedFile(traceFile, fileCount - 1));
+            for (int i = fileCount - 2; i >= 1; i--) {
+                final Path rotatedFile = AccessTrace.getRotatedFile(traceFile, i);
+                if (Files.exists(rotatedFile)) {
+                    Files.move(rotatedFile, AccessTrace.getRotatedFile(traceFile, i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(traceFile, AccessTrace.getRotatedFile(traceFile, 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(traceFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(AccessTrace.MAGIC);
+        header.put(AccessTrace.VERSION);
+        header.putLong(startEpochMillis);
+        header.putLong(lastTimestamp);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private void putZigZagVarLong(final long value) {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7fL) != 0) {
+            writeBuffer.put((byte) ((zigZag & 0x7f) | 0x80));
+            zigZag >>>= 7;
+        }
+        writeBuffer.put((byte) zigZag);
+    }
+
+}
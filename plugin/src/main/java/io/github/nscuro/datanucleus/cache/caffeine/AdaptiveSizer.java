@@ -0,0 +1,221 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Periodically adjusts the maximum of a cache, within the given bounds, based on its hit ratio and the heap's headroom.
+ * <p>
+ * The hit ratio is measured over a sliding window of {@value #WINDOW_INTERVALS} intervals. While the cache
+ * evicts entries and the heap has plenty of headroom, the maximum is grown. Growth that does not improve the
+ * hit ratio, e.g. because the workload is dominated by scans, is reverted, and not attempted again for a while.
+ * When the heap runs low, the maximum is shrunk immediately, regardless of the hit ratio. While the maximum is
+ * limited due to memory pressure, no adjustments are made, since the hit ratio does not reflect the target maximum.
+ */
+final class AdaptiveSizer implements AutoCloseable {
+
+    static final int WINDOW_INTERVALS = 5;
+    static final double RESIZE_FACTOR = 1.25;
+    static final double MIN_HIT_RATIO_GAIN = 0.01;
+    static final double MIN_HEAP_HEADROOM = 0.1;
+    static final double GROWTH_HEAP_HEADROOM = 0.3;
+    static final int HOLD_INTERVALS = 6 * WINDOW_INTERVALS;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveSizer.class);
+    private static final long MIN_WINDOW_REQUESTS = 100;
+
+    private enum Adjustment {
+        NONE,
+        GROW,
+        SHRINK
+    }
+
+    private final Cache<?, ?> cache;
+    private final CacheMaximum cacheMaximum;
+    private final long minimum;
+    private final long maximum;
+    private final DoubleSupplier heapHeadroomSupplier;
+    private final long[] windowHits = new long[WINDOW_INTERVALS];
+    private final long[] windowMisses = new long[WINDOW_INTERVALS];
+    private final long[] windowEvictions = new long[WINDOW_INTERVALS];
+    private ScheduledExecutorService executor;
+    private CacheStats lastStats;
+    private int windowIndex;
+    private int intervalsSinceAdjustment;
+    private int holdIntervals;
+    private Adjustment lastAdjustment = Adjustment.NONE;
+    private double hitRatioBeforeAdjustment;
+
+    AdaptiveSizer(final Cache<?, ?> cache, final CacheMaximum cacheMaximum, final long minimum, final long maximum,
+                  final DoubleSupplier heapHeadroomSupplier) {
+        this.cache = cache;
+        this.cacheMaximum = cacheMaximum;
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.heapHeadroomSupplier = heapHeadroomSupplier;
+        this.lastStats = cache.stats();
+    }
+
+    void start(final long intervalMillis) {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "caffeine-l2-adaptive-sizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                adjust();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to adjust the maximum of the cache", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Concludes the current interval, and adjusts the maximum of the cache if necessary.
+     */
+    void adjust() {
+        final CacheStats stats = cache.stats();
+        final CacheStats delta = stats.minus(lastStats);
+        lastStats = stats;
+
+        windowHits[windowIndex] = delta.hitCount();
+        windowMisses[windowIndex] = delta.missCount();
+        windowEvictions[windowIndex] = delta.evictionCount();
+        windowIndex = (windowIndex + 1) % WINDOW_INTERVALS;
+        intervalsSinceAdjustment++;
+        if (holdIntervals > 0) {
+            holdIntervals--;
+        }
+
+        if (cacheMaximum.isLimited()) {
+            // Intervals under memory pressure are not representative of the target maximum.
+            lastAdjustment = Adjustment.NONE;
+            intervalsSinceAdjustment = 0;
+            return;
+        }
+
+        final long current = cacheMaximum.getTarget();
+        final double heapHeadroom = heapHeadroomSupplier.getAsDouble();
+        if (heapHeadroom < MIN_HEAP_HEADROOM) {
+            if (current > minimum) {
+                resize(current, shrink(current), Adjustment.NONE, "heap headroom is %.0f%%".formatted(heapHeadroom * 100));
+            }
+            return;
+        }
+        if (intervalsSinceAdjustment < WINDOW_INTERVALS) {
+            // The window still contains intervals from before the last adjustment.
+            return;
+        }
+
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        for (int i = 0; i < WINDOW_INTERVALS; i++) {
+            hits += windowHits[i];
+            misses += windowMisses[i];
+            evictions += windowEvictions[i];
+        }
+        if (hits + misses < MIN_WINDOW_REQUESTS) {
+            return;
+        }
+
+        final double hitRatio = (double) hits / (hits + misses);
+        if (lastAdjustment == Adjustment.GROW && hitRatio - hitRatioBeforeAdjustment < MIN_HIT_RATIO_GAIN) {
+            holdIntervals = HOLD_INTERVALS;
+            resize(current, shrink(current), Adjustment.SHRINK,
+                    "growth did not improve the hit ratio (%.4f -> %.4f)".formatted(hitRatioBeforeAdjustment, hitRatio));
+            return;
+        }
+        if (evictions > 0 && heapHeadroom >= GROWTH_HEAP_HEADROOM && current < maximum && holdIntervals == 0) {
+            hitRatioBeforeAdjustment = hitRatio;
+            resize(current, grow(current), Adjustment.GROW,
+                    "%d entries were evicted at a hit ratio of %.4f".formatted(evictions, hitRatio));
+            return;
+        }
+
+        lastAdjustment = Adjustment.NONE;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The smallest headroom of the heap's old generation pools after the last garbage collection.
+     * Instantaneous usage would include garbage that the next collection reclaims anyway. Falls back to the
+     * instantaneous usage of the whole heap if no pool reports its usage after collections.
+     */
+    static double getHeapHeadroom() {
+        double headroom = Double.NaN;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // Survivor spaces may be full after a collection, but only old generation pools support usage thresholds.
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported() || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+
+            final MemoryUsage collectionUsage = pool.getCollectionUsage();
+            final long max = pool.getUsage().getMax();
+            if (collectionUsage != null && max > 0) {
+                final double poolHeadroom = 1.0 - (double) collectionUsage.getUsed() / max;
+                headroom = Double.isNaN(headroom) ? poolHeadroom : Math.min(headroom, poolHeadroom);
+            }
+        }
+        if (!Double.isNaN(headroom)) {
+            return headroom;
+        }
+
+        final MemoryUsage heapUsage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        final long max = heapUsage.getMax() > 0 ? heapUsage.getMax() : heapUsage.getCommitted();
+        return max > 0 ? 1.0 - (double) heapUsage.getUsed() / max : 1.0;
+    }
+
+    private long grow(final long current) {
+        return Math.min(maximum, Math.max(current + 1, (long) (current * RESIZE_FACTOR)));
+    }
+
+    private long shrink(final long current) {
+        return Math.max(minimum, (long) (current / RESIZE_FACTOR));
+    }
+
+    private void resize(final long current, final long target, final Adjustment adjustment, final String reason) {
+        LOGGER.info("Changing maximum {} of the cache from {} to {}, because {}",
+                cacheMaximum.isWeighted() ? "weight" : "size", current, target, reason);
+        cacheMaximum.setTarget(target);
+        lastAdjustment = adjustment;
+        intervalsSinceAdjustment = 0;
+    }
+
+}
@@ -0,0 +1,1018 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.NucleusContext;
+import org.datanucleus.cache.CachedPC;
+import org.datanucleus.identity.IntId;
+import org.datanucleus.identity.LongId;
+import org.datanucleus.identity.StringId;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact {@link CachedPCCodec} that writes field values by type instead of using Java serialization.
+ * <p>
+ * Each persistent class is assigned a schema id on first use. Where DataNucleus metadata is available,
+ * the schema records the declared type of each field, so that primitive and {@link String} values of
+ * those fields are written without a type tag. All other values are tagged. Integral numbers are
+ * written as var-ints, and repeated strings within an object (e.g. class names of related objects)
+ * are written once and referenced by index afterwards. Values of unsupported types fall back
+ * to Java serialization.
+ * <p>
+ * Schema ids are only meaningful to the codec instance that assigned them. Files that outlive
+ * the codec must therefore carry its schemas, see {@link #getSchemas()} and {@link #restoreSchema}.
+ * Encoding and decoding reuse per-thread buffers, so that the only allocations
+ * are the resulting byte array and the decoded values themselves.
+ */
+final class BinaryCachedPCCodec implements CachedPCCodec {
+
+    static final byte FORMAT_VERSION = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TRUE = 1;
+    private static final byte TAG_FALSE = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_SHORT = 5;
+    private static final byte TAG_BYTE = 6;
+    private static final byte TAG_CHAR = 7;
+    private static final byte TAG_FLOAT = 8;
+    private static final byte TAG_DOUBLE = 9;
+    private static final byte TAG_STRING = 10;
+    private static final byte TAG_DATE = 11;
+    private static final byte TAG_SQL_TIMESTAMP = 12;
+    private static final byte TAG_SQL_DATE = 13;
+    private static final byte TAG_SQL_TIME = 14;
+    private static final byte TAG_BIG_DECIMAL = 15;
+    private static final byte TAG_BIG_INTEGER = 16;
+    private static final byte TAG_UUID = 17;
+    private static final byte TAG_ENUM = 18;
+    private static final byte TAG_CACHED_ID = 19;
+    private static final byte TAG_CACHED_PC = 20;
+    private static final byte TAG_LONG_ID = 21;
+    private static final byte TAG_INT_ID = 22;
+    private static final byte TAG_STRING_ID = 23;
+    private static final byte TAG_COLLECTION = 24;
+    private static final byte TAG_MAP = 25;
+    private static final byte TAG_OBJECT_ARRAY = 26;
+    private static final byte TAG_BYTE_ARRAY = 27;
+    private static final byte TAG_INSTANT = 28;
+    private static final byte TAG_LOCAL_DATE = 29;
+    private static final byte TAG_LOCAL_DATE_TIME = 30;
+    private static final byte TAG_SERIALIZED = 31;
+
+    // Field kinds that are written without a tag when the value matches the declared type.
+    private static final byte KIND_ANY = 0;
+    private static final byte KIND_BOOLEAN = 1;
+    private static final byte KIND_BYTE = 2;
+    private static final byte KIND_SHORT = 3;
+    private static final byte KIND_CHAR = 4;
+    private static final byte KIND_INT = 5;
+    private static final byte KIND_LONG = 6;
+    private static final byte KIND_FLOAT = 7;
+    private static final byte KIND_DOUBLE = 8;
+    private static final byte KIND_STRING = 9;
+
+    private static final int MAX_STRING_TABLE_SIZE = 64;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    record ClassSchema(int id, Class<?> type, byte[] fieldKinds, long fingerprint) {
+    }
+
+    private final NucleusContext nucleusCtx;
+    private final ClassLoaderResolver clr;
+    private final Map<Class<?>, ClassSchema> schemasByClass = new ConcurrentHashMap<>();
+    private volatile ClassSchema[] schemasById = new ClassSchema[0];
+    private final Map<String, Class<?>> classesByName = new ConcurrentHashMap<>();
+    private final ClassValue<Constructor<?>> constructors = new ClassValue<>() {
+
+        @Override
+        protected Constructor<?> computeValue(final Class<?> type) {
+            if (!Modifier.isPublic(type.getModifiers()) || Modifier.isAbstract(type.getModifiers())) {
+                return null;
+            }
+            try {
+                return type.getConstructor();
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+    };
+    private final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+    private final ThreadLocal<Decoder> decoders = ThreadLocal.withInitial(Decoder::new);
+
+    BinaryCachedPCCodec(final NucleusContext nucleusCtx) {
+        this.nucleusCtx = nucleusCtx;
+        this.clr = nucleusCtx.getClassLoaderResolver(null);
+    }
+
+    @Override
+    public byte[] encode(final CachedPC<?> pc) throws IOException {
+        final Encoder out = encoders.get();
+        try {
+            out.writeByte(FORMAT_VERSION);
+            writeCachedPC(out, pc);
+            return out.toByteArray();
+        } finally {
+            out.reset();
+        }
+    }
+
+    @Override
+    public CachedPC<?> decode(final byte[] bytes) throws IOException {
+        final Decoder in = decoders.get();
+        in.reset(bytes);
+        try {
+            final byte formatVersion = in.readByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported format version %d".formatted(formatVersion));
+            }
+            return readCachedPC(in);
+        } catch (IndexOutOfBoundsException | ClassCastException e) {
+            throw new IOException("Malformed cached object", e);
+        } finally {
+            in.reset(null);
+        }
+    }
+
+    /**
+     * Encodes an arbitrary value supported by this codec, e.g. the identity of an object.
+     */
+    byte[] encodeValue(final Object value) throws IOException {
+        final Encoder out = encoders.get();
+        try {
+            out.writeByte(FORMAT_VERSION);
+            writeValue(out, value);
+            return out.toByteArray();
+        } finally {
+            out.reset();
+        }
+    }
+
+    Object decodeValue(final byte[] bytes) throws IOException {
+        final Decoder in = decoders.get();
+        in.reset(bytes);
+        try {
+            final byte formatVersion = in.readByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported format version %d".formatted(formatVersion));
+            }
+            return readValue(in);
+        } catch (IndexOutOfBoundsException | ClassCastException e) {
+            throw new IOException("Malformed value", e);
+        } finally {
+            in.reset(null);
+        }
+    }
+
+    /**
+     * @return All schemas assigned by this codec, ordered by their id
+     */
+    List<ClassSchema> getSchemas() {
+        return List.of(schemasById);
+    }
+
+    /**
+     * Registers a schema that was assigned by another codec instance, e.g. the one that wrote a file.
+     * Schemas must be restored in the order of their ids, before anything is encoded or decoded.
+     *
+     * @return Whether the class still exists with the same fields. Objects of other classes can't be decoded.
+     */
+    synchronized boolean restoreSchema(final int id, final String className, final long fingerprint) {
+        final ClassSchema[] schemas = schemasById;
+        if (id != schemas.length) {
+            throw new IllegalStateException("Expected schema id %d, but got %d".formatted(schemas.length, id));
+        }
+
+        ClassSchema schema = null;
+        try {
+            final Class<?> type = clr.classForName(className);
+            if (!schemasByClass.containsKey(type)) {
+                schema = createSchema(id, type);
+            }
+        } catch (RuntimeException e) {
+            // The class no longer exists.
+        }
+
+        final boolean valid = schema != null && schema.fingerprint() == fingerprint;
+        if (valid) {
+            schemasByClass.put(schema.type(), schema);
+        } else {
+            // Keep the id occupied, so that subsequent ids remain aligned.
+            schema = new ClassSchema(id, null, new byte[0], fingerprint);
+        }
+
+        final ClassSchema[] newSchemas = Arrays.copyOf(schemas, schemas.length + 1);
+        newSchemas[id] = schema;
+        schemasById = newSchemas;
+        return valid;
+    }
+
+    ClassSchema getSchema(final Class<?> type) {
+        final ClassSchema schema = schemasByClass.get(type);
+        return schema != null ? schema : registerSchema(type);
+    }
+
+    ClassSchema getSchema(final int id) throws IOException {
+        final ClassSchema[] schemas = schemasById;
+        if (id < 0 || id >= schemas.length) {
+            throw new IOException("Unknown schema id %d".formatted(id));
+        }
+        if (schemas[id].type() == null) {
+            throw new IOException("Schema %d is outdated".formatted(id));
+        }
+        return schemas[id];
+    }
+
+    private synchronized ClassSchema registerSchema(final Class<?> type) {
+        final ClassSchema existingSchema = schemasByClass.get(type);
+        if (existingSchema != null) {
+            return existingSchema;
+        }
+
+        final ClassSchema[] schemas = schemasById;
+        final var schema = createSchema(schemas.length, type);
+        final ClassSchema[] newSchemas = Arrays.copyOf(schemas, schemas.length + 1);
+        newSchemas[schema.id()] = schema;
+        schemasById = newSchemas;
+        schemasByClass.put(type, schema);
+        return schema;
+    }
+
+    private ClassSchema createSchema(final int id, final Class<?> type) {
+        AbstractClassMetaData cmd;
+        try {
+            cmd = nucleusCtx.getMetaDataManager().getMetaDataForClass(type, clr);
+        } catch (RuntimeException e) {
+            cmd = null;
+        }
+
+        long fingerprint = type.getName().hashCode();
+        if (cmd == null) {
+            return new ClassSchema(id, type, new byte[0], fingerprint);
+        }
+
+        final var fieldKinds = new byte[cmd.getNoOfInheritedManagedMembers() + cmd.getNoOfManagedMembers()];
+        for (int i = 0; i < fieldKinds.length; i++) {
+            final AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(i);
+            if (mmd == null) {
+                continue;
+            }
+
+            fieldKinds[i] = getKind(mmd.getType());
+            fingerprint = 31 * fingerprint + mmd.getName().hashCode();
+            fingerprint = 31 * fingerprint + mmd.getType().getName().hashCode();
+        }
+
+        return new ClassSchema(id, type, fieldKinds, fingerprint);
+    }
+
+    private static byte getKind(final Class<?> type) {
+        if (type == boolean.class || type == Boolean.class) {
+            return KIND_BOOLEAN;
+        } else if (type == byte.class || type == Byte.class) {
+            return KIND_BYTE;
+        } else if (type == short.class || type == Short.class) {
+            return KIND_SHORT;
+        } else if (type == char.class || type == Character.class) {
+            return KIND_CHAR;
+        } else if (type == int.class || type == Integer.class) {
+            return KIND_INT;
+        } else if (type == long.class || type == Long.class) {
+            return KIND_LONG;
+        } else if (type == float.class || type == Float.class) {
+            return KIND_FLOAT;
+        } else if (type == double.class || type == Double.class) {
+            return KIND_DOUBLE;
+        } else if (type == String.class) {
+            return KIND_STRING;
+        }
+
+        return KIND_ANY;
+    }
+
+    private void writeCachedPC(final Encoder out, final CachedPC<?> pc) throws IOException {
+        final ClassSchema schema = getSchema(pc.getObjectClass());
+        out.writeVarInt(schema.id());
+
+        final boolean[] loadedFields = pc.getLoadedFields();
+        out.writeVarInt(loadedFields.length);
+        for (int i = 0; i < loadedFields.length; i += 8) {
+            int bits = 0;
+            for (int j = i; j < Math.min(i + 8, loadedFields.length); j++) {
+                if (loadedFields[j]) {
+                    bits |= 1 << (j - i);
+                }
+            }
+            out.writeByte((byte) bits);
+        }
+
+        writeValue(out, pc.getVersion());
+        writeValue(out, pc.getId());
+
+        final int[] fieldNumbers = pc.getLoadedFieldNumbers();
+        if (fieldNumbers == null) {
+            out.writeVarInt(0);
+            return;
+        }
+
+        out.writeVarInt(fieldNumbers.length);
+        final byte[] fieldKinds = schema.fieldKinds();
+        for (final int fieldNumber : fieldNumbers) {
+            final Object value = pc.getFieldValue(fieldNumber);
+            final byte kind = fieldNumber < fieldKinds.length ? fieldKinds[fieldNumber] : KIND_ANY;
+            if (kind != KIND_ANY && isOfKind(value, kind)) {
+                out.writeVarInt(fieldNumber << 1 | 1);
+                writeUntagged(out, value, kind);
+            } else {
+                out.writeVarInt(fieldNumber << 1);
+                writeValue(out, value);
+            }
+        }
+    }
+
+    private CachedPC<?> readCachedPC(final Decoder in) throws IOException {
+        final ClassSchema schema = getSchema(in.readVarInt());
+
+        final var loadedFields = new boolean[in.readLength()];
+        for (int i = 0; i < loadedFields.length; i += 8) {
+            final int bits = in.readByte();
+            for (int j = i; j < Math.min(i + 8, loadedFields.length); j++) {
+                loadedFields[j] = (bits & (1 << (j - i))) != 0;
+            }
+        }
+
+        final Object version = readValue(in);
+        final Object id = readValue(in);
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        final CachedPC<?> pc = new CachedPC(schema.type(), loadedFields, version, id);
+
+        final int fieldCount = in.readLength();
+        final byte[] fieldKinds = schema.fieldKinds();
+        for (int i = 0; i < fieldCount; i++) {
+            final int header = in.readVarInt();
+            final int fieldNumber = header >>> 1;
+            if ((header & 1) != 0) {
+                if (fieldNumber >= fieldKinds.length) {
+                    throw new IOException("Field %d of %s is not typed by its schema"
+                            .formatted(fieldNumber, schema.type().getName()));
+                }
+                pc.setFieldValue(fieldNumber, readUntagged(in, fieldKinds[fieldNumber]));
+            } else {
+                pc.setFieldValue(fieldNumber, readValue(in));
+            }
+        }
+
+        return pc;
+    }
+
+    private static boolean isOfKind(final Object value, final byte kind) {
+        if (value == null) {
+            return false;
+        }
+
+        final Class<?> type = value.getClass();
+        return switch (kind) {
+            case KIND_BOOLEAN -> type == Boolean.class;
+            case KIND_BYTE -> type == Byte.class;
+            case KIND_SHORT -> type == Short.class;
+            case KIND_CHAR -> type == Character.class;
+            case KIND_INT -> type == Integer.class;
+            case KIND_LONG -> type == Long.class;
+            case KIND_FLOAT -> type == Float.class;
+            case KIND_DOUBLE -> type == Double.class;
+            case KIND_STRING -> type == String.class;
+            default -> false;
+        };
+    }
+
+    private static void writeUntagged(final Encoder out, final Object value, final byte kind) {
+        switch (kind) {
+            case KIND_BOOLEAN -> out.writeByte((Boolean) value ? (byte) 1 : (byte) 0);
+            case KIND_BYTE -> out.writeByte((Byte) value);
+            case KIND_SHORT -> out.writeZigZagLong((Short) value);
+            case KIND_CHAR -> out.writeVarInt((Character) value);
+            case KIND_INT -> out.writeZigZagLong((Integer) value);
+            case KIND_LONG -> out.writeZigZagLong((Long) value);
+            case KIND_FLOAT -> out.writeFixedInt(Float.floatToRawIntBits((Float) value));
+            case KIND_DOUBLE -> out.writeFixedLong(Double.doubleToRawLongBits((Double) value));
+            case KIND_STRING -> out.writeString((String) value);
+            default -> throw new IllegalArgumentException("Unexpected field kind " + kind);
+        }
+    }
+
+    private static Object readUntagged(final Decoder in, final byte kind) throws IOException {
+        return switch (kind) {
+            case KIND_BOOLEAN -> in.readByte() != 0;
+            case KIND_BYTE -> in.readByte();
+            case KIND_SHORT -> (short) in.readZigZagLong();
+            case KIND_CHAR -> (char) in.readVarInt();
+            case KIND_INT -> (int) in.readZigZagLong();
+            case KIND_LONG -> in.readZigZagLong();
+            case KIND_FLOAT -> Float.intBitsToFloat(in.readFixedInt());
+            case KIND_DOUBLE -> Double.longBitsToDouble(in.readFixedLong());
+            case KIND_STRING -> in.readString();
+            default -> throw new IOException("Unexpected field kind " + kind);
+        };
+    }
+
+    private void writeValue(final Encoder out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+            return;
+        }
+
+        final Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeByte(TAG_STRING);
+            out.writeString((String) value);
+        } else if (type == Long.class) {
+            out.writeByte(TAG_LONG);
+            out.writeZigZagLong((Long) value);
+        } else if (type == Integer.class) {
+            out.writeByte(TAG_INT);
+            out.writeZigZagLong((Integer) value);
+        } else if (type == Boolean.class) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (type == Short.class) {
+            out.writeByte(TAG_SHORT);
+            out.writeZigZagLong((Short) value);
+        } else if (type == Byte.class) {
+            out.writeByte(TAG_BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Character.class) {
+            out.writeByte(TAG_CHAR);
+            out.writeVarInt((Character) value);
+        } else if (type == Float.class) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFixedInt(Float.floatToRawIntBits((Float) value));
+        } else if (type == Double.class) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeFixedLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof CachedPC.CachedId cachedId) {
+            out.writeByte(TAG_CACHED_ID);
+            out.writeString(cachedId.getClassName());
+            writeValue(out, cachedId.getId());
+        } else if (value instanceof CachedPC<?> cachedPC) {
+            out.writeByte(TAG_CACHED_PC);
+            writeCachedPC(out, cachedPC);
+        } else if (type == LongId.class) {
+            out.writeByte(TAG_LONG_ID);
+            out.writeString(((LongId) value).getTargetClassName());
+            out.writeZigZagLong(((LongId) value).getKey());
+        } else if (type == IntId.class) {
+            out.writeByte(TAG_INT_ID);
+            out.writeString(((IntId) value).getTargetClassName());
+            out.writeZigZagLong(((IntId) value).getKey());
+        } else if (type == StringId.class) {
+            out.writeByte(TAG_STRING_ID);
+            out.writeString(((StringId) value).getTargetClassName());
+            out.writeString(((StringId) value).getKey());
+        } else if (type == Date.class) {
+            out.writeByte(TAG_DATE);
+            out.writeZigZagLong(((Date) value).getTime());
+        } else if (type == java.sql.Timestamp.class) {
+            out.writeByte(TAG_SQL_TIMESTAMP);
+            out.writeZigZagLong(((java.sql.Timestamp) value).getTime());
+            out.writeVarInt(((java.sql.Timestamp) value).getNanos());
+        } else if (type == java.sql.Date.class) {
+            out.writeByte(TAG_SQL_DATE);
+            out.writeZigZagLong(((java.sql.Date) value).getTime());
+        } else if (type == java.sql.Time.class) {
+            out.writeByte(TAG_SQL_TIME);
+            out.writeZigZagLong(((java.sql.Time) value).getTime());
+        } else if (type == BigDecimal.class) {
+            out.writeByte(TAG_BIG_DECIMAL);
+            out.writeZigZagLong(((BigDecimal) value).scale());
+            writeBigInteger(out, ((BigDecimal) value).unscaledValue());
+        } else if (type == BigInteger.class) {
+            out.writeByte(TAG_BIG_INTEGER);
+            writeBigInteger(out, (BigInteger) value);
+        } else if (type == UUID.class) {
+            out.writeByte(TAG_UUID);
+            out.writeFixedLong(((UUID) value).getMostSignificantBits());
+            out.writeFixedLong(((UUID) value).getLeastSignificantBits());
+        } else if (value instanceof Enum<?> enumValue) {
+            out.writeByte(TAG_ENUM);
+            out.writeString(enumValue.getDeclaringClass().getName());
+            out.writeString(enumValue.name());
+        } else if (type == byte[].class) {
+            out.writeByte(TAG_BYTE_ARRAY);
+            out.writeVarInt(((byte[]) value).length);
+            out.writeBytes((byte[]) value, 0, ((byte[]) value).length);
+        } else if (type == Instant.class) {
+            out.writeByte(TAG_INSTANT);
+            out.writeZigZagLong(((Instant) value).getEpochSecond());
+            out.writeVarInt(((Instant) value).getNano());
+        } else if (type == LocalDate.class) {
+            out.writeByte(TAG_LOCAL_DATE);
+            out.writeZigZagLong(((LocalDate) value).toEpochDay());
+        } else if (type == LocalDateTime.class) {
+            out.writeByte(TAG_LOCAL_DATE_TIME);
+            out.writeZigZagLong(((LocalDateTime) value).toLocalDate().toEpochDay());
+            out.writeVarLong(((LocalDateTime) value).toLocalTime().toNanoOfDay());
+        } else if (value instanceof Collection<?> collection && getCollectionClass(collection) != null) {
+            out.writeByte(TAG_COLLECTION);
+            out.writeString(getCollectionClass(collection).getName());
+            out.writeVarInt(collection.size());
+            for (final Object element : collection) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Map<?, ?> map && getMapClass(map) != null) {
+            out.writeByte(TAG_MAP);
+            out.writeString(getMapClass(map).getName());
+            out.writeVarInt(map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof Object[] array && !type.getComponentType().isArray()) {
+            out.writeByte(TAG_OBJECT_ARRAY);
+            out.writeString(type.getComponentType().getName());
+            out.writeVarInt(array.length);
+            for (final Object element : array) {
+                writeValue(out, element);
+            }
+        } else {
+            final byte[] bytes = JavaSerializationCodec.serialize(value);
+            out.writeByte(TAG_SERIALIZED);
+            out.writeVarInt(bytes.length);
+            out.writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    private Object readValue(final Decoder in) throws IOException {
+        final byte tag = in.readByte();
+        return switch (tag) {
+            case TAG_NULL -> null;
+            case TAG_TRUE -> Boolean.TRUE;
+            case TAG_FALSE -> Boolean.FALSE;
+            case TAG_INT -> (int) in.readZigZagLong();
+            case TAG_LONG -> in.readZigZagLong();
+            case TAG_SHORT -> (short) in.readZigZagLong();
+            case TAG_BYTE -> in.readByte();
+            case TAG_CHAR -> (char) in.readVarInt();
+            case TAG_FLOAT -> Float.intBitsToFloat(in.readFixedInt());
+            case TAG_DOUBLE -> Double.longBitsToDouble(in.readFixedLong());
+            case TAG_STRING -> in.readString();
+            case TAG_DATE -> new Date(in.readZigZagLong());
+            case TAG_SQL_TIMESTAMP -> {
+                final var timestamp = new java.sql.Timestamp(in.readZigZagLong());
+                timestamp.setNanos(in.readVarInt());
+                yield timestamp;
+            }
+            case TAG_SQL_DATE -> new java.sql.Date(in.readZigZagLong());
+            case TAG_SQL_TIME -> new java.sql.Time(in.readZigZagLong());
+            case TAG_BIG_DECIMAL -> {
+                final int scale = (int) in.readZigZagLong();
+                yield new BigDecimal(readBigInteger(in), scale);
+            }
+            case TAG_BIG_INTEGER -> readBigInteger(in);
+            case TAG_UUID -> new UUID(in.readFixedLong(), in.readFixedLong());
+            case TAG_ENUM -> readEnum(in);
+            case TAG_CACHED_ID -> {
+                final String className = in.readString();
+                yield new CachedPC.CachedId(className, readValue(in));
+            }
+            case TAG_CACHED_PC -> readCachedPC(in);
+            case TAG_LONG_ID -> new LongId(resolveClass(in.readString()), in.readZigZagLong());
+            case TAG_INT_ID -> new IntId(resolveClass(in.readString()), (int) in.readZigZagLong());
+            case TAG_STRING_ID -> new StringId(resolveClass(in.readString()), in.readString());
+            case TAG_COLLECTION -> readCollection(in);
+            case TAG_MAP -> readMap(in);
+            case TAG_OBJECT_ARRAY -> {
+                final Class<?> componentType = resolveClass(in.readString());
+                final var array = (Object[]) java.lang.reflect.Array.newInstance(componentType, in.readLength());
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readValue(in);
+                }
+                yield array;
+            }
+            case TAG_BYTE_ARRAY -> {
+                final var bytes = new byte[in.readLength()];
+                in.readBytes(bytes);
+                yield bytes;
+            }
+            case TAG_INSTANT -> Instant.ofEpochSecond(in.readZigZagLong(), in.readVarInt());
+            case TAG_LOCAL_DATE -> LocalDate.ofEpochDay(in.readZigZagLong());
+            case TAG_LOCAL_DATE_TIME -> LocalDateTime.of(
+                    LocalDate.ofEpochDay(in.readZigZagLong()),
+                    java.time.LocalTime.ofNanoOfDay(in.readVarLong()));
+            case TAG_SERIALIZED -> {
+                final int length = in.readLength();
+                final Object value = JavaSerializationCodec.deserialize(in.buffer(), in.position(), length, clr);
+                in.skip(length);
+                yield value;
+            }
+            default -> throw new IOException("Unknown value tag %d".formatted(tag));
+        };
+    }
+
+    private static void writeBigInteger(final Encoder out, final BigInteger value) {
+        if (value.bitLength() < Long.SIZE) {
+            out.writeByte((byte) 0);
+            out.writeZigZagLong(value.longValue());
+        } else {
+            final byte[] bytes = value.toByteArray();
+            out.writeByte((byte) 1);
+            out.writeVarInt(bytes.length);
+            out.writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    private static BigInteger readBigInteger(final Decoder in) throws IOException {
+        if (in.readByte() == 0) {
+            return BigInteger.valueOf(in.readZigZagLong());
+        }
+
+        final var bytes = new byte[in.readLength()];
+        in.readBytes(bytes);
+        return new BigInteger(bytes);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private Object readEnum(final Decoder in) throws IOException {
+        final Class<?> enumClass = resolveClass(in.readString());
+        final String name = in.readString();
+        try {
+            return Enum.valueOf((Class<? extends Enum>) enumClass, name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown constant %s of %s".formatted(name, enumClass.getName()), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Collection<Object> readCollection(final Decoder in) throws IOException {
+        final var collection = (Collection<Object>) newInstance(resolveClass(in.readString()));
+        final int size = in.readLength();
+        for (int i = 0; i < size; i++) {
+            collection.add(readValue(in));
+        }
+        return collection;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Object, Object> readMap(final Decoder in) throws IOException {
+        final var map = (Map<Object, Object>) newInstance(resolveClass(in.readString()));
+        final int size = in.readLength();
+        for (int i = 0; i < size; i++) {
+            map.put(readValue(in), readValue(in));
+        }
+        return map;
+    }
+
+    /**
+     * @return The class to instantiate when decoding the given collection, or {@code null}
+     * when it can't be restored faithfully and has to be serialized instead
+     */
+    private Class<?> getCollectionClass(final Collection<?> collection) {
+        if (collection instanceof SortedSet<?> sortedSet) {
+            return sortedSet.comparator() == null ? TreeSet.class : null;
+        }
+        if (constructors.get(collection.getClass()) != null) {
+            return collection.getClass();
+        }
+
+        // Immutable and wrapper collections (e.g. List.of, Collections.unmodifiableList) lack public constructors.
+        if (collection instanceof List<?>) {
+            return ArrayList.class;
+        } else if (collection instanceof Set<?>) {
+            return LinkedHashSet.class;
+        }
+
+        return null;
+    }
+
+    private Class<?> getMapClass(final Map<?, ?> map) {
+        if (map instanceof SortedMap<?, ?> sortedMap) {
+            return sortedMap.comparator() == null ? TreeMap.class : null;
+        }
+        if (constructors.get(map.getClass()) != null) {
+            return map.getClass();
+        }
+
+        return HashMap.class;
+    }
+
+    private Object newInstance(final Class<?> type) throws IOException {
+        final Constructor<?> constructor = constructors.get(type);
+        if (constructor == null) {
+            throw new IOException("%s can't be instantiated".formatted(type.getName()));
+        }
+
+        try {
+            return constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Failed to instantiate %s".formatted(type.getName()), e);
+        }
+    }
+
+    private Class<?> resolveClass(final String className) throws IOException {
+        final Class<?> cachedClass = classesByName.get(className);
+        if (cachedClass != null) {
+            return cachedClass;
+        }
+
+        try {
+            final Class<?> type = clr.classForName(className);
+            classesByName.put(className, type);
+            return type;
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to resolve class %s".formatted(className), e);
+        }
+    }
+
+    private static final class Encoder {
+
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int position;
+        private final String[] strings = new String[MAX_STRING_TABLE_SIZE];
+        private int stringCount;
+
+        void reset() {
+            position = 0;
+            Arrays.fill(strings, 0, stringCount, null);
+            stringCount = 0;
+            if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                buffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        void writeByte(final byte value) {
+            ensureCapacity(1);
+            buffer[position++] = value;
+        }
+
+        void writeBytes(final byte[] bytes, final int offset, final int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        void writeVarInt(final int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeZigZagLong(final long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeFixedInt(final int value) {
+            ensureCapacity(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeFixedLong(final long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeString(final String value) {
+            final int hash = value.hashCode();
+            for (int i = 0; i < stringCount; i++) {
+                final String candidate = strings[i];
+                if (candidate == value || (candidate.hashCode() == hash && candidate.equals(value))) {
+                    writeVarInt(i << 1 | 1);
+                    return;
+                }
+            }
+            if (stringCount < strings.length) {
+                strings[stringCount++] = value;
+            }
+
+            final int length = value.length();
+            final int utf8Length = utf8Length(value);
+            writeVarInt(utf8Length << 1);
+            ensureCapacity(utf8Length);
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                        buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                        buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                        buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                    } else {
+                        // Same replacement as String#getBytes for malformed input.
+                        buffer[position++] = (byte) '?';
+                    }
+                } else {
+                    buffer[position++] = (byte) (0xE0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private static int utf8Length(final String value) {
+            final int length = value.length();
+            int utf8Length = length;
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    continue;
+                }
+                if (c < 0x800) {
+                    utf8Length += 1;
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        utf8Length += 2;
+                        i++;
+                    }
+                } else {
+                    utf8Length += 2;
+                }
+            }
+            return utf8Length;
+        }
+
+        private void ensureCapacity(final int additionalBytes) {
+            if (position + additionalBytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + additionalBytes));
+            }
+        }
+
+    }
+
+    private static final class Decoder {
+
+        private byte[] buffer;
+        private int position;
+        private final String[] strings = new String[MAX_STRING_TABLE_SIZE];
+        private int stringCount;
+
+        void reset(final byte[] bytes) {
+            buffer = bytes;
+            position = 0;
+            Arrays.fill(strings, 0, stringCount, null);
+            stringCount = 0;
+        }
+
+        byte[] buffer() {
+            return buffer;
+        }
+
+        int position() {
+            return position;
+        }
+
+        void skip(final int length) {
+            position += length;
+        }
+
+        byte readByte() {
+            return buffer[position++];
+        }
+
+        void readBytes(final byte[] bytes) {
+            System.arraycopy(buffer, position, bytes, 0, bytes.length);
+            position += bytes.length;
+        }
+
+        int readVarInt() throws IOException {
+            final long value = readVarLong();
+            if ((value >>> 32) != 0) {
+                throw new IOException("Var-int out of range");
+            }
+            return (int) value;
+        }
+
+        /**
+         * @return A length that is guaranteed not to exceed the remaining bytes,
+         * so that malformed input can't trigger huge allocations
+         */
+        int readLength() throws IOException {
+            final int length = readVarInt();
+            if (length < 0 || length > buffer.length - position) {
+                throw new IOException("Length %d exceeds remaining %d bytes".formatted(length, buffer.length - position));
+            }
+            return length;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed var-int");
+        }
+
+        long readZigZagLong() throws IOException {
+            final long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int readFixedInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        long readFixedLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        String readString() throws IOException {
+            final int header = readVarInt();
+            if ((header & 1) != 0) {
+                final int index = header >>> 1;
+                if (index >= stringCount) {
+                    throw new IOException("Unknown string reference %d".formatted(index));
+                }
+                return strings[index];
+            }
+
+            final int length = header >>> 1;
+            if (length > buffer.length - position) {
+                throw new IOException("String length %d exceeds remaining bytes".formatted(length));
+            }
+
+            final var value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            if (stringCount < strings.length) {
+                strings[stringCount++] = value;
+            }
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import org.datanucleus.cache.CachedPC;
+import org.datanucleus.identity.IdentityUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Java Flight Recorder events of {@link CaffeineLevel2Cache}.
+ * <p>
+ * Events are only populated when they're enabled in a running recording. Otherwise, the JIT
+ * eliminates their allocation, and the cost is limited to a check of the event's enabled state.
+ * Since gets and puts are very frequent, only one in {@value #SAMPLE_INTERVAL} of them is recorded.
+ */
+final class CacheEvents {
+
+    static final int SAMPLE_INTERVAL = 100;
+
+    private static final String NAME_PREFIX = "io.github.nscuro.datanucleus.cache.caffeine.";
+    private static final String CATEGORY = "DataNucleus";
+    private static final String SUBCATEGORY = "Level 2 Cache";
+
+    private static final Set<CaffeineLevel2Cache> CACHES = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static boolean statisticsHookAdded;
+
+    private CacheEvents() {
+    }
+
+    static void onGet(final Object oid, final CachedPC<?> pc) {
+        final var event = new GetEvent();
+        if (event.isEnabled() && isSampled()) {
+            event.objectClass = pc != null ? pc.getObjectClass().getName() : IdentityUtils.getTargetClassNameForIdentitySimple(oid);
+            event.hit = pc != null;
+            event.commit();
+        }
+    }
+
+    static void onPut(final CachedPC<?> pc) {
+        final var event = new PutEvent();
+        if (event.isEnabled() && isSampled()) {
+            event.objectClass = pc.getObjectClass().getName();
+            event.commit();
+        }
+    }
+
+    static BulkOperationEvent beginBulkOperation() {
+        final var event = new BulkOperationEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitBulkOperation(final BulkOperationEvent event, final String operation, final int objectCount) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.objectCount = objectCount;
+            event.commit();
+        }
+    }
+
+    private static boolean isSampled() {
+        return ThreadLocalRandom.current().nextInt(SAMPLE_INTERVAL) == 0;
+    }
+
+    /**
+     * Includes the given cache in periodic {@link StatisticsEvent}s. Caches are referenced weakly.
+     */
+    static void register(final CaffeineLevel2Cache cache) {
+        synchronized (CACHES) {
+            CACHES.add(cache);
+            if (!statisticsHookAdded) {
+                FlightRecorder.addPeriodicEvent(StatisticsEvent.class, CacheEvents::emitStatistics);
+                statisticsHookAdded = true;
+            }
+        }
+    }
+
+    static void unregister(final CaffeineLevel2Cache cache) {
+        CACHES.remove(cache);
+    }
+
+    private static void emitStatistics() {
+        final List<CaffeineLevel2Cache> caches;
+        synchronized (CACHES) {
+            caches = new ArrayList<>(CACHES);
+        }
+
+        for (final CaffeineLevel2Cache cache : caches) {
+            final CacheStats stats = cache.getStats();
+
+            final var event = new StatisticsEvent();
+            event.cacheName = cache.getCacheName();
+            event.estimatedSize = cache.getEstimatedSize();
+            event.hitCount = stats.hitCount();
+            event.missCount = stats.missCount();
+            event.hitRatio = stats.hitRate();
+            event.evictionCount = stats.evictionCount();
+            event.commit();
+        }
+    }
+
+    @Name(NAME_PREFIX + "Get")
+    @Label("Cache Get")
+    @Category({CATEGORY, SUBCATEGORY})
+    @Description("A sampled lookup of an object in the level 2 cache")
+    @StackTrace(false)
+    static final class GetEvent extends Event {
+
+        @Label("Object Class")
+        String objectClass;
+
+        @Label("Hit")
+        boolean hit;
+
+    }
+
+    @Name(NAME_PREFIX + "Put")
+    @Label("Cache Put")
+    @Category({CATEGORY, SUBCATEGORY})
+    @Description("A sampled put of an object into the level 2 cache")
+    @StackTrace(false)
+    static final class PutEvent extends Event {
+
+        @Label("Object Class")
+        String objectClass;
+
+    }
+
+    @Name(NAME_PREFIX + "ClassEviction")
+    @Label("Cache Class Eviction")
+    @Category({CATEGORY, SUBCATEGORY})
+    @Description("Eviction of all objects of a class from the level 2 cache. "
+                 + "Objects evicted lazily (epoch mode) are not counted.")
+    static final class ClassEvictionEvent extends Event {
+
+        @Label("Object Class")
+        String objectClass;
+
+        @Label("Subclasses")
+        boolean subclasses;
+
+        @Label("Entries Removed")
+        long entriesRemoved;
+
+    }
+
+    @Name(NAME_PREFIX + "BulkOperation")
+    @Label("Cache Bulk Operation")
+    @Category({CATEGORY, SUBCATEGORY})
+    @Description("A bulk get, put, or eviction of objects in the level 2 cache")
+    @StackTrace(false)
+    static final class BulkOperationEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Object Count")
+        int objectCount;
+
+    }
+
+    @Name(NAME_PREFIX + "Statistics")
+    @Label("Cache Statistics")
+    @Category({CATEGORY, SUBCATEGORY})
+    @Description("Periodic snapshot of level 2 cache statistics. Hit and miss counts require statistics to be enabled.")
+    @Period("10 s")
+    @StackTrace(false)
+    static final class StatisticsEvent extends Event {
+
+        @Label("Cache Name")
+        String cacheName;
+
+        @Label("Estimated Size")
+        long estimatedSize;
+
+        @Label("Hit Count")
+        long hitCount;
+
+        @Label("Miss Count")
+        long missCount;
+
+        @Label("Hit Ratio")
+        double hitRatio;
+
+        @Label("Eviction Count")
+        long evictionCount;
+
+    }
+
+}
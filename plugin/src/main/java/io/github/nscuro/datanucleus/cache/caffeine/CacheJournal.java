@@ -0,0 +1,686 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.cache.CachedPC;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only journal of puts and evictions, from which the cache is rebuilt on startup.
+ * <p>
+ * Like the {@link AccessTraceRecorder}, recording threads only claim a slot in a bounded ring buffer
+ * and never block. A dedicated writer thread encodes the records, and appends them in batches to the
+ * current segment of the journal. When the buffer is full, records are dropped. Since a dropped
+ * eviction would otherwise resurrect outdated objects, the writer then appends an eviction of all
+ * objects, once the records preceding the dropped one are written.
+ * <p>
+ * Segments are rolled over by size and age. Sealed segments are periodically compacted into a single
+ * segment that only holds the latest put of each object, and puts that are older than the maximum
+ * replay age are dropped. The same compaction is performed on startup, and its result is replayed
+ * into the cache.
+ * <p>
+ * Every record is checksummed. An incomplete record at the end of the last segment, as left behind
+ * by a crash, is ignored. A corrupt record in any other segment discards everything that precedes it.
+ * Records that were still buffered when the process died are lost.
+ */
+final class CacheJournal implements AutoCloseable {
+
+    static final int MAGIC = 0x444E434A;
+    static final byte VERSION = 1;
+
+    record RecoveredEntry(Object key, CachedPC<?> pc, long timestampMillis) {
+    }
+
+    private record LiveEntry(byte[] pcBytes, BinaryCachedPCCodec codec, String className, long timestampMillis) {
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheJournal.class);
+    private static final byte TYPE_SCHEMA = 0;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_EVICT = 2;
+    private static final byte TYPE_EVICT_CLASS = 3;
+    private static final byte TYPE_EVICT_ALL = 4;
+    private static final int BUFFER_CAPACITY = 1 << 16;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final int SEGMENT_HEADER_BYTES = 4 + 1;
+    private static final int RECORD_HEADER_BYTES = 4 + 4;
+    private static final int RECORD_PREFIX_BYTES = 1 + 8;
+    // Segments are mapped for replay, which limits them to 2 GiB.
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    // Idle writers are woken by the first record, so this only bounds the delay of missed wake-ups and segment roll-overs.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long PUBLICATION_GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("journal-(\\d{16})\\.log");
+
+    private final Path directory;
+    private final Supplier<BinaryCachedPCCodec> codecFactory;
+    private final long maxSegmentSize;
+    private final long maxReplayAgeMillis;
+    private final long compactionIntervalMillis;
+
+    // See AccessTraceRecorder for how slots are claimed and published, and how the idle writer is woken.
+    private final byte[] types = new byte[BUFFER_CAPACITY];
+    private final long[] timestamps = new long[BUFFER_CAPACITY];
+    private final Object[] keys = new Object[BUFFER_CAPACITY];
+    private final Object[] payloads = new Object[BUFFER_CAPACITY];
+    private final AtomicLongArray published = new AtomicLongArray(BUFFER_CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean writerIdle = new AtomicBoolean();
+
+    private Thread writerThread;
+    private ScheduledExecutorService compactor;
+    private volatile boolean running;
+    private volatile long activeSequence = -1;
+    private long nextSequence;
+    private SegmentWriter activeSegment;
+    private long activeSegmentOpenedAtMillis;
+    private long handledDrops;
+
+    /**
+     * @param codecFactory            Supplier of new codecs, since every segment carries the schemas of its own codec
+     * @param maxSegmentSize          Size in bytes after which a segment is sealed
+     * @param maxReplayAgeMillis      Maximum age of puts that are replayed
+     * @param compactionIntervalMillis Interval of compactions, which is also the maximum age of a segment before it is sealed
+     */
+    CacheJournal(final Path directory, final Supplier<BinaryCachedPCCodec> codecFactory, final long maxSegmentSize,
+                 final long maxReplayAgeMillis, final long compactionIntervalMillis) {
+        this.directory = directory.toAbsolutePath();
+        this.codecFactory = codecFactory;
+        this.maxSegmentSize = Math.min(maxSegmentSize, MAX_SEGMENT_SIZE);
+        this.maxReplayAgeMillis = maxReplayAgeMillis;
+        this.compactionIntervalMillis = compactionIntervalMillis;
+    }
+
+    /**
+     * Compacts the existing journal, and returns the objects it holds. Must be invoked before {@link #start()}.
+     *
+     * @param limit Maximum number of objects to return. The most recently put objects are preferred.
+     * @return The objects, ordered from the least to the most recently put
+     */
+    List<RecoveredEntry> recover(final int limit) throws IOException {
+        Files.createDirectories(directory);
+
+        final List<Path> segments = listSegments();
+        if (segments.isEmpty()) {
+            return List.of();
+        }
+
+        final List<RecoveredEntry> entries = decode(merge(segments, System.currentTimeMillis()));
+        replaceSegments(segments, entries);
+        nextSequence = getSequence(segments.get(segments.size() - 1)) + 1;
+
+        return entries.size() > limit ? entries.subList(entries.size() - limit, entries.size()) : entries;
+    }
+
+    void start() throws IOException {
+        openActiveSegment();
+        running = true;
+
+        writerThread = new Thread(this::runWriter, "caffeine-l2-journal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "caffeine-l2-journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Failed to compact journal {}", directory, e);
+            }
+        }, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void recordPut(final Object key, final CachedPC<?> pc) {
+        record(TYPE_PUT, key, pc);
+    }
+
+    void recordEvict(final Object key) {
+        record(TYPE_EVICT, key, null);
+    }
+
+    void recordEvictClass(final String className) {
+        record(TYPE_EVICT_CLASS, null, className);
+    }
+
+    void recordEvictAll() {
+        record(TYPE_EVICT_ALL, null, null);
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void record(final byte type, final Object key, final Object payload) {
+        if (!running) {
+            return;
+        }
+
+        final long timestamp = System.currentTimeMillis();
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= BUFFER_CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        final int slot = (int) (sequence & (BUFFER_CAPACITY - 1));
+        types[slot] = type;
+        timestamps[slot] = timestamp;
+        keys[slot] = key;
+        payloads[slot] = payload;
+        published.lazySet(slot, sequence + 1);
+
+        if (writerIdle.get() && writerIdle.compareAndSet(true, false)) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            try {
+                compactor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        running = false;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (getDroppedCount() > 0) {
+            LOGGER.warn("Dropped {} records of journal {} because the writer could not keep up",
+                    getDroppedCount(), directory);
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (running) {
+                if (drain() == 0) {
+                    activeSegment.flush();
+                    if (activeSegment.size() > SEGMENT_HEADER_BYTES
+                        && System.currentTimeMillis() - activeSegmentOpenedAtMillis >= compactionIntervalMillis) {
+                        rollOver();
+                    }
+                    writerIdle.set(true);
+                    if (!isHeadPublished()) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    writerIdle.set(false);
+                }
+            }
+
+            // Records claimed before journaling was stopped are published shortly after.
+            LockSupport.parkNanos(PUBLICATION_GRACE_NANOS);
+            drain();
+            activeSegment.close();
+        } catch (IOException | RuntimeException e) {
+            running = false;
+            LOGGER.error("Failed to write journal {}; Journaling was stopped, and the journal is discarded", directory, e);
+            discard();
+        }
+    }
+
+    private boolean isHeadPublished() {
+        final long sequence = head.get();
+        return published.get((int) (sequence & (BUFFER_CAPACITY - 1))) == sequence + 1;
+    }
+
+    private int drain() throws IOException {
+        // Drops are read before the tail, so that all records preceding them are drained below.
+        final long drops = dropped.get();
+        final long end = tail.get();
+
+        int drained = 0;
+        long sequence = head.get();
+        while (sequence < end) {
+            final int slot = (int) (sequence & (BUFFER_CAPACITY - 1));
+            if (published.get(slot) != sequence + 1) {
+                // The slot was claimed, but is still being written.
+                break;
+            }
+
+            final byte type = types[slot];
+            final long timestamp = timestamps[slot];
+            final Object key = keys[slot];
+            final Object payload = payloads[slot];
+            keys[slot] = null;
+            payloads[slot] = null;
+            head.lazySet(++sequence);
+
+            switch (type) {
+                case TYPE_PUT -> activeSegment.writePut(key, (CachedPC<?>) payload, timestamp);
+                case TYPE_EVICT -> activeSegment.writeEvict(key, timestamp);
+                case TYPE_EVICT_CLASS -> activeSegment.writeEvictClass((String) payload, timestamp);
+                default -> activeSegment.writeEvictAll(timestamp);
+            }
+            if (activeSegment.size() >= maxSegmentSize) {
+                rollOver();
+            }
+            drained++;
+        }
+
+        if (sequence == end && drops > handledDrops) {
+            activeSegment.writeEvictAll(System.currentTimeMillis());
+            handledDrops = drops;
+        }
+
+        return drained;
+    }
+
+    private void rollOver() throws IOException {
+        activeSegment.close();
+        openActiveSegment();
+    }
+
+    private void openActiveSegment() throws IOException {
+        activeSegment = new SegmentWriter(getSegmentFile(nextSequence), codecFactory.get());
+        activeSegmentOpenedAtMillis = System.currentTimeMillis();
+
+        // Segments with a lower sequence are sealed from here on, and may be compacted.
+        activeSequence = nextSequence++;
+    }
+
+    /**
+     * Compacts all sealed segments into one.
+     */
+    void compact() throws IOException {
+        final long sequence = activeSequence;
+        final List<Path> sealedSegments = listSegments().stream()
+                .filter(segment -> getSequence(segment) < sequence)
+                .toList();
+        if (sealedSegments.size() < 2) {
+            return;
+        }
+
+        final List<RecoveredEntry> entries = decode(merge(sealedSegments, System.currentTimeMillis()));
+        replaceSegments(sealedSegments, entries);
+        LOGGER.debug("Compacted {} segments of journal {} into {} entries", sealedSegments.size(), directory, entries.size());
+    }
+
+    /**
+     * Replays the given segments.
+     *
+     * @return The latest put of each object that was not evicted afterwards, ordered from the least to the most recent
+     */
+    private LinkedHashMap<Object, LiveEntry> merge(final List<Path> segments, final long nowMillis) throws IOException {
+        final var live = new LinkedHashMap<Object, LiveEntry>();
+        for (int i = 0; i < segments.size(); i++) {
+            replay(segments.get(i), live, i == segments.size() - 1);
+        }
+
+        live.values().removeIf(entry -> nowMillis - entry.timestampMillis() > maxReplayAgeMillis);
+        return live;
+    }
+
+    private void replay(final Path segment, final Map<Object, LiveEntry> live, final boolean isLastSegment) throws IOException {
+        final ByteBuffer buffer;
+        try (final FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.size() <= Integer.MAX_VALUE
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    : ByteBuffer.allocate(0);
+        }
+
+        if (buffer.limit() < SEGMENT_HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+            if (!isLastSegment || buffer.limit() >= SEGMENT_HEADER_BYTES) {
+                LOGGER.warn("Journal segment {} is corrupt or of an unsupported version; Discarding all preceding entries", segment);
+                live.clear();
+            }
+            return;
+        }
+
+        final BinaryCachedPCCodec codec = codecFactory.get();
+        final var classNames = new ArrayList<String>();
+        final var crc = new CRC32C();
+        int position = SEGMENT_HEADER_BYTES;
+        while (position < buffer.limit()) {
+            final int length = buffer.limit() - position >= RECORD_HEADER_BYTES ? buffer.getInt(position) : -1;
+            if (length < RECORD_PREFIX_BYTES || length > buffer.limit() - position - RECORD_HEADER_BYTES) {
+                break;
+            }
+
+            final int bodyOffset = position + RECORD_HEADER_BYTES;
+            crc.reset();
+            crc.update(buffer.duplicate().limit(bodyOffset + length).position(bodyOffset));
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+
+            try {
+                apply(buffer, bodyOffset, length, codec, classNames, live);
+            } catch (IOException | RuntimeException e) {
+                break;
+            }
+            position = bodyOffset + length;
+        }
+
+        if (position < buffer.limit()) {
+            if (isLastSegment) {
+                LOGGER.info("Ignoring incomplete records at the end of journal segment {}", segment);
+            } else {
+                LOGGER.warn("Journal segment {} is corrupt; Discarding all preceding entries", segment);
+                live.clear();
+            }
+        }
+    }
+
+    private static void apply(final ByteBuffer buffer, final int offset, final int length, final BinaryCachedPCCodec codec,
+                              final List<String> classNames, final Map<Object, LiveEntry> live) throws IOException {
+        final byte type = buffer.get(offset);
+        final long timestampMillis = buffer.getLong(offset + 1);
+        final int payloadOffset = offset + RECORD_PREFIX_BYTES;
+        final int payloadLength = length - RECORD_PREFIX_BYTES;
+
+        switch (type) {
+            case TYPE_SCHEMA -> {
+                final int id = buffer.getInt(payloadOffset);
+                final long fingerprint = buffer.getLong(payloadOffset + 4);
+                final String className = getString(buffer, payloadOffset + 12, payloadLength - 12);
+                classNames.add(codec.restoreSchema(id, className, fingerprint) ? className : null);
+            }
+            case TYPE_PUT -> {
+                final int schemaId = buffer.getInt(payloadOffset);
+                final int keyLength = buffer.getInt(payloadOffset + 4);
+                final Object key = codec.decodeValue(getBytes(buffer, payloadOffset + 8, keyLength));
+                final int pcOffset = payloadOffset + 8 + keyLength;
+                final String className = schemaId < classNames.size() ? classNames.get(schemaId) : null;
+
+                // Remove first, so that the entry moves to the end.
+                live.remove(key);
+                if (className != null) {
+                    live.put(key, new LiveEntry(getBytes(buffer, pcOffset, payloadOffset + payloadLength - pcOffset),
+                            codec, className, timestampMillis));
+                }
+            }
+            case TYPE_EVICT -> live.remove(codec.decodeValue(getBytes(buffer, payloadOffset, payloadLength)));
+            case TYPE_EVICT_CLASS -> {
+                final String className = getString(buffer, payloadOffset, payloadLength);
+                live.values().removeIf(entry -> className.equals(entry.className()));
+            }
+            case TYPE_EVICT_ALL -> live.clear();
+            default -> throw new IOException("Unknown record type %d".formatted(type));
+        }
+    }
+
+    private static List<RecoveredEntry> decode(final Map<Object, LiveEntry> live) {
+        final var entries = new ArrayList<RecoveredEntry>(live.size());
+        live.forEach((key, entry) -> {
+            try {
+                entries.add(new RecoveredEntry(key, entry.codec().decode(entry.pcBytes()), entry.timestampMillis()));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Failed to decode {} from journal", key, e);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Replaces the given segments with a single one holding the given entries. The new segment takes the place
+     * of the last given segment, and starts with an eviction of all objects, so that segments which could not
+     * be deleted afterwards have no effect.
+     */
+    private void replaceSegments(final List<Path> segments, final List<RecoveredEntry> entries) throws IOException {
+        final Path target = segments.get(segments.size() - 1);
+        final Path tempFile = target.resolveSibling(target.getFileName() + ".compacting");
+        final var writer = new SegmentWriter(tempFile, codecFactory.get());
+        try {
+            writer.writeEvictAll(System.currentTimeMillis());
+            for (final RecoveredEntry entry : entries) {
+                writer.writePut(entry.key(), entry.pc(), entry.timestampMillis());
+            }
+        } finally {
+            writer.close();
+        }
+
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (final Path segment : segments.subList(0, segments.size() - 1)) {
+            Files.deleteIfExists(segment);
+        }
+    }
+
+    private void discard() {
+        try {
+            for (final Path segment : listSegments()) {
+                Files.deleteIfExists(segment);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to discard journal {}; Delete it before the next start", directory, e);
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files
+                    .filter(file -> SEGMENT_FILE_NAME.matcher(file.getFileName().toString()).matches())
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private Path getSegmentFile(final long sequence) {
+        return directory.resolve("journal-%016d.log".formatted(sequence));
+    }
+
+    private static long getSequence(final Path segment) {
+        final Matcher matcher = SEGMENT_FILE_NAME.matcher(segment.getFileName().toString());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a journal segment: " + segment);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private static byte[] getBytes(final ByteBuffer buffer, final int offset, final int length) {
+        final var bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+
+    private static String getString(final ByteBuffer buffer, final int offset, final int length) {
+        return new String(getBytes(buffer, offset, length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends checksummed records to a segment, through a buffer that is written in batches.
+     */
+    private static final class SegmentWriter {
+
+        private final Path file;
+        private final BinaryCachedPCCodec codec;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final CRC32C crc = new CRC32C();
+        private ByteBuffer record;
+        private int writtenSchemas;
+        private int recordStart;
+        private long size;
+
+        private SegmentWriter(final Path file, final BinaryCachedPCCodec codec) throws IOException {
+            this.file = file;
+            this.codec = codec;
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+            buffer.putInt(MAGIC).put(VERSION);
+            size = SEGMENT_HEADER_BYTES;
+        }
+
+        void writePut(final Object key, final CachedPC<?> pc, final long timestampMillis) throws IOException {
+            final byte[] keyBytes = encodeKey(key);
+            if (keyBytes == null) {
+                // Keys are encoded deterministically, so no earlier put of this key could have been written either.
+                return;
+            }
+
+            final byte[] pcBytes;
+            try {
+                pcBytes = codec.encode(pc);
+            } catch (IOException | RuntimeException e) {
+                // An earlier put of this object must not be replayed instead.
+                LOGGER.debug("Failed to encode {} for journal {}; Recording an eviction instead", key, file, e);
+                writeRecord(TYPE_EVICT, timestampMillis, keyBytes.length).put(keyBytes);
+                endRecord();
+                return;
+            }
+
+            final List<BinaryCachedPCCodec.ClassSchema> schemas = codec.getSchemas();
+            for (; writtenSchemas < schemas.size(); writtenSchemas++) {
+                final BinaryCachedPCCodec.ClassSchema schema = schemas.get(writtenSchemas);
+                final byte[] classNameBytes = schema.type().getName().getBytes(StandardCharsets.UTF_8);
+                writeRecord(TYPE_SCHEMA, timestampMillis, 4 + 8 + classNameBytes.length)
+                        .putInt(schema.id())
+                        .putLong(schema.fingerprint())
+                        .put(classNameBytes);
+                endRecord();
+            }
+
+            writeRecord(TYPE_PUT, timestampMillis, 4 + 4 + keyBytes.length + pcBytes.length)
+                    .putInt(codec.getSchema(pc.getObjectClass()).id())
+                    .putInt(keyBytes.length)
+                    .put(keyBytes)
+                    .put(pcBytes);
+            endRecord();
+        }
+
+        void writeEvict(final Object key, final long timestampMillis) throws IOException {
+            final byte[] keyBytes = encodeKey(key);
+            if (keyBytes != null) {
+                writeRecord(TYPE_EVICT, timestampMillis, keyBytes.length).put(keyBytes);
+                endRecord();
+            }
+        }
+
+        void writeEvictClass(final String className, final long timestampMillis) throws IOException {
+            final byte[] classNameBytes = className.getBytes(StandardCharsets.UTF_8);
+            writeRecord(TYPE_EVICT_CLASS, timestampMillis, classNameBytes.length).put(classNameBytes);
+            endRecord();
+        }
+
+        void writeEvictAll(final long timestampMillis) throws IOException {
+            writeRecord(TYPE_EVICT_ALL, timestampMillis, 0);
+            endRecord();
+        }
+
+        long size() {
+            return size;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Flushes, and forces the segment to the storage device, so that it is complete once sealed.
+         */
+        void close() throws IOException {
+            try {
+                flush();
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+
+        private byte[] encodeKey(final Object key) {
+            try {
+                return codec.encodeValue(key);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Failed to encode key {} for journal {}", key, file, e);
+                return null;
+            }
+        }
+
+        private ByteBuffer writeRecord(final byte type, final long timestampMillis, final int payloadLength) throws IOException {
+            final int recordLength = RECORD_HEADER_BYTES + RECORD_PREFIX_BYTES + payloadLength;
+            if (buffer.remaining() < recordLength) {
+                flush();
+            }
+
+            // Records that exceed the buffer are written on their own.
+            record = recordLength <= buffer.capacity() ? buffer : ByteBuffer.allocate(recordLength);
+            recordStart = record.position();
+            record.position(recordStart + RECORD_HEADER_BYTES);
+            return record.put(type).putLong(timestampMillis);
+        }
+
+        private void endRecord() throws IOException {
+            final int bodyOffset = recordStart + RECORD_HEADER_BYTES;
+            final int bodyLength = record.position() - bodyOffset;
+            crc.reset();
+            crc.update(record.duplicate().limit(record.position()).position(bodyOffset));
+            record.putInt(recordStart, bodyLength).putInt(recordStart + 4, (int) crc.getValue());
+            size += RECORD_HEADER_BYTES + bodyLength;
+
+            if (record != buffer) {
+                record.flip();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+
+/**
+ * Owns the maximum size or weight of a cache, which is changed at runtime by adaptive sizing, memory pressure, and JMX.
+ * <p>
+ * Adaptive sizing and JMX change the target maximum. Memory pressure instead limits the effective maximum
+ * temporarily, without going below a floor. Once the pressure clears, the effective maximum returns to the
+ * target, including any changes that were made to it in the meantime.
+ */
+final class CacheMaximum {
+
+    static final double DEFAULT_FLOOR_RATIO = 0.1;
+
+    private final Policy.Eviction<?, ?> eviction;
+    private final long floor;
+    private long target;
+    private long limit = Long.MAX_VALUE;
+
+    CacheMaximum(final Cache<?, ?> cache, final long floor) {
+        this.eviction = cache.policy().eviction()
+                .orElseThrow(() -> new IllegalArgumentException("The cache is unbounded, and can't be resized"));
+        this.floor = floor;
+        this.target = eviction.getMaximum();
+    }
+
+    CacheMaximum(final Cache<?, ?> cache) {
+        this(cache, Math.max(1, (long) (cache.policy().eviction().map(Policy.Eviction::getMaximum).orElse(0L) * DEFAULT_FLOOR_RATIO)));
+    }
+
+    synchronized long getTarget() {
+        return target;
+    }
+
+    synchronized void setTarget(final long target) {
+        this.target = target;
+        apply();
+    }
+
+    /**
+     * Shrinks the effective maximum by the given factor, but not below the floor, until {@link #lift()} is called.
+     */
+    synchronized void limit(final double factor) {
+        limit = Math.max(floor, (long) (Math.min(limit, target) * factor));
+        apply();
+    }
+
+    synchronized void lift() {
+        limit = Long.MAX_VALUE;
+        apply();
+    }
+
+    synchronized boolean isLimited() {
+        return limit != Long.MAX_VALUE;
+    }
+
+    long getFloor() {
+        return floor;
+    }
+
+    boolean isWeighted() {
+        return eviction.isWeighted();
+    }
+
+    private void apply() {
+        eviction.setMaximum(Math.min(target, limit));
+    }
+
+}
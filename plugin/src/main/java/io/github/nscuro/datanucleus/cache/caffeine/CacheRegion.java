@@ -0,0 +1,149 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CaffeineSpec;
+import org.datanucleus.exceptions.NucleusUserException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_REGIONS;
+
+/**
+ * A dedicated Caffeine cache for a persistent class, or all persistent classes of a package.
+ * <p>
+ * Regions are configured as a semicolon-separated list of {@code <selector>=<spec>} pairs, where
+ * the selector is either a fully qualified class name, or a package name followed by {@code .*},
+ * and the spec uses the {@link CaffeineSpec} format. For example:
+ * <pre>
+ * com.acme.model.AuditLog=maximumSize=1000,expireAfterWrite=30s;com.acme.reference.*=maximumSize=50000,expireAfterAccess=1h
+ * </pre>
+ */
+final class CacheRegion {
+
+    private static final String PACKAGE_WILDCARD = ".*";
+
+    private final String selector;
+    private final CaffeineSpec spec;
+    private final Set<String> optionKeys;
+    private Cache<Object, Object> cache;
+
+    private CacheRegion(final String selector, final CaffeineSpec spec) {
+        this.selector = selector;
+        this.spec = spec;
+        this.optionKeys = Arrays.stream(spec.toParsableString().split(","))
+                .filter(option -> !option.isBlank())
+                .map(CacheRegion::getOptionKey)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    static List<CacheRegion> parse(final String value) {
+        if (value == null || value.isBlank()) {
+            return List.of();
+        }
+
+        final var regions = new ArrayList<CacheRegion>();
+        for (final String definition : value.split(";")) {
+            if (definition.isBlank()) {
+                continue;
+            }
+
+            final int separatorIndex = definition.indexOf('=');
+            if (separatorIndex <= 0) {
+                throw new NucleusUserException("Invalid cache region definition \"%s\" in %s; expected <selector>=<spec>"
+                        .formatted(definition.trim(), PROPERTY_CACHE_L2_CAFFEINE_REGIONS));
+            }
+
+            final String selector = definition.substring(0, separatorIndex).trim();
+            final CaffeineSpec spec;
+            try {
+                spec = CaffeineSpec.parse(definition.substring(separatorIndex + 1).trim());
+            } catch (IllegalArgumentException e) {
+                throw new NucleusUserException("Invalid spec for cache region %s in %s"
+                        .formatted(selector, PROPERTY_CACHE_L2_CAFFEINE_REGIONS), e);
+            }
+
+            regions.add(new CacheRegion(selector, spec));
+        }
+
+        return List.copyOf(regions);
+    }
+
+    String getSelector() {
+        return selector;
+    }
+
+    CaffeineSpec getSpec() {
+        return spec;
+    }
+
+    /**
+     * @return The spec of this region without {@code recordStats}, so that a custom stats counter can be set.
+     */
+    CaffeineSpec getSpecWithoutStats() {
+        return CaffeineSpec.parse(Arrays.stream(spec.toParsableString().split(","))
+                .filter(option -> !option.isBlank() && !getOptionKey(option).equals("recordStats"))
+                .collect(Collectors.joining(",")));
+    }
+
+    boolean isWeighted() {
+        return optionKeys.contains("maximumWeight");
+    }
+
+    boolean hasExpiry() {
+        return optionKeys.contains("expireAfterWrite") || optionKeys.contains("expireAfterAccess");
+    }
+
+    boolean isRecordingStats() {
+        return optionKeys.contains("recordStats");
+    }
+
+    private static String getOptionKey(final String option) {
+        final int separatorIndex = option.indexOf('=');
+        return (separatorIndex >= 0 ? option.substring(0, separatorIndex) : option).trim();
+    }
+
+    Cache<Object, Object> getCache() {
+        return cache;
+    }
+
+    void setCache(final Cache<Object, Object> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return The specificity with which this region matches the given class name,
+     * or {@code -1} when it does not match at all. Exact class matches always win
+     * over package matches, and deeper packages win over their parents.
+     */
+    int match(final String className) {
+        if (selector.endsWith(PACKAGE_WILDCARD)) {
+            final String packagePrefix = selector.substring(0, selector.length() - 1);
+            return className.startsWith(packagePrefix) ? packagePrefix.length() : -1;
+        }
+
+        return selector.equals(className) ? Integer.MAX_VALUE : -1;
+    }
+
+}
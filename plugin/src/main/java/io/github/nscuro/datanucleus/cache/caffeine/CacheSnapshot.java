@@ -0,0 +1,378 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.cache.CachedPC;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A snapshot of cached objects in a file, which is memory-mapped when read.
+ * <p>
+ * Opening a snapshot only decodes the identities of its objects. The objects themselves are decoded
+ * lazily, when they're first taken from the snapshot. Objects are excluded when their class no longer
+ * exists or its fields have changed, when they would have expired in the meantime, or when the snapshot
+ * as a whole is older than a given maximum age. Unless configured otherwise via
+ * {@value CaffeineCachePropertyNames#PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_MAX_AGE_MILLIS}, the maximum age
+ * is 10 minutes, like the maximum replay age of a {@link CacheJournal}.
+ * <p>
+ * The file consists of a header, the entries, and the schemas of the {@link BinaryCachedPCCodec} that
+ * encoded them. Snapshots are written to a temporary file first, and moved into place once complete,
+ * so that a crash while writing can't leave a truncated snapshot behind.
+ */
+final class CacheSnapshot {
+
+    static final int MAGIC = 0x444E4353;
+    static final byte VERSION = 1;
+
+    private record Location(int schemaId, int offset, int length, long expiresAtMillis) {
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheSnapshot.class);
+    private static final int HEADER_SIZE = Integer.BYTES + Byte.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Mapped buffers are indexed by int.
+    private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private final BinaryCachedPCCodec codec;
+    private final MappedByteBuffer buffer;
+    private final String[] classNames;
+    private final Map<Object, Location> index;
+
+    private CacheSnapshot(final BinaryCachedPCCodec codec, final MappedByteBuffer buffer,
+                          final String[] classNames, final Map<Object, Location> index) {
+        this.codec = codec;
+        this.buffer = buffer;
+        this.classNames = classNames;
+        this.index = index;
+    }
+
+    /**
+     * @param codec       A codec without any schemas yet, which is used to decode the snapshot's objects
+     * @param maxAgeMillis Maximum age of the snapshot, or {@code 0} for no limit
+     * @throws IOException When the file can't be read, or is not a snapshot of a supported version
+     */
+    static CacheSnapshot open(final Path file, final BinaryCachedPCCodec codec, final long maxAgeMillis) throws IOException {
+        final MappedByteBuffer buffer;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > MAX_FILE_SIZE) {
+                throw new IOException("Unexpected size of %d bytes".formatted(channel.size()));
+            }
+
+            // The mapping remains valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a cache snapshot");
+        }
+        if (buffer.get(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version %d".formatted(buffer.get(4)));
+        }
+
+        final long createdAtMillis = buffer.getLong(5);
+        final int entryCount = buffer.getInt(13);
+        final long schemaTableOffset = buffer.getLong(17);
+
+        final long nowMillis = System.currentTimeMillis();
+        final var index = new ConcurrentHashMap<Object, Location>(Math.max(16, (int) (entryCount / 0.75f) + 1));
+        if (maxAgeMillis > 0 && nowMillis - createdAtMillis > maxAgeMillis) {
+            LOGGER.info("Ignoring snapshot {}, which is older than {}ms", file, maxAgeMillis);
+            return new CacheSnapshot(codec, buffer, new String[0], index);
+        }
+
+        try {
+            final String[] classNames = readSchemas(buffer, Math.toIntExact(schemaTableOffset), codec);
+
+            int position = HEADER_SIZE;
+            for (int i = 0; i < entryCount; i++) {
+                final int schemaId = buffer.getInt(position);
+                final long expiresAtMillis = buffer.getLong(position + 4);
+                final int keyLength = buffer.getInt(position + 12);
+                final int keyOffset = position + 16;
+                final int valueLength = buffer.getInt(keyOffset + keyLength);
+                final int valueOffset = keyOffset + keyLength + 4;
+                position = valueOffset + valueLength;
+
+                if (schemaId < 0 || schemaId >= classNames.length || classNames[schemaId] == null || expiresAtMillis <= nowMillis) {
+                    continue;
+                }
+
+                final var keyBytes = new byte[keyLength];
+                buffer.get(keyOffset, keyBytes);
+                final Object key;
+                try {
+                    key = codec.decodeValue(keyBytes);
+                } catch (IOException e) {
+                    LOGGER.debug("Skipping entry with undecodable key in snapshot {}", file, e);
+                    continue;
+                }
+
+                index.put(key, new Location(schemaId, valueOffset, valueLength, expiresAtMillis));
+            }
+
+            LOGGER.info("Opened snapshot {} with {} of {} entries", file, index.size(), entryCount);
+            return new CacheSnapshot(codec, buffer, classNames, index);
+        } catch (IndexOutOfBoundsException | ArithmeticException e) {
+            throw new IOException("Malformed snapshot", e);
+        }
+    }
+
+    /**
+     * @return The class names by schema id, where classes that changed since the snapshot was written are {@code null}
+     */
+    private static String[] readSchemas(final ByteBuffer buffer, final int offset, final BinaryCachedPCCodec codec) {
+        int position = offset;
+        final var classNames = new String[buffer.getInt(position)];
+        position += 4;
+
+        for (int id = 0; id < classNames.length; id++) {
+            final var classNameBytes = new byte[buffer.getShort(position) & 0xFFFF];
+            buffer.get(position + 2, classNameBytes);
+            final long fingerprint = buffer.getLong(position + 2 + classNameBytes.length);
+            position += 2 + classNameBytes.length + 8;
+
+            final var className = new String(classNameBytes, StandardCharsets.UTF_8);
+            if (codec.restoreSchema(id, className, fingerprint)) {
+                classNames[id] = className;
+            } else {
+                LOGGER.info("Ignoring snapshot entries of {}, which changed since the snapshot was written", className);
+            }
+        }
+
+        return classNames;
+    }
+
+    /**
+     * Removes the object of the given key from the snapshot, and returns it.
+     *
+     * @return The object, or {@code null} if the snapshot doesn't contain it, or it has expired
+     */
+    CachedPC<?> take(final Object key) {
+        final Location location = index.remove(key);
+        if (location == null || location.expiresAtMillis() <= System.currentTimeMillis()) {
+            return null;
+        }
+
+        final var bytes = new byte[location.length()];
+        buffer.get(location.offset(), bytes);
+        try {
+            return codec.decode(bytes);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Failed to decode {} from snapshot", key, e);
+            return null;
+        }
+    }
+
+    String getClassName(final Object key) {
+        final Location location = index.get(key);
+        return location != null ? classNames[location.schemaId()] : null;
+    }
+
+    boolean contains(final Object key) {
+        return index.containsKey(key);
+    }
+
+    void remove(final Object key) {
+        index.remove(key);
+    }
+
+    /**
+     * @return The number of unexpired objects that were removed
+     */
+    long removeClasses(final Collection<String> classNamesToRemove) {
+        final Set<String> classNameSet = new HashSet<>(classNamesToRemove);
+        final long nowMillis = System.currentTimeMillis();
+        long removed = 0;
+        for (final Iterator<Location> iterator = index.values().iterator(); iterator.hasNext(); ) {
+            final Location location = iterator.next();
+            if (classNameSet.contains(classNames[location.schemaId()])) {
+                iterator.remove();
+                if (location.expiresAtMillis() > nowMillis) {
+                    removed++;
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    void clear() {
+        index.clear();
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, which replaces the actual file when {@link #commit()} is called.
+     */
+    static final class Writer implements Closeable {
+
+        private final Path file;
+        private final Path tempFile;
+        private final BinaryCachedPCCodec codec;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final long createdAtMillis = System.currentTimeMillis();
+        private long position = HEADER_SIZE;
+        private int entryCount;
+        private boolean full;
+        private boolean committed;
+
+        /**
+         * @param codec A codec used exclusively for this snapshot, so that it only holds the schemas of its entries
+         */
+        Writer(final Path file, final BinaryCachedPCCodec codec) throws IOException {
+            this.file = file;
+            this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            this.codec = codec;
+            this.channel = FileChannel.open(tempFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * @param expiresAtMillis Time at which the object expires, or {@link Long#MAX_VALUE} if it doesn't
+         * @return Whether the object was written. Objects that can't be encoded are skipped,
+         * and nothing is written anymore once the snapshot reached its maximum size.
+         */
+        boolean write(final Object key, final CachedPC<?> pc, final long expiresAtMillis) throws IOException {
+            if (full) {
+                return false;
+            }
+
+            final byte[] keyBytes;
+            final byte[] valueBytes;
+            try {
+                keyBytes = codec.encodeValue(key);
+                valueBytes = codec.encode(pc);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Failed to encode {} for snapshot", key, e);
+                return false;
+            }
+
+            final int schemaId = codec.getSchema(pc.getObjectClass()).id();
+            final int recordSize = 16 + keyBytes.length + 4 + valueBytes.length;
+
+            // Leave room for the schema table, whose size isn't known yet.
+            if (position + recordSize > MAX_FILE_SIZE - BUFFER_SIZE) {
+                LOGGER.warn("Snapshot {} reached its maximum size after {} entries", file, entryCount);
+                full = true;
+                return false;
+            }
+
+            final ByteBuffer recordBuffer = recordSize <= buffer.capacity() ? buffer : ByteBuffer.allocate(recordSize);
+            if (buffer.remaining() < recordSize) {
+                flush();
+            }
+            recordBuffer
+                    .putInt(schemaId)
+                    .putLong(expiresAtMillis)
+                    .putInt(keyBytes.length)
+                    .put(keyBytes)
+                    .putInt(valueBytes.length)
+                    .put(valueBytes);
+            if (recordBuffer != buffer) {
+                writeFully(recordBuffer.flip());
+            }
+
+            position += recordSize;
+            entryCount++;
+            return true;
+        }
+
+        /**
+         * Completes the snapshot, and atomically replaces any previous snapshot with it.
+         */
+        void commit() throws IOException {
+            final long schemaTableOffset = position;
+            final var schemas = codec.getSchemas();
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            buffer.putInt(schemas.size());
+            for (final BinaryCachedPCCodec.ClassSchema schema : schemas) {
+                final byte[] classNameBytes = schema.type().getName().getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < 2 + classNameBytes.length + 8) {
+                    flush();
+                }
+                buffer.putShort((short) classNameBytes.length).put(classNameBytes).putLong(schema.fingerprint());
+            }
+            flush();
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .put(VERSION)
+                    .putLong(createdAtMillis)
+                    .putInt(entryCount)
+                    .putLong(schemaTableOffset)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+
+            channel.force(true);
+            channel.close();
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            LOGGER.info("Wrote {} entries to snapshot {}", entryCount, file);
+        }
+
+        private void flush() throws IOException {
+            writeFully(buffer.flip());
+            buffer.clear();
+        }
+
+        private void writeFully(final ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(tempFile);
+            }
+        }
+
+    }
+
+}
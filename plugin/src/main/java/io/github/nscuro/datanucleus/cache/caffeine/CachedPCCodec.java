@@ -0,0 +1,40 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.cache.CachedPC;
+
+import java.io.IOException;
+
+/**
+ * Encodes {@link CachedPC}s to bytes, so that they can be stored outside the Java heap.
+ */
+interface CachedPCCodec {
+
+    /**
+     * @throws IOException When the object can't be encoded, e.g. because one of its field values is not supported
+     */
+    byte[] encode(CachedPC<?> pc) throws IOException;
+
+    /**
+     * @throws IOException When the bytes can't be decoded, e.g. because a class is no longer available
+     */
+    CachedPC<?> decode(byte[] bytes) throws IOException;
+
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+import org.datanucleus.cache.CachedPC;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Estimates the retained heap size, in bytes, of a {@link CachedPC} and its key.
+ * <p>
+ * Estimates assume a 64-bit JVM with compressed oops (12 byte object headers,
+ * 4 byte references, 8 byte alignment). They are intentionally cheap rather than exact:
+ * shared objects like {@link Class} instances or cached boxed values are not accounted for.
+ */
+public class CachedPCWeigher implements Weigher<Object, Object> {
+
+    private static final int OBJECT_HEADER_BYTES = 12;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+
+    private static final int MAX_DEPTH = 4;
+
+    // CachedPC header plus its class, fieldValues, version, loadedFields and id references.
+    private static final long CACHED_PC_BYTES = align(OBJECT_HEADER_BYTES + 5 * REFERENCE_BYTES);
+
+    // HashMap header plus its table, entrySet, size, modCount, threshold and loadFactor fields.
+    private static final long HASH_MAP_BYTES = align(OBJECT_HEADER_BYTES + 3 * REFERENCE_BYTES + 4 * 4);
+    private static final long HASH_MAP_NODE_BYTES = align(OBJECT_HEADER_BYTES + 4 + 3 * REFERENCE_BYTES);
+
+    @Override
+    public int weigh(final Object key, final Object value) {
+        final long weight = estimateSize(key, 0) + estimateCachedPCSize((CachedPC<?>) value);
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    protected long estimateCachedPCSize(final CachedPC<?> pc) {
+        long size = CACHED_PC_BYTES;
+
+        final boolean[] loadedFields = pc.getLoadedFields();
+        if (loadedFields != null) {
+            size += align(ARRAY_HEADER_BYTES + loadedFields.length);
+        }
+
+        size += estimateSize(pc.getVersion(), 0);
+
+        final int[] loadedFieldNumbers = pc.getLoadedFieldNumbers();
+        if (loadedFieldNumbers != null && loadedFieldNumbers.length > 0) {
+            size += HASH_MAP_BYTES;
+            size += align(ARRAY_HEADER_BYTES + (long) tableSize(loadedFieldNumbers.length) * REFERENCE_BYTES);
+
+            for (final int fieldNumber : loadedFieldNumbers) {
+                size += HASH_MAP_NODE_BYTES;
+                size += estimateSize(pc.getFieldValue(fieldNumber), 0);
+            }
+        }
+
+        // The id is usually the same instance as the key, so it is not counted twice.
+        return size;
+    }
+
+    protected long estimateSize(final Object value, final int depth) {
+        if (value == null
+            || value instanceof Boolean
+            || value instanceof Byte
+            || value instanceof Enum<?>
+            || value instanceof Class<?>) {
+            return 0;
+        }
+        if (value instanceof String str) {
+            // String object plus its backing byte array. Compact strings are assumed,
+            // which under-estimates strings with characters outside of Latin-1.
+            return align(OBJECT_HEADER_BYTES + REFERENCE_BYTES + 4 + 1 + 1) + align(ARRAY_HEADER_BYTES + str.length());
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Character || value instanceof Float) {
+            return align(OBJECT_HEADER_BYTES + 4);
+        }
+        if (value instanceof Long || value instanceof Double || value instanceof Date) {
+            return align(OBJECT_HEADER_BYTES + 8);
+        }
+        if (value instanceof byte[] bytes) {
+            return align(ARRAY_HEADER_BYTES + bytes.length);
+        }
+        if (value instanceof char[] chars) {
+            return align(ARRAY_HEADER_BYTES + 2L * chars.length);
+        }
+        if (value instanceof BigInteger bigInteger) {
+            return align(OBJECT_HEADER_BYTES + 4 * 4 + REFERENCE_BYTES)
+                   + align(ARRAY_HEADER_BYTES + 4L * ((bigInteger.bitLength() >> 5) + 1));
+        }
+        if (value instanceof BigDecimal bigDecimal) {
+            return align(OBJECT_HEADER_BYTES + 8 + 2 * 4 + 2 * REFERENCE_BYTES)
+                   + estimateSize(bigDecimal.unscaledValue(), depth);
+        }
+        if (depth >= MAX_DEPTH) {
+            return align(OBJECT_HEADER_BYTES + REFERENCE_BYTES);
+        }
+        if (value instanceof CachedPC.CachedId cachedId) {
+            return align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES) + estimateSize(cachedId.getId(), depth + 1);
+        }
+        if (value instanceof Collection<?> collection) {
+            long size = align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES + 2 * 4)
+                        + align(ARRAY_HEADER_BYTES + (long) collection.size() * REFERENCE_BYTES);
+            for (final Object element : collection) {
+                size += estimateSize(element, depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof Map<?, ?> map) {
+            long size = HASH_MAP_BYTES + align(ARRAY_HEADER_BYTES + (long) tableSize(map.size()) * REFERENCE_BYTES);
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                size += HASH_MAP_NODE_BYTES + estimateSize(entry.getKey(), depth + 1) + estimateSize(entry.getValue(), depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof Object[] array) {
+            long size = align(ARRAY_HEADER_BYTES + (long) array.length * REFERENCE_BYTES);
+            for (final Object element : array) {
+                size += estimateSize(element, depth + 1);
+            }
+            return size;
+        }
+
+        // Identities (e.g. LongId, DatastoreId) and other small value objects:
+        // a header, a handful of fields, and typically one boxed or string key.
+        return align(OBJECT_HEADER_BYTES + 4 * REFERENCE_BYTES);
+    }
+
+    private static long align(final long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static int tableSize(final int entries) {
+        // Smallest power of two that keeps the map below its default load factor of 0.75.
+        final int minCapacity = (int) Math.ceil(entries / 0.75);
+        return Math.max(16, Integer.highestOneBit(Math.max(1, minCapacity - 1)) << 1);
+    }
+
+}
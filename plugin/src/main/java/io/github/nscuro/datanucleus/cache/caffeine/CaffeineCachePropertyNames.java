@@ -20,8 +20,45 @@ package io.github.nscuro.datanucleus.cache.caffeine;
 
 public final class CaffeineCachePropertyNames {
 
+    // Level 1 caches can't access persistence properties, so this is a system property.
+    public static final String PROPERTY_CACHE_L1_CAFFEINE_MAXIMUM_SIZE = "datanucleus.cache.level1.caffeine.maximumsize";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_INTERVAL_MILLIS = "datanucleus.cache.level2.caffeine.adaptiveintervalmillis";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_MAXIMUM_SIZE = "datanucleus.cache.level2.caffeine.adaptivemaximumsize";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_MINIMUM_SIZE = "datanucleus.cache.level2.caffeine.adaptiveminimumsize";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_SIZING_ENABLED = "datanucleus.cache.level2.caffeine.adaptivesizingenabled";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_CLASS_EVICTION_MODE = "datanucleus.cache.level2.caffeine.classevictionmode";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_CODEC = "datanucleus.cache.level2.caffeine.codec";
     public static final String PROPERTY_CACHE_L2_CAFFEINE_EXPIRY_MODE = "datanucleus.cache.level2.caffeine.expirymode";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_CAPTURE_INTERVAL_MILLIS = "datanucleus.cache.level2.caffeine.hotsetcaptureintervalmillis";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_FILE = "datanucleus.cache.level2.caffeine.hotsetfile";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_PREFETCH_CONNECTIONS = "datanucleus.cache.level2.caffeine.hotsetprefetchconnections";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_SIZE = "datanucleus.cache.level2.caffeine.hotsetsize";
     public static final String PROPERTY_CACHE_L2_CAFFEINE_INITIAL_CAPACITY = "datanucleus.cache.level2.caffeine.initialcapacity";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_JMX_ENABLED = "datanucleus.cache.level2.caffeine.jmxenabled";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_COMPACTION_INTERVAL_MILLIS = "datanucleus.cache.level2.caffeine.journalcompactionintervalmillis";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_DIRECTORY = "datanucleus.cache.level2.caffeine.journaldirectory";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_MAX_REPLAY_AGE_MILLIS = "datanucleus.cache.level2.caffeine.journalmaxreplayagemillis";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_SEGMENT_MAX_SIZE = "datanucleus.cache.level2.caffeine.journalsegmentmaxsize";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_MAXIMUM_WEIGHT = "datanucleus.cache.level2.caffeine.maximumweight";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_MEMORY_PRESSURE_THRESHOLD = "datanucleus.cache.level2.caffeine.memorypressurethreshold";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_METRICS_ENABLED = "datanucleus.cache.level2.caffeine.metricsenabled";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_OFF_HEAP_MAXIMUM_SIZE = "datanucleus.cache.level2.caffeine.offheapmaximumsize";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_REGIONS = "datanucleus.cache.level2.caffeine.regions";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_REMOVAL_LISTENERS = "datanucleus.cache.level2.caffeine.removallisteners";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_FILE = "datanucleus.cache.level2.caffeine.snapshotfile";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_MAX_AGE_MILLIS = "datanucleus.cache.level2.caffeine.snapshotmaxagemillis";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE = "datanucleus.cache.level2.caffeine.tracefile";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE_COUNT = "datanucleus.cache.level2.caffeine.tracefilecount";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE_MAX_SIZE = "datanucleus.cache.level2.caffeine.tracefilemaxsize";
+    public static final String PROPERTY_CACHE_L2_CAFFEINE_WEIGHER = "datanucleus.cache.level2.caffeine.weigher";
+    public static final String PROPERTY_CACHE_QUERYCOMPILATION_CAFFEINE_MAXIMUM_SIZE = "datanucleus.cache.querycompilation.caffeine.maximumsize";
+    public static final String PROPERTY_CACHE_QUERYCOMPILATION_CAFFEINE_STATISTICS_ENABLED = "datanucleus.cache.querycompilation.caffeine.statisticsenabled";
+    public static final String PROPERTY_CACHE_QUERYCOMPILATIONDATASTORE_CAFFEINE_MAXIMUM_SIZE = "datanucleus.cache.querycompilationdatastore.caffeine.maximumsize";
+    public static final String PROPERTY_CACHE_QUERYCOMPILATIONDATASTORE_CAFFEINE_STATISTICS_ENABLED = "datanucleus.cache.querycompilationdatastore.caffeine.statisticsenabled";
+    public static final String PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_EXPIRY_MILLIS = "datanucleus.cache.queryresults.caffeine.expirymillis";
+    public static final String PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_EXPIRY_MODE = "datanucleus.cache.queryresults.caffeine.expirymode";
+    public static final String PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_MAXIMUM_WEIGHT = "datanucleus.cache.queryresults.caffeine.maximumweight";
+    public static final String PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_STATISTICS_ENABLED = "datanucleus.cache.queryresults.caffeine.statisticsenabled";
 
     private CaffeineCachePropertyNames() {
     }
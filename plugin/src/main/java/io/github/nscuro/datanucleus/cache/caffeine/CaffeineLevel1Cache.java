@@ -0,0 +1,337 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import org.datanucleus.cache.CacheUniqueKey;
+import org.datanucleus.cache.Level1Cache;
+import org.datanucleus.state.DNStateManager;
+import org.datanucleus.state.LifeCycleState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L1_CAFFEINE_MAXIMUM_SIZE;
+
+/**
+ * A {@link Level1Cache} that bounds the number of clean objects it holds.
+ * <p>
+ * Objects that are new, dirty, or deleted are never evicted, since the {@code ExecutionContext}
+ * relies on finding them again before they're flushed. All other objects live in a Caffeine
+ * cache bounded by the {@value CaffeineCachePropertyNames#PROPERTY_CACHE_L1_CAFFEINE_MAXIMUM_SIZE}
+ * system property. Level 1 caches are instantiated without access to the persistence properties,
+ * hence the use of a system property.
+ * <p>
+ * Note that evicting a clean object that is still referenced by the application means
+ * that a later lookup of the same id yields a new instance, which breaks the guarantee of
+ * one instance per identity within a {@code PersistenceManager}. This cache is thus registered
+ * as {@code caffeine-bounded}, and must be opted into explicitly.
+ * <p>
+ * Being a system property, the bound applies to all level 1 caches of the JVM.
+ */
+public class CaffeineLevel1Cache implements Level1Cache {
+
+    static final long DEFAULT_MAXIMUM_SIZE = 10_000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CaffeineLevel1Cache.class);
+
+    private final long maximumSize;
+    private final Cache<Object, DNStateManager> cleanCache;
+    private final Map<Object, DNStateManager> pinnedCache = new HashMap<>();
+    private final Cache<CacheUniqueKey, DNStateManager> uniqueKeyCache;
+    private final Map<CacheUniqueKey, Object> idByUniqueKey = new HashMap<>();
+    private final Map<Object, Set<CacheUniqueKey>> uniqueKeysById = new HashMap<>();
+    private long pinnedSweepThreshold;
+
+    public CaffeineLevel1Cache() {
+        this(ValueStrength.STRONG);
+    }
+
+    CaffeineLevel1Cache(final ValueStrength valueStrength) {
+        maximumSize = getMaximumSize();
+        pinnedSweepThreshold = maximumSize;
+
+        // Maintenance, and thus eviction, runs on the calling thread. Level 1 caches are confined
+        // to their ExecutionContext, and evicted objects may have to be moved to the pinned cache.
+        final Caffeine<Object, Object> caffeine = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .executor(Runnable::run);
+        final Caffeine<Object, Object> uniqueKeyCaffeine = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .executor(Runnable::run);
+        if (valueStrength == ValueStrength.SOFT) {
+            caffeine.softValues();
+            uniqueKeyCaffeine.softValues();
+        } else if (valueStrength == ValueStrength.WEAK) {
+            caffeine.weakValues();
+            uniqueKeyCaffeine.weakValues();
+        }
+
+        cleanCache = caffeine
+                .<Object, DNStateManager>evictionListener(this::onEviction)
+                .build();
+        uniqueKeyCache = uniqueKeyCaffeine
+                .<CacheUniqueKey, DNStateManager>removalListener((key, sm, cause) -> {
+                    if (cause != RemovalCause.REPLACED && key != null) {
+                        removeUniqueKeyOfId(idByUniqueKey.remove(key), key);
+                    }
+                })
+                .build();
+    }
+
+    private static long getMaximumSize() {
+        final String maximumSize = System.getProperty(PROPERTY_CACHE_L1_CAFFEINE_MAXIMUM_SIZE);
+        if (maximumSize == null || maximumSize.isBlank()) {
+            return DEFAULT_MAXIMUM_SIZE;
+        }
+
+        try {
+            return Long.parseLong(maximumSize.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Ignoring invalid value \"{}\" of {}, using {}",
+                    maximumSize, PROPERTY_CACHE_L1_CAFFEINE_MAXIMUM_SIZE, DEFAULT_MAXIMUM_SIZE);
+            return DEFAULT_MAXIMUM_SIZE;
+        }
+    }
+
+    private void onEviction(final Object id, final DNStateManager sm, final RemovalCause cause) {
+        // Objects may have become dirty after they were put into the cache.
+        if (id != null && sm != null && isPinned(sm)) {
+            pinnedCache.put(id, sm);
+        }
+    }
+
+    private static boolean isPinned(final DNStateManager sm) {
+        final LifeCycleState state = sm.getLifecycleState();
+        return state != null && (state.isNew() || state.isDirty() || state.isDeleted());
+    }
+
+    /**
+     * Moves objects that are no longer new, dirty, or deleted (e.g. after commit) back to the bounded cache,
+     * once more objects are pinned than the bounded cache may hold. Sweeps are amortized over puts.
+     */
+    private void sweepPinnedCacheIfFull() {
+        if (pinnedCache.size() > pinnedSweepThreshold) {
+            sweepPinnedCache();
+        }
+    }
+
+    private void sweepPinnedCache() {
+        final var unpinned = new HashMap<Object, DNStateManager>();
+        final var iterator = pinnedCache.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Object, DNStateManager> entry = iterator.next();
+            if (!isPinned(entry.getValue())) {
+                iterator.remove();
+                unpinned.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Moved after iterating, since evictions may pin objects that became dirty in the bounded cache.
+        unpinned.forEach(cleanCache::put);
+
+        // Objects that remain pinned can't be moved, so the next sweep waits until as many were added again.
+        pinnedSweepThreshold = Math.max(maximumSize, 2L * pinnedCache.size());
+        cleanCache.cleanUp();
+    }
+
+    public Cache<?, ?> getCaffeineCache() {
+        return cleanCache;
+    }
+
+    @Override
+    public DNStateManager put(final Object id, final DNStateManager sm) {
+        final DNStateManager previous;
+        if (isPinned(sm)) {
+            previous = cleanCache.asMap().remove(id);
+            final DNStateManager previousPinned = pinnedCache.put(id, sm);
+            sweepPinnedCacheIfFull();
+            return previousPinned != null ? previousPinned : previous;
+        }
+
+        previous = pinnedCache.remove(id);
+        final DNStateManager previousClean = cleanCache.asMap().put(id, sm);
+        sweepPinnedCacheIfFull();
+        return previousClean != null ? previousClean : previous;
+    }
+
+    @Override
+    public DNStateManager get(final Object id) {
+        final DNStateManager sm = pinnedCache.get(id);
+        if (sm == null) {
+            return cleanCache.getIfPresent(id);
+        }
+
+        // Objects are not put again when their state changes, e.g. when they're committed.
+        if (!isPinned(sm)) {
+            pinnedCache.remove(id);
+            cleanCache.put(id, sm);
+        }
+        return sm;
+    }
+
+    @Override
+    public boolean containsKey(final Object id) {
+        return pinnedCache.containsKey(id) || cleanCache.asMap().containsKey(id);
+    }
+
+    @Override
+    public boolean containsValue(final Object sm) {
+        return pinnedCache.containsValue(sm) || cleanCache.asMap().containsValue(sm);
+    }
+
+    @Override
+    public DNStateManager remove(final Object id) {
+        DNStateManager sm = pinnedCache.remove(id);
+        if (sm == null) {
+            sm = cleanCache.asMap().remove(id);
+        }
+        if (sm != null && !uniqueKeysById.isEmpty()) {
+            final Set<CacheUniqueKey> uniqueKeys = uniqueKeysById.remove(id);
+            if (uniqueKeys != null) {
+                uniqueKeys.forEach(uniqueKey -> {
+                    idByUniqueKey.remove(uniqueKey);
+                    uniqueKeyCache.invalidate(uniqueKey);
+                });
+            }
+        }
+
+        return sm;
+    }
+
+    private void removeUniqueKeyOfId(final Object id, final CacheUniqueKey key) {
+        if (id == null) {
+            return;
+        }
+
+        final Set<CacheUniqueKey> uniqueKeys = uniqueKeysById.get(id);
+        if (uniqueKeys != null && uniqueKeys.remove(key) && uniqueKeys.isEmpty()) {
+            uniqueKeysById.remove(id);
+        }
+    }
+
+    @Override
+    public void putAll(final Map<?, ? extends DNStateManager> sms) {
+        sms.forEach(this::put);
+    }
+
+    @Override
+    public void clear() {
+        pinnedCache.clear();
+        cleanCache.invalidateAll();
+        uniqueKeyCache.invalidateAll();
+        idByUniqueKey.clear();
+        uniqueKeysById.clear();
+        pinnedSweepThreshold = maximumSize;
+    }
+
+    @Override
+    public int size() {
+        return pinnedCache.size() + (int) Math.min(cleanCache.estimatedSize(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return pinnedCache.isEmpty() && cleanCache.asMap().isEmpty();
+    }
+
+    // The views below are snapshots. The ExecutionContext may modify the cache while iterating them.
+    // Their creation is linear anyway, so objects that are no longer pinned are moved to the bounded
+    // cache beforehand, which keeps views (e.g. the ExecutionContext's managed objects) within its bound.
+
+    @Override
+    public Set<Object> keySet() {
+        sweepPinnedCache();
+        final var keys = new HashSet<>(pinnedCache.keySet());
+        keys.addAll(cleanCache.asMap().keySet());
+        return keys;
+    }
+
+    @Override
+    public Collection<DNStateManager> values() {
+        sweepPinnedCache();
+        final var values = new ArrayList<>(pinnedCache.values());
+        values.addAll(cleanCache.asMap().values());
+        return values;
+    }
+
+    @Override
+    public Set<Map.Entry<Object, DNStateManager>> entrySet() {
+        sweepPinnedCache();
+        final var entries = new HashSet<Map.Entry<Object, DNStateManager>>();
+        pinnedCache.forEach((id, sm) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(id, sm)));
+        cleanCache.asMap().forEach((id, sm) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(id, sm)));
+        return entries;
+    }
+
+    @Override
+    public DNStateManager getUnique(final CacheUniqueKey key) {
+        return uniqueKeyCache.getIfPresent(key);
+    }
+
+    @Override
+    public Object putUnique(final CacheUniqueKey key, final DNStateManager sm) {
+        final Object id = sm.getInternalObjectId();
+        final Object previousId = idByUniqueKey.put(key, id);
+        if (previousId != null && !previousId.equals(id)) {
+            removeUniqueKeyOfId(previousId, key);
+        }
+        uniqueKeysById.computeIfAbsent(id, ignored -> new HashSet<>()).add(key);
+
+        return uniqueKeyCache.asMap().put(key, sm);
+    }
+
+    enum ValueStrength {
+        STRONG,
+        SOFT,
+        WEAK
+    }
+
+    /**
+     * A {@link CaffeineLevel1Cache} that holds clean objects via soft references.
+     */
+    public static class Soft extends CaffeineLevel1Cache {
+
+        public Soft() {
+            super(ValueStrength.SOFT);
+        }
+
+    }
+
+    /**
+     * A {@link CaffeineLevel1Cache} that holds clean objects via weak references.
+     */
+    public static class Weak extends CaffeineLevel1Cache {
+
+        public Weak() {
+            super(ValueStrength.WEAK);
+        }
+
+    }
+
+}
@@ -20,45 +20,183 @@ package io.github.nscuro.datanucleus.cache.caffeine;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.RemovalListener;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.datanucleus.Configuration;
 import org.datanucleus.NucleusContext;
+import org.datanucleus.PersistenceNucleusContext;
 import org.datanucleus.cache.AbstractLevel2Cache;
 import org.datanucleus.cache.CacheUniqueKey;
 import org.datanucleus.cache.CachedPC;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.identity.IdentityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_INTERVAL_MILLIS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_MAXIMUM_SIZE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_MINIMUM_SIZE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_SIZING_ENABLED;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_CLASS_EVICTION_MODE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_CODEC;
 import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_EXPIRY_MODE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_CAPTURE_INTERVAL_MILLIS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_FILE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_PREFETCH_CONNECTIONS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_SIZE;
 import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_INITIAL_CAPACITY;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_JMX_ENABLED;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_COMPACTION_INTERVAL_MILLIS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_DIRECTORY;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_MAX_REPLAY_AGE_MILLIS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_SEGMENT_MAX_SIZE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_MAXIMUM_WEIGHT;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_MEMORY_PRESSURE_THRESHOLD;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_METRICS_ENABLED;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_OFF_HEAP_MAXIMUM_SIZE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_REGIONS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_REMOVAL_LISTENERS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_FILE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_MAX_AGE_MILLIS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE_COUNT;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE_MAX_SIZE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_WEIGHER;
 import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L2_EXPIRY_MILLIS;
 import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L2_MAXSIZE;
 import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L2_STATISTICS_ENABLED;
+import static org.datanucleus.PropertyNames.PROPERTY_PERSISTENCE_UNIT_NAME;
 
 public class CaffeineLevel2Cache extends AbstractLevel2Cache {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CaffeineLevel2Cache.class);
     private static final String EXPIRY_MODE_AFTER_ACCESS = "after-access";
     private static final String EXPIRY_MODE_AFTER_WRITE = "after-write";
+    private static final String EXPIRY_MODE_VARIABLE = "variable";
+    private static final String CLASS_EVICTION_MODE_SCAN = "scan";
+    private static final String CLASS_EVICTION_MODE_INDEX = "index";
+    private static final String CLASS_EVICTION_MODE_EPOCH = "epoch";
+    private static final String CODEC_BINARY = "binary";
+    private static final String CODEC_JAVA = "java";
+    private static final long DEFAULT_TRACE_FILE_MAX_SIZE = 64L * 1024 * 1024;
+    private static final int DEFAULT_TRACE_FILE_COUNT = 5;
+    private static final long DEFAULT_ADAPTIVE_INTERVAL_MILLIS = 60_000;
+    private static final long DEFAULT_SNAPSHOT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long DEFAULT_JOURNAL_SEGMENT_MAX_SIZE = 64L * 1024 * 1024;
+    private static final long DEFAULT_JOURNAL_MAX_REPLAY_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long DEFAULT_JOURNAL_COMPACTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int DEFAULT_HOT_SET_SIZE = 10_000;
+    private static final long DEFAULT_HOT_SET_CAPTURE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int DEFAULT_HOT_SET_PREFETCH_CONNECTIONS = 4;
 
     private final Cache<Object, Object> caffeineCache;
+    private final List<CacheRegion> regions;
+    private final ClassKeyIndex classKeyIndex;
+    private final ClassGenerations classGenerations;
+    private final Map<String, Cache<Object, Object>> cacheByClassName = new ConcurrentHashMap<>();
+    private final Cache<CacheUniqueKey, Object> uniqueKeyCache;
+    private final Map<Object, Set<CacheUniqueKey>> uniqueKeysByOid = new ConcurrentHashMap<>();
+    private final MicrometerCacheMetrics metrics;
+    private final CaffeineLevel2CacheManagement management;
+    private final ClassStatisticsRecorder classStatistics;
+    private final List<RemovalListener<Object, Object>> removalListeners;
+    private final AccessTraceRecorder traceRecorder;
+    private final CacheMaximum cacheMaximum;
+    private final AdaptiveSizer adaptiveSizer;
+    private final MemoryPressureMonitor memoryPressureMonitor;
+    private final OffHeapTier offHeapTier;
+    private final Path snapshotFile;
+    private final CacheSnapshot snapshot;
+    private final CacheJournal journal;
+    private final HotSet hotSet;
 
     public CaffeineLevel2Cache(final NucleusContext nucleusCtx) {
         super(nucleusCtx);
 
         final Configuration config = nucleusCtx.getConfiguration();
 
-        final Caffeine<Object, Object> caffeine = Caffeine.newBuilder();
-        if (config.getIntProperty(PROPERTY_CACHE_L2_MAXSIZE) >= 0) {
+        final String classEvictionMode = config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_CLASS_EVICTION_MODE);
+        if (CLASS_EVICTION_MODE_INDEX.equalsIgnoreCase(classEvictionMode)) {
+            classKeyIndex = new ClassKeyIndex();
+            classGenerations = null;
+        } else if (CLASS_EVICTION_MODE_EPOCH.equalsIgnoreCase(classEvictionMode)) {
+            classKeyIndex = null;
+            classGenerations = new ClassGenerations();
+        } else {
+            if (classEvictionMode != null && !CLASS_EVICTION_MODE_SCAN.equalsIgnoreCase(classEvictionMode)) {
+                LOGGER.warn("Unknown class eviction mode {} configured via {}, assuming {}",
+                        classEvictionMode, PROPERTY_CACHE_L2_CAFFEINE_CLASS_EVICTION_MODE, CLASS_EVICTION_MODE_SCAN);
+            }
+
+            classKeyIndex = null;
+            classGenerations = null;
+        }
+
+        classStatistics = config.getBooleanProperty(PROPERTY_CACHE_L2_STATISTICS_ENABLED)
+                ? new ClassStatisticsRecorder()
+                : null;
+        removalListeners = createRemovalListeners(config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_REMOVAL_LISTENERS));
+        traceRecorder = createTraceRecorder(config);
+        offHeapTier = createOffHeapTier(config);
+        final String snapshotFileName = config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_FILE);
+        snapshotFile = snapshotFileName != null && !snapshotFileName.isBlank() ? Path.of(snapshotFileName.trim()) : null;
+        snapshot = openSnapshot(config);
+
+        if (!config.getBooleanProperty(PROPERTY_CACHE_L2_CAFFEINE_METRICS_ENABLED)) {
+            metrics = null;
+        } else if (MicrometerCacheMetrics.isAvailable()) {
+            metrics = MicrometerCacheMetrics.create(cacheName, config.getStringProperty(PROPERTY_PERSISTENCE_UNIT_NAME));
+        } else {
+            LOGGER.warn("Metrics are enabled via {}, but Micrometer is not on the classpath", PROPERTY_CACHE_L2_CAFFEINE_METRICS_ENABLED);
+            metrics = null;
+        }
+
+        Caffeine<Object, Object> caffeine = Caffeine.newBuilder();
+        final long maximumWeight = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_MAXIMUM_WEIGHT);
+        if (maximumWeight > 0) {
+            if (config.getIntProperty(PROPERTY_CACHE_L2_MAXSIZE) >= 0) {
+                LOGGER.warn("Both {} and {} are configured; {} takes precedence",
+                        PROPERTY_CACHE_L2_MAXSIZE, PROPERTY_CACHE_L2_CAFFEINE_MAXIMUM_WEIGHT, PROPERTY_CACHE_L2_CAFFEINE_MAXIMUM_WEIGHT);
+            }
+
+            caffeine = caffeine
+                    .maximumWeight(maximumWeight)
+                    .weigher(createWeigher(config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_WEIGHER)));
+        } else if (config.getIntProperty(PROPERTY_CACHE_L2_MAXSIZE) >= 0) {
             caffeine.maximumSize(config.getIntProperty(PROPERTY_CACHE_L2_MAXSIZE));
         }
         if (config.getIntProperty(PROPERTY_CACHE_L2_CAFFEINE_INITIAL_CAPACITY) > 0) {
             caffeine.initialCapacity(config.getIntProperty(PROPERTY_CACHE_L2_CAFFEINE_INITIAL_CAPACITY));
         }
-        if (config.getIntProperty(PROPERTY_CACHE_L2_EXPIRY_MILLIS) > 0) {
+        MetaDataExpiry metaDataExpiry = null;
+        if (EXPIRY_MODE_VARIABLE.equalsIgnoreCase(config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_EXPIRY_MODE))) {
+            final Duration defaultExpiryDuration = config.getIntProperty(PROPERTY_CACHE_L2_EXPIRY_MILLIS) > 0
+                    ? Duration.ofMillis(config.getIntProperty(PROPERTY_CACHE_L2_EXPIRY_MILLIS))
+                    : null;
+
+            metaDataExpiry = new MetaDataExpiry(nucleusCtx, defaultExpiryDuration);
+            caffeine = caffeine.expireAfter(metaDataExpiry);
+        } else if (config.getIntProperty(PROPERTY_CACHE_L2_EXPIRY_MILLIS) > 0) {
             final Duration expiryDuration = Duration.ofMillis(config.getIntProperty(PROPERTY_CACHE_L2_EXPIRY_MILLIS));
 
             if (EXPIRY_MODE_AFTER_ACCESS.equalsIgnoreCase(config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_EXPIRY_MODE))) {
@@ -71,35 +209,703 @@ public class CaffeineLevel2Cache extends AbstractLevel2Cache {
                 caffeine.expireAfterAccess(expiryDuration);
             }
         }
-        if (config.getBooleanProperty(PROPERTY_CACHE_L2_STATISTICS_ENABLED)) {
+        if (metrics != null) {
+            caffeine.recordStats(() -> metrics.newStatsCounter(null));
+        } else if (config.getBooleanProperty(PROPERTY_CACHE_L2_STATISTICS_ENABLED)
+                   || config.getBooleanProperty(PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_SIZING_ENABLED)) {
+            // Adaptive sizing is driven by the cache's hit ratio.
             caffeine.recordStats();
         }
 
-        caffeineCache = caffeine.build();
+        caffeineCache = buildCache(caffeine);
+        if (metrics != null) {
+            metrics.bind(caffeineCache, null);
+        }
+        cacheMaximum = createCacheMaximum(config, caffeineCache);
+        adaptiveSizer = createAdaptiveSizer(config, caffeineCache, cacheMaximum);
+
+        regions = CacheRegion.parse(config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_REGIONS));
+        for (final CacheRegion region : regions) {
+            // Metrics replace the stats counter, which can only be set once per builder.
+            Caffeine<Object, Object> regionCaffeine = Caffeine.from(metrics != null ? region.getSpecWithoutStats() : region.getSpec());
+            if (region.isWeighted()) {
+                regionCaffeine = regionCaffeine.weigher(createWeigher(config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_WEIGHER)));
+            }
+            if (metaDataExpiry != null && !region.hasExpiry()) {
+                regionCaffeine = regionCaffeine.expireAfter(metaDataExpiry);
+            }
+            if (metrics != null) {
+                regionCaffeine.recordStats(() -> metrics.newStatsCounter(region.getSelector()));
+            } else if (config.getBooleanProperty(PROPERTY_CACHE_L2_STATISTICS_ENABLED) && !region.isRecordingStats()) {
+                regionCaffeine.recordStats();
+            }
+
+            region.setCache(buildCache(regionCaffeine));
+            if (metrics != null) {
+                metrics.bind(region.getCache(), region.getSelector());
+            }
+            LOGGER.debug("Created cache region {} with spec {}", region.getSelector(), region.getSpec().toParsableString());
+        }
+
+        // Unique keys only map to the oid of their object, whose CachedPC lives in the regular caches.
+        // Mappings are dropped when their object is removed, and are bounded like the regular cache
+        // as a safety net for mappings whose objects were never cached.
+        final Caffeine<Object, Object> uniqueKeyCaffeine = Caffeine.newBuilder();
+        if (config.getIntProperty(PROPERTY_CACHE_L2_MAXSIZE) >= 0) {
+            uniqueKeyCaffeine.maximumSize(config.getIntProperty(PROPERTY_CACHE_L2_MAXSIZE));
+        }
+        uniqueKeyCache = uniqueKeyCaffeine
+                .<CacheUniqueKey, Object>removalListener((key, oid, cause) -> {
+                    if (cause != RemovalCause.REPLACED && key != null && oid != null) {
+                        removeUniqueKeyOfOid(oid, key);
+                    }
+                })
+                .build();
+
+        memoryPressureMonitor = createMemoryPressureMonitor(config);
+        journal = openJournal(config);
+        hotSet = createHotSet(config);
+
+        CacheEvents.register(this);
+
+        if (config.getBooleanProperty(PROPERTY_CACHE_L2_CAFFEINE_JMX_ENABLED)) {
+            final String persistenceUnitName = config.getStringProperty(PROPERTY_PERSISTENCE_UNIT_NAME);
+            management = new CaffeineLevel2CacheManagement(this, nucleusCtx.getClassLoaderResolver(null));
+            management.register(persistenceUnitName != null ? persistenceUnitName : cacheName);
+        } else {
+            management = null;
+        }
+    }
+
+    private Cache<Object, Object> buildCache(Caffeine<Object, Object> caffeine) {
+        if (classKeyIndex != null || offHeapTier != null) {
+            // Eviction listeners are invoked synchronously while the entry's lock is held,
+            // which keeps the index and the off-heap tier consistent with concurrent puts of the same key.
+            caffeine = caffeine.evictionListener(this::onEviction);
+        }
+
+        return caffeine
+                .removalListener(this::onRemoval)
+                .build();
+    }
+
+    private void onEviction(final Object oid, final Object value, final RemovalCause cause) {
+        if (oid == null || value == null) {
+            return;
+        }
+
+        if (classKeyIndex != null) {
+            classKeyIndex.remove(getClassName(value), oid);
+        }
+
+        // Only objects evicted to make room are demoted. Expired objects must not be resurrected.
+        if (offHeapTier != null && cause == RemovalCause.SIZE) {
+            if (value instanceof ClassGenerations.Entry entry && classGenerations.isStale(entry)) {
+                return;
+            }
+
+            // The listener is invoked before the entry is discarded, so its remaining lifetime is still known,
+            // and the object expires off-heap when it would have expired on-heap.
+            final CachedPC<?> pc = toCachedPC(value);
+            final long nowMillis = System.currentTimeMillis();
+            final long expiresAtMillis = getExpiresAtMillis(getCacheForOid(oid, pc), oid, nowMillis);
+            if (expiresAtMillis > nowMillis) {
+                offHeapTier.put(oid, pc, value instanceof ClassGenerations.Entry entry ? entry.generation() : 0, expiresAtMillis);
+            }
+        }
+    }
+
+    private void onRemoval(final Object oid, final Object value, final RemovalCause cause) {
+        if (classStatistics != null && value != null) {
+            classStatistics.recordRemoval(getClassName(value), cause);
+        }
+
+        // Replacements keep the object's identity, so its unique keys remain valid.
+        if (cause != RemovalCause.REPLACED && oid != null && !uniqueKeysByOid.isEmpty()) {
+            removeUniqueKeysOfRemovedOid(oid, value);
+        }
+
+        for (final RemovalListener<Object, Object> removalListener : removalListeners) {
+            // A failing listener must neither affect the cache, nor prevent other listeners from being notified.
+            try {
+                removalListener.onRemoval(oid, value, cause);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Removal listener {} failed for {} ({})", removalListener, oid, cause, e);
+            }
+        }
+    }
+
+    private void removeUniqueKeysOfRemovedOid(final Object oid, final Object value) {
+        // Removal listeners are invoked asynchronously, so the object may have been put again along with
+        // its unique keys in the meantime. Those are only removed if the object is still absent, while
+        // holding the lock of its key, so that it can't be put concurrently.
+        Cache<Object, Object> cache = getCacheForOid(oid, value != null ? toCachedPC(value) : null);
+        if (cache == null) {
+            cache = caffeineCache;
+        }
+        if (cache.asMap().containsKey(oid)) {
+            return;
+        }
+
+        // Computed to hold the lock of the key, without creating an entry if it is absent.
+        cache.asMap().compute(oid, (key, current) -> {
+            // Objects that were demoted to the off-heap tier keep their unique keys, too.
+            if (current == null && !(offHeapTier != null && offHeapTier.contains(key))) {
+                final Set<CacheUniqueKey> uniqueKeys = uniqueKeysByOid.remove(key);
+                if (uniqueKeys != null) {
+                    uniqueKeys.forEach(uniqueKey -> uniqueKeyCache.asMap().remove(uniqueKey, key));
+                }
+            }
+            return current;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<RemovalListener<Object, Object>> createRemovalListeners(final String listenerClassNames) {
+        if (listenerClassNames == null || listenerClassNames.isBlank()) {
+            return List.of();
+        }
+
+        final var listeners = new ArrayList<RemovalListener<Object, Object>>();
+        for (final String listenerClassName : listenerClassNames.split(",")) {
+            if (listenerClassName.isBlank()) {
+                continue;
+            }
+
+            try {
+                final Class<?> listenerClass = nucleusCtx.getClassLoaderResolver(null).classForName(listenerClassName.trim());
+                final var listener = (RemovalListener<Object, Object>) listenerClass.getDeclaredConstructor().newInstance();
+
+                // Like custom weighers, listeners shouldn't have to know about how values are stored internally.
+                listeners.add((key, value, cause) -> listener.onRemoval(key, value != null ? toCachedPC(value) : null, cause));
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new NucleusUserException("Failed to instantiate removal listener %s configured via %s"
+                        .formatted(listenerClassName.trim(), PROPERTY_CACHE_L2_CAFFEINE_REMOVAL_LISTENERS), e);
+            }
+        }
+
+        return List.copyOf(listeners);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Weigher<Object, Object> createWeigher(final String weigherClassName) {
+        if (weigherClassName == null || weigherClassName.isBlank()) {
+            final var weigher = new CachedPCWeigher();
+            return (key, value) -> weigher.weigh(key, toCachedPC(value));
+        }
+
+        try {
+            final Class<?> weigherClass = nucleusCtx.getClassLoaderResolver(null).classForName(weigherClassName);
+            final var weigher = (Weigher<Object, Object>) weigherClass.getDeclaredConstructor().newInstance();
+
+            // Custom weighers shouldn't have to know about how values are stored internally.
+            return (key, value) -> weigher.weigh(key, toCachedPC(value));
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new NucleusUserException("Failed to instantiate weigher %s configured via %s"
+                    .formatted(weigherClassName, PROPERTY_CACHE_L2_CAFFEINE_WEIGHER), e);
+        }
+    }
+
+    private static AccessTraceRecorder createTraceRecorder(final Configuration config) {
+        final String traceFile = config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE);
+        if (traceFile == null || traceFile.isBlank()) {
+            return null;
+        }
+
+        final long maxFileSize = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE_MAX_SIZE);
+        final int fileCount = config.getIntProperty(PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE_COUNT);
+        try {
+            final var recorder = new AccessTraceRecorder(Path.of(traceFile.trim()),
+                    maxFileSize > 0 ? maxFileSize : DEFAULT_TRACE_FILE_MAX_SIZE,
+                    fileCount > 0 ? fileCount : DEFAULT_TRACE_FILE_COUNT);
+            LOGGER.info("Recording access trace to {}", traceFile);
+            return recorder;
+        } catch (IOException e) {
+            throw new NucleusUserException("Failed to open access trace %s configured via %s"
+                    .formatted(traceFile, PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE), e);
+        }
+    }
+
+    private OffHeapTier createOffHeapTier(final Configuration config) {
+        final long maximumSize = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_OFF_HEAP_MAXIMUM_SIZE);
+        if (maximumSize <= 0) {
+            return null;
+        }
+
+        LOGGER.info("Demoting evicted objects to an off-heap tier of up to {} bytes", maximumSize);
+        return new OffHeapTier(createCodec(config), maximumSize);
+    }
+
+    private CachedPCCodec createCodec(final Configuration config) {
+        final String codec = config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_CODEC);
+        if (CODEC_JAVA.equalsIgnoreCase(codec)) {
+            return new JavaSerializationCodec(nucleusCtx.getClassLoaderResolver(null));
+        }
+        if (codec != null && !CODEC_BINARY.equalsIgnoreCase(codec)) {
+            LOGGER.warn("Unknown codec {} configured via {}, assuming {}",
+                    codec, PROPERTY_CACHE_L2_CAFFEINE_CODEC, CODEC_BINARY);
+        }
+
+        return new BinaryCachedPCCodec(nucleusCtx);
+    }
+
+    private CacheSnapshot openSnapshot(final Configuration config) {
+        if (snapshotFile == null || !Files.exists(snapshotFile)) {
+            return null;
+        }
+
+        // Objects are only validated against their expiry, which may not be configured. Snapshots are thus
+        // limited to the same age as journals by default, and only unlimited when explicitly set to 0.
+        final long maxAgeMillis = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_MAX_AGE_MILLIS);
+        CacheSnapshot openedSnapshot = null;
+        try {
+            openedSnapshot = CacheSnapshot.open(snapshotFile, new BinaryCachedPCCodec(nucleusCtx),
+                    maxAgeMillis >= 0 ? maxAgeMillis : DEFAULT_SNAPSHOT_MAX_AGE_MILLIS);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to open snapshot {} configured via {}", snapshotFile, PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_FILE, e);
+        }
+
+        // A snapshot is consumed by the first cache that opens it. Should this cache not be closed
+        // orderly, it must not be opened again on the next start, since it would be outdated by then.
+        // The mapping of an opened snapshot remains valid after its file was deleted.
+        try {
+            Files.deleteIfExists(snapshotFile);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete snapshot {}", snapshotFile, e);
+        }
+
+        return openedSnapshot != null && openedSnapshot.size() > 0 ? openedSnapshot : null;
+    }
+
+    private void writeSnapshot() {
+        final long nowMillis = System.currentTimeMillis();
+        try (final var writer = new CacheSnapshot.Writer(snapshotFile, new BinaryCachedPCCodec(nucleusCtx))) {
+            writeSnapshot(writer, caffeineCache, nowMillis);
+            for (final CacheRegion region : regions) {
+                writeSnapshot(writer, region.getCache(), nowMillis);
+            }
+            writer.commit();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to write snapshot {} configured via {}", snapshotFile, PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_FILE, e);
+        }
+    }
+
+    private void writeSnapshot(final CacheSnapshot.Writer writer, final Cache<Object, Object> cache, final long nowMillis) throws IOException {
+        for (final Map.Entry<Object, Object> entry : cache.asMap().entrySet()) {
+            if (classGenerations != null && classGenerations.isStale((ClassGenerations.Entry) entry.getValue())) {
+                continue;
+            }
+
+            writer.write(entry.getKey(), toCachedPC(entry.getValue()), getExpiresAtMillis(cache, entry.getKey(), nowMillis));
+        }
+    }
+
+    /**
+     * @return The time at which the given object expires, or {@link Long#MAX_VALUE} if the cache doesn't expire objects
+     */
+    private static long getExpiresAtMillis(final Cache<Object, Object> cache, final Object oid, final long nowMillis) {
+        final Policy<Object, Object> policy = cache.policy();
+        final OptionalLong remainingMillis;
+        if (policy.expireVariably().isPresent()) {
+            remainingMillis = policy.expireVariably().get().getExpiresAfter(oid, TimeUnit.MILLISECONDS);
+        } else {
+            final Optional<Policy.FixedExpiration<Object, Object>> expiration = policy.expireAfterWrite().or(policy::expireAfterAccess);
+            if (expiration.isEmpty()) {
+                return Long.MAX_VALUE;
+            }
+
+            final OptionalLong ageMillis = expiration.get().ageOf(oid, TimeUnit.MILLISECONDS);
+            remainingMillis = ageMillis.isPresent()
+                    ? OptionalLong.of(expiration.get().getExpiresAfter(TimeUnit.MILLISECONDS) - ageMillis.getAsLong())
+                    : OptionalLong.empty();
+        }
+
+        // Objects that vanished concurrently are treated as expired.
+        return nowMillis + Math.max(0, remainingMillis.orElse(0));
     }
 
+    private CacheJournal openJournal(final Configuration config) {
+        final String directory = config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_DIRECTORY);
+        if (directory == null || directory.isBlank()) {
+            return null;
+        }
+
+        final long segmentMaxSize = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_SEGMENT_MAX_SIZE);
+        final long maxReplayAgeMillis = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_MAX_REPLAY_AGE_MILLIS);
+        final long compactionIntervalMillis = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_COMPACTION_INTERVAL_MILLIS);
+        final var openedJournal = new CacheJournal(Path.of(directory.trim()), () -> new BinaryCachedPCCodec(nucleusCtx),
+                segmentMaxSize > 0 ? segmentMaxSize : DEFAULT_JOURNAL_SEGMENT_MAX_SIZE,
+                maxReplayAgeMillis >= 0 ? maxReplayAgeMillis : DEFAULT_JOURNAL_MAX_REPLAY_AGE_MILLIS,
+                compactionIntervalMillis > 0 ? compactionIntervalMillis : DEFAULT_JOURNAL_COMPACTION_INTERVAL_MILLIS);
+        try {
+            // Only as many objects as the default cache can hold are replayed. The journal is not
+            // started yet, so replayed objects are not journaled again.
+            final List<CacheJournal.RecoveredEntry> entries = openedJournal.recover(caffeineCache.policy().eviction()
+                    .filter(eviction -> !eviction.isWeighted())
+                    .map(eviction -> (int) Math.min(eviction.getMaximum(), Integer.MAX_VALUE))
+                    .orElse(Integer.MAX_VALUE));
+            for (final CacheJournal.RecoveredEntry entry : entries) {
+                store(getCacheForOid(entry.key(), entry.pc()), entry.key(), entry.pc());
+            }
+
+            openedJournal.start();
+            LOGGER.info("Journaling to {}; Replayed {} objects", directory, entries.size());
+            return openedJournal;
+        } catch (IOException e) {
+            throw new NucleusUserException("Failed to open journal %s configured via %s"
+                    .formatted(directory, PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_DIRECTORY), e);
+        }
+    }
+
+    private HotSet createHotSet(final Configuration config) {
+        final String file = config.getStringProperty(PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_FILE);
+        if (file == null || file.isBlank()) {
+            return null;
+        }
+
+        final var caches = new ArrayList<Cache<Object, Object>>();
+        caches.add(caffeineCache);
+        regions.forEach(region -> caches.add(region.getCache()));
+
+        final int size = config.getIntProperty(PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_SIZE);
+        final var createdHotSet = new HotSet(Path.of(file.trim()), size > 0 ? size : DEFAULT_HOT_SET_SIZE,
+                caches, () -> new BinaryCachedPCCodec(nucleusCtx));
+
+        if (nucleusCtx instanceof PersistenceNucleusContext persistenceCtx) {
+            final int connections = config.getIntProperty(PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_PREFETCH_CONNECTIONS);
+            createdHotSet.prefetch(persistenceCtx, this, connections > 0 ? connections : DEFAULT_HOT_SET_PREFETCH_CONNECTIONS);
+        } else {
+            LOGGER.warn("Hot set {} can only be prefetched through a persistence context", file);
+            createdHotSet.getPrefetch().complete(0);
+        }
+
+        final long captureIntervalMillis = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_CAPTURE_INTERVAL_MILLIS);
+        createdHotSet.start(captureIntervalMillis > 0 ? captureIntervalMillis : DEFAULT_HOT_SET_CAPTURE_INTERVAL_MILLIS);
+        return createdHotSet;
+    }
+
+    private static CacheMaximum createCacheMaximum(final Configuration config, final Cache<Object, Object> cache) {
+        final var eviction = cache.policy().eviction();
+        if (eviction.isEmpty()) {
+            return null;
+        }
+        if (!config.getBooleanProperty(PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_SIZING_ENABLED)) {
+            return new CacheMaximum(cache);
+        }
+
+        // Memory pressure doesn't shrink the cache below what adaptive sizing would shrink it to.
+        return new CacheMaximum(cache, getAdaptiveMinimum(config, eviction.get().getMaximum()));
+    }
+
+    private static AdaptiveSizer createAdaptiveSizer(final Configuration config, final Cache<Object, Object> cache,
+                                                     final CacheMaximum cacheMaximum) {
+        if (!config.getBooleanProperty(PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_SIZING_ENABLED)) {
+            return null;
+        }
+        if (cacheMaximum == null) {
+            LOGGER.warn("Adaptive sizing is enabled via {}, but the cache is unbounded; Configure {} or {} to use it",
+                    PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_SIZING_ENABLED, PROPERTY_CACHE_L2_MAXSIZE, PROPERTY_CACHE_L2_CAFFEINE_MAXIMUM_WEIGHT);
+            return null;
+        }
+
+        // Bounds default to half and twice the configured maximum, respectively.
+        final long configuredMaximum = cacheMaximum.getTarget();
+        final long maximum = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_MAXIMUM_SIZE);
+        final long intervalMillis = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_INTERVAL_MILLIS);
+
+        final var sizer = new AdaptiveSizer(cache, cacheMaximum,
+                getAdaptiveMinimum(config, configuredMaximum),
+                maximum > 0 ? maximum : Math.max(1, configuredMaximum * 2),
+                AdaptiveSizer::getHeapHeadroom);
+        sizer.start(intervalMillis > 0 ? intervalMillis : DEFAULT_ADAPTIVE_INTERVAL_MILLIS);
+        return sizer;
+    }
+
+    private static long getAdaptiveMinimum(final Configuration config, final long configuredMaximum) {
+        final long minimum = getLongProperty(config, PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_MINIMUM_SIZE);
+        return minimum > 0 ? minimum : Math.max(1, configuredMaximum / 2);
+    }
+
+    private MemoryPressureMonitor createMemoryPressureMonitor(final Configuration config) {
+        final Object value = config.getProperty(PROPERTY_CACHE_L2_CAFFEINE_MEMORY_PRESSURE_THRESHOLD);
+        final double threshold;
+        if (value instanceof Number number) {
+            threshold = number.doubleValue();
+        } else if (value instanceof String str && !str.isBlank()) {
+            threshold = Double.parseDouble(str.trim());
+        } else {
+            return null;
+        }
+        if (threshold <= 0 || threshold >= 1) {
+            throw new NucleusUserException("Invalid memory pressure threshold %s configured via %s; expected a fraction between 0 and 1"
+                    .formatted(value, PROPERTY_CACHE_L2_CAFFEINE_MEMORY_PRESSURE_THRESHOLD));
+        }
+
+        // Regions can only be resized by the monitor, and thus don't need to share their maximum.
+        final var cacheMaxima = new ArrayList<CacheMaximum>();
+        if (cacheMaximum != null) {
+            cacheMaxima.add(cacheMaximum);
+        }
+        regions.stream()
+                .map(CacheRegion::getCache)
+                .filter(cache -> cache.policy().eviction().isPresent())
+                .forEach(cache -> cacheMaxima.add(new CacheMaximum(cache)));
+
+        final var monitor = new MemoryPressureMonitor(cacheMaxima, threshold);
+        monitor.start();
+        return monitor;
+    }
+
+    static long getLongProperty(final Configuration config, final String name) {
+        // Weights are in bytes and may exceed the range of an int,
+        // which rules out Configuration#getIntProperty.
+        final Object value = config.getProperty(name);
+        if (value instanceof Number number) {
+            return number.longValue();
+        } else if (value instanceof String str && !str.isBlank()) {
+            return Long.parseLong(str.trim());
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return The cache holding all objects that are not assigned to a dedicated region.
+     * When the {@code epoch} class eviction mode is used, its values are not {@link CachedPC}s,
+     * but wrappers that additionally carry the generation of the object's class.
+     */
     public Cache<?, ?> getCaffeineCache() {
         return caffeineCache;
     }
 
+    /**
+     * @return The caches of all configured regions, keyed by their class or package selector
+     */
+    public Map<String, Cache<?, ?>> getRegionCaches() {
+        final var regionCaches = new LinkedHashMap<String, Cache<?, ?>>();
+        for (final CacheRegion region : regions) {
+            regionCaches.put(region.getSelector(), region.getCache());
+        }
+
+        return regionCaches;
+    }
+
+    /**
+     * @return Statistics of each persistent class that was accessed, or an empty map if statistics are disabled
+     * @see org.datanucleus.PropertyNames#PROPERTY_CACHE_L2_STATISTICS_ENABLED
+     */
+    public Map<String, ClassStatistics> getClassStatistics() {
+        return classStatistics != null ? classStatistics.snapshot() : Map.of();
+    }
+
+    String getCacheName() {
+        return cacheName;
+    }
+
+    /**
+     * @return The owner of the maximum size or weight of {@link #getCaffeineCache()}, or {@code null} if it is unbounded
+     */
+    CacheMaximum getCacheMaximum() {
+        return cacheMaximum;
+    }
+
+    AdaptiveSizer getAdaptiveSizer() {
+        return adaptiveSizer;
+    }
+
+    MemoryPressureMonitor getMemoryPressureMonitor() {
+        return memoryPressureMonitor;
+    }
+
+    OffHeapTier getOffHeapTier() {
+        return offHeapTier;
+    }
+
+    CacheSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    CacheJournal getJournal() {
+        return journal;
+    }
+
+    HotSet getHotSet() {
+        return hotSet;
+    }
+
+    /**
+     * @return Statistics aggregated over the default cache and all region caches
+     */
+    CacheStats getStats() {
+        CacheStats stats = caffeineCache.stats();
+        for (final CacheRegion region : regions) {
+            stats = stats.plus(region.getCache().stats());
+        }
+        return stats;
+    }
+
+    /**
+     * @return Estimated size of the default cache and all region caches, without performing maintenance
+     */
+    long getEstimatedSize() {
+        long size = caffeineCache.estimatedSize();
+        for (final CacheRegion region : regions) {
+            size += region.getCache().estimatedSize();
+        }
+        return size;
+    }
+
     @Override
     public void close() {
+        if (snapshotFile != null) {
+            writeSnapshot();
+        }
+        if (journal != null) {
+            // Closed before the cache is cleared, so that the journal can be replayed on the next start.
+            journal.close();
+        }
+        if (hotSet != null) {
+            // Captured a final time before the cache is cleared.
+            hotSet.close();
+        }
         evictAll();
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (management != null) {
+            management.unregister();
+        }
+        CacheEvents.unregister(this);
+        if (traceRecorder != null) {
+            traceRecorder.close();
+        }
+        if (adaptiveSizer != null) {
+            adaptiveSizer.close();
+        }
+        if (memoryPressureMonitor != null) {
+            memoryPressureMonitor.close();
+        }
+        if (offHeapTier != null) {
+            offHeapTier.close();
+        }
     }
 
     @Override
     public void evict(final Object oid) {
-        caffeineCache.invalidate(oid);
+        if (traceRecorder != null) {
+            traceRecorder.record(AccessTrace.Operation.EVICT, AccessTrace.hash(oid));
+        }
+
+        final Cache<Object, Object> cache = getCacheForOid(oid, null);
+        if (cache != null) {
+            invalidate(cache, oid);
+            return;
+        }
+
+        invalidate(caffeineCache, oid);
+        for (final CacheRegion region : regions) {
+            invalidate(region.getCache(), oid);
+        }
+    }
+
+    private void invalidate(final Cache<Object, Object> cache, final Object oid) {
+        if (classKeyIndex == null && offHeapTier == null && snapshot == null && journal == null) {
+            cache.invalidate(oid);
+            return;
+        }
+
+        // Off-heap and snapshot copies are removed while holding the key's lock,
+        // so that they can't be promoted or restored concurrently. Evictions are
+        // journaled under the same lock, so that they're ordered with puts of the key.
+        cache.asMap().compute(oid, (key, value) -> {
+            if (classKeyIndex != null && value != null) {
+                classKeyIndex.remove(getClassName(value), key);
+            }
+            if (offHeapTier != null) {
+                offHeapTier.remove(key);
+            }
+            if (snapshot != null) {
+                snapshot.remove(key);
+            }
+            if (journal != null) {
+                journal.recordEvict(key);
+            }
+            return null;
+        });
     }
 
     @Override
     public void removeUnique(final CacheUniqueKey key) {
-        evict(key);
+        if (key == null) {
+            return;
+        }
+
+        final Object oid = uniqueKeyCache.asMap().remove(key);
+        if (oid != null) {
+            removeUniqueKeyOfOid(oid, key);
+        }
+    }
+
+    private void removeUniqueKeyOfOid(final Object oid, final CacheUniqueKey key) {
+        uniqueKeysByOid.computeIfPresent(oid, (ignored, uniqueKeys) -> {
+            uniqueKeys.remove(key);
+            return uniqueKeys.isEmpty() ? null : uniqueKeys;
+        });
     }
 
     @Override
     public void evictAll() {
+        if (traceRecorder != null) {
+            traceRecorder.record(AccessTrace.Operation.EVICT_ALL, 0);
+        }
+
+        // Clear the index first, so that entries put after the invalidation below keep their index entry.
+        // Entries put in between are indexed, but may be removed by the invalidation, and are pruned afterward.
+        if (classKeyIndex != null) {
+            classKeyIndex.clear();
+        }
+
         caffeineCache.invalidateAll();
+        for (final CacheRegion region : regions) {
+            region.getCache().invalidateAll();
+        }
+        if (classKeyIndex != null) {
+            pruneClassKeyIndex();
+        }
+        if (offHeapTier != null) {
+            offHeapTier.clear();
+        }
+        if (snapshot != null) {
+            snapshot.clear();
+        }
+
+        uniqueKeyCache.invalidateAll();
+        uniqueKeysByOid.clear();
+
+        // Journaled after the caches were cleared, so that puts that preceded
+        // the invalidation of their object are journaled before it, too.
+        if (journal != null) {
+            journal.recordEvictAll();
+        }
+    }
+
+    private void pruneClassKeyIndex() {
+        for (final String className : classKeyIndex.getClassNames()) {
+            for (final Object oid : classKeyIndex.getKeys(className)) {
+                Cache<Object, Object> cache = getCacheForOid(oid, null);
+                if (cache == null) {
+                    cache = getCacheForClassName(className);
+                }
+
+                // Computed to hold the lock of the key, without creating an entry if it is absent.
+                cache.asMap().compute(oid, (key, value) -> {
+                    if (value == null) {
+                        classKeyIndex.remove(className, key);
+                    }
+                    return value;
+                });
+            }
+        }
     }
 
     @Override
@@ -108,16 +914,32 @@ public class CaffeineLevel2Cache extends AbstractLevel2Cache {
             return;
         }
 
-        caffeineCache.invalidateAll(Arrays.asList(oids));
+        evictAll(Arrays.asList(oids));
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public void evictAll(final Collection oids) {
         if (oids == null || oids.isEmpty()) {
             return;
         }
 
-        caffeineCache.invalidateAll(oids);
+        final var event = CacheEvents.beginBulkOperation();
+        try {
+            if (regions.isEmpty() && classKeyIndex == null && offHeapTier == null && snapshot == null && journal == null) {
+                if (traceRecorder != null) {
+                    oids.forEach(oid -> traceRecorder.record(AccessTrace.Operation.EVICT, AccessTrace.hash(oid)));
+                }
+                caffeineCache.invalidateAll(oids);
+                return;
+            }
+
+            for (final Object oid : oids) {
+                evict(oid);
+            }
+        } finally {
+            CacheEvents.commitBulkOperation(event, "evictAll", oids.size());
+        }
     }
 
     @Override
@@ -127,11 +949,105 @@ public class CaffeineLevel2Cache extends AbstractLevel2Cache {
             return;
         }
 
-        caffeineCache.asMap().values().removeIf(value -> {
-            final var pc = (CachedPC) value;
-            return pcClass.getName().equals(pc.getObjectClass().getName())
-                   || (subclasses && pcClass.isAssignableFrom(pc.getObjectClass()));
-        });
+        final var event = new CacheEvents.ClassEvictionEvent();
+        event.begin();
+        final long entriesRemoved = evictAllOfClass(pcClass, subclasses);
+        if (journal != null) {
+            getClassNames(pcClass, subclasses).forEach(journal::recordEvictClass);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.objectClass = pcClass.getName();
+            event.subclasses = subclasses;
+            event.entriesRemoved = entriesRemoved;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return The number of objects that were removed, excluding objects that are removed lazily in epoch mode
+     */
+    private long evictAllOfClass(final Class<?> pcClass, final boolean subclasses) {
+        if (traceRecorder != null) {
+            traceRecorder.record(AccessTrace.Operation.EVICT_CLASS, AccessTrace.hash(pcClass.getName()));
+        }
+        long removed = 0;
+        if (offHeapTier != null || snapshot != null) {
+            // Off-heap and snapshot objects are removed first, so that none of them
+            // can be promoted or restored after their class was evicted.
+            final List<String> classNames = getClassNames(pcClass, subclasses);
+            if (offHeapTier != null) {
+                removed += offHeapTier.removeClasses(classNames);
+            }
+            if (snapshot != null) {
+                removed += snapshot.removeClasses(classNames);
+            }
+        }
+
+        if (classKeyIndex != null) {
+            return removed + evictAllIndexed(pcClass, subclasses);
+        } else if (classGenerations != null) {
+            // Entries of older generations are removed lazily when they're accessed,
+            // or when they're evicted due to size or expiry constraints.
+            getClassNames(pcClass, subclasses).forEach(classGenerations::increment);
+            return removed;
+        }
+
+        removed += evictAll(caffeineCache, pcClass, subclasses);
+        for (final CacheRegion region : regions) {
+            removed += evictAll(region.getCache(), pcClass, subclasses);
+        }
+        return removed;
+    }
+
+    private List<String> getClassNames(final Class<?> pcClass, final boolean subclasses) {
+        final var classNames = new ArrayList<String>();
+        classNames.add(pcClass.getName());
+        if (subclasses) {
+            final String[] subclassNames = nucleusCtx.getMetaDataManager().getSubclassesForClass(pcClass.getName(), true);
+            if (subclassNames != null) {
+                classNames.addAll(Arrays.asList(subclassNames));
+            }
+        }
+
+        return classNames;
+    }
+
+    private long evictAllIndexed(final Class<?> pcClass, final boolean subclasses) {
+        final var removed = new long[1];
+        for (final String className : getClassNames(pcClass, subclasses)) {
+            for (final Object oid : classKeyIndex.getKeys(className)) {
+                Cache<Object, Object> cache = getCacheForOid(oid, null);
+                if (cache == null) {
+                    cache = getCacheForClassName(className);
+                }
+
+                cache.asMap().computeIfPresent(oid, (key, value) -> {
+                    if (!className.equals(getClassName(value))) {
+                        return value;
+                    }
+
+                    classKeyIndex.remove(className, key);
+                    removed[0]++;
+                    return null;
+                });
+            }
+        }
+        return removed[0];
+    }
+
+    private static long evictAll(final Cache<Object, Object> cache, final Class<?> pcClass, final boolean subclasses) {
+        long removed = 0;
+        for (final Map.Entry<Object, Object> entry : cache.asMap().entrySet()) {
+            final var pc = (CachedPC<?>) entry.getValue();
+            // Entries that were concurrently replaced are neither removed nor counted.
+            if ((pcClass.getName().equals(pc.getObjectClass().getName())
+                 || (subclasses && pcClass.isAssignableFrom(pc.getObjectClass())))
+                && cache.asMap().remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
     }
 
     @Override
@@ -140,12 +1056,279 @@ public class CaffeineLevel2Cache extends AbstractLevel2Cache {
             return null;
         }
 
-        return (CachedPC) caffeineCache.getIfPresent(oid);
+        final CachedPC<?> pc = lookup(oid);
+        CacheEvents.onGet(oid, pc);
+        if (classStatistics != null) {
+            recordLookup(oid, pc);
+        }
+        if (traceRecorder != null) {
+            traceRecorder.record(pc != null ? AccessTrace.Operation.HIT : AccessTrace.Operation.MISS, AccessTrace.hash(oid));
+        }
+        return pc;
+    }
+
+    private void recordLookup(final Object oid, final CachedPC<?> pc) {
+        if (pc != null) {
+            classStatistics.recordHit(pc.getObjectClass().getName());
+            return;
+        }
+
+        // Misses of objects whose class can't be derived from their identity are not recorded.
+        final String className = IdentityUtils.getTargetClassNameForIdentitySimple(oid);
+        if (className != null) {
+            classStatistics.recordMiss(className);
+        }
+    }
+
+    private CachedPC<?> lookup(final Object oid) {
+        final CachedPC<?> pc = lookupOnHeap(oid);
+        return pc != null ? pc : promoteOrRestore(oid);
+    }
+
+    private CachedPC<?> promoteOrRestore(final Object oid) {
+        final CachedPC<?> pc = offHeapTier != null ? promote(oid) : null;
+        return pc != null || snapshot == null ? pc : restore(oid);
+    }
+
+    private CachedPC<?> lookupOnHeap(final Object oid) {
+        final Cache<Object, Object> cache = getCacheForOid(oid, null);
+        if (cache != null) {
+            return getIfPresent(cache, oid, true);
+        }
+
+        // The region can't be derived from the identity alone,
+        // so every cache may hold the object.
+        final CachedPC<?> pc = getIfPresent(caffeineCache, oid, true);
+        if (pc != null) {
+            return pc;
+        }
+        for (final CacheRegion region : regions) {
+            final CachedPC<?> regionPc = getIfPresent(region.getCache(), oid, true);
+            if (regionPc != null) {
+                return regionPc;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Moves the object of the given identity from the off-heap tier back into its on-heap cache.
+     */
+    private CachedPC<?> promote(final Object oid) {
+        final String className = offHeapTier.getClassName(oid);
+        if (className == null) {
+            return null;
+        }
+
+        Cache<Object, Object> cache = getCacheForOid(oid, null);
+        if (cache == null) {
+            cache = getCacheForClassName(className);
+        }
+        if (cache.policy().expireAfterWrite().isPresent()) {
+            // Promoting the object would restart its lifetime, which can't be shortened for a fixed expiry.
+            // It is served from the off-heap tier instead, until it expires there.
+            final OffHeapTier.Entry entry = offHeapTier.get(oid);
+            return entry != null && !isStale(entry) ? entry.pc() : null;
+        }
+
+        final var promoted = new OffHeapTier.Entry[1];
+        cache.asMap().compute(oid, (key, current) -> {
+            if (current != null) {
+                // A concurrent put supersedes the off-heap copy.
+                return current;
+            }
+
+            final OffHeapTier.Entry entry = offHeapTier.take(key);
+            if (entry == null || isStale(entry)) {
+                return null;
+            }
+            if (classKeyIndex != null) {
+                classKeyIndex.add(className, key);
+            }
+
+            promoted[0] = entry;
+            return classGenerations != null ? new ClassGenerations.Entry(entry.pc(), entry.generation()) : entry.pc();
+        });
+        if (promoted[0] == null) {
+            return null;
+        }
+
+        // Variable expiry can be set per entry, and is set to the object's remaining lifetime.
+        // Entries that expire after access start a new lifetime anyway, since promotions are accesses.
+        final long remainingMillis = promoted[0].expiresAtMillis() - System.currentTimeMillis();
+        if (promoted[0].expiresAtMillis() != Long.MAX_VALUE) {
+            cache.policy().expireVariably().ifPresent(expiration ->
+                    expiration.setExpiresAfter(oid, Math.max(0, remainingMillis), TimeUnit.MILLISECONDS));
+        }
+
+        return promoted[0].pc();
+    }
+
+    private boolean isStale(final OffHeapTier.Entry entry) {
+        return classGenerations != null && classGenerations.isStale(new ClassGenerations.Entry(entry.pc(), entry.generation()));
+    }
+
+    /**
+     * Moves the object of the given identity from the snapshot into its on-heap cache.
+     */
+    private CachedPC<?> restore(final Object oid) {
+        final String className = snapshot.getClassName(oid);
+        if (className == null) {
+            return null;
+        }
+
+        Cache<Object, Object> cache = getCacheForOid(oid, null);
+        if (cache == null) {
+            cache = getCacheForClassName(className);
+        }
+
+        final var restored = new CachedPC<?>[1];
+        cache.asMap().compute(oid, (key, current) -> {
+            if (current != null) {
+                // A concurrent put supersedes the snapshot's copy.
+                return current;
+            }
+
+            final CachedPC<?> pc = snapshot.take(key);
+            if (pc == null) {
+                return null;
+            }
+            if (classKeyIndex != null) {
+                classKeyIndex.add(className, key);
+            }
+
+            restored[0] = pc;
+            return classGenerations != null ? classGenerations.newEntry(pc) : pc;
+        });
+
+        return restored[0];
+    }
+
+    private CachedPC<?> getIfPresent(final Cache<Object, Object> cache, final Object oid, final boolean recordStats) {
+        final Object value = recordStats ? cache.getIfPresent(oid) : cache.asMap().get(oid);
+        if (classGenerations == null || value == null) {
+            return (CachedPC<?>) value;
+        }
+
+        final var entry = (ClassGenerations.Entry) value;
+        if (classGenerations.isStale(entry)) {
+            // Note that Caffeine has already recorded this as a hit.
+            cache.asMap().remove(oid, entry);
+            return null;
+        }
+
+        return entry.pc();
+    }
+
+    @Override
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public Map<Object, CachedPC> getAll(final Collection oids) {
+        if (oids == null || oids.isEmpty()) {
+            return new HashMap<>();
+        }
+
+        final var event = CacheEvents.beginBulkOperation();
+        try {
+            final var pcs = new HashMap<Object, CachedPC>(Math.max(16, (int) (oids.size() / 0.75f) + 1));
+            if (regions.isEmpty()) {
+                getAllPresent(caffeineCache, oids, pcs);
+                promoteAll(oids, pcs);
+                recordLookups(oids, pcs);
+                return pcs;
+            }
+
+            final var oidsByCache = new HashMap<Cache<Object, Object>, List<Object>>();
+            for (final Object oid : (Collection<Object>) oids) {
+                final Cache<Object, Object> cache = getCacheForOid(oid, null);
+                if (cache != null) {
+                    oidsByCache.computeIfAbsent(cache, ignored -> new ArrayList<>()).add(oid);
+                } else {
+                    final CachedPC<?> pc = lookup(oid);
+                    if (pc != null) {
+                        pcs.put(oid, pc);
+                    }
+                }
+            }
+            oidsByCache.forEach((cache, cacheOids) -> getAllPresent(cache, cacheOids, pcs));
+            promoteAll(oids, pcs);
+            recordLookups(oids, pcs);
+
+            return pcs;
+        } finally {
+            CacheEvents.commitBulkOperation(event, "getAll", oids.size());
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void promoteAll(final Collection<?> oids, final Map<Object, CachedPC> pcs) {
+        if ((offHeapTier == null && snapshot == null) || pcs.size() == oids.size()) {
+            return;
+        }
+
+        for (final Object oid : oids) {
+            if (!pcs.containsKey(oid)) {
+                final CachedPC<?> pc = promoteOrRestore(oid);
+                if (pc != null) {
+                    pcs.put(oid, pc);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void recordLookups(final Collection<?> oids, final Map<Object, CachedPC> pcs) {
+        if (classStatistics == null && traceRecorder == null) {
+            return;
+        }
+
+        for (final Object oid : oids) {
+            final CachedPC<?> pc = pcs.get(oid);
+            if (classStatistics != null) {
+                recordLookup(oid, pc);
+            }
+            if (traceRecorder != null) {
+                traceRecorder.record(pc != null ? AccessTrace.Operation.HIT : AccessTrace.Operation.MISS, AccessTrace.hash(oid));
+            }
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void getAllPresent(final Cache<Object, Object> cache, final Iterable<?> oids, final Map<Object, CachedPC> pcs) {
+        for (final Map.Entry<Object, Object> entry : cache.getAllPresent(oids).entrySet()) {
+            if (classGenerations == null) {
+                pcs.put(entry.getKey(), (CachedPC<?>) entry.getValue());
+                continue;
+            }
+
+            final var generationalEntry = (ClassGenerations.Entry) entry.getValue();
+            if (classGenerations.isStale(generationalEntry)) {
+                cache.asMap().remove(entry.getKey(), generationalEntry);
+            } else {
+                pcs.put(entry.getKey(), generationalEntry.pc());
+            }
+        }
     }
 
     @Override
     public CachedPC getUnique(final CacheUniqueKey key) {
-        return get(key);
+        if (key == null) {
+            return null;
+        }
+
+        final Object oid = uniqueKeyCache.getIfPresent(key);
+        if (oid == null) {
+            return null;
+        }
+
+        final CachedPC<?> pc = get(oid);
+        if (pc == null) {
+            // The object is gone, but the removal of its unique keys may still be pending.
+            uniqueKeyCache.asMap().remove(key, oid);
+            removeUniqueKeyOfOid(oid, key);
+        }
+
+        return pc;
     }
 
     @Override
@@ -154,18 +1337,165 @@ public class CaffeineLevel2Cache extends AbstractLevel2Cache {
             return null;
         }
 
-        caffeineCache.put(oid, pc);
+        CacheEvents.onPut(pc);
+        if (classStatistics != null) {
+            classStatistics.recordPut(pc.getObjectClass().getName());
+        }
+        if (traceRecorder != null) {
+            traceRecorder.record(AccessTrace.Operation.PUT, AccessTrace.hash(oid));
+        }
+
+        final Cache<Object, Object> cache = getCacheForOid(oid, pc);
+        if (metrics != null) {
+            metrics.recordPuts(cache, 1);
+        }
+        store(cache, oid, pc);
         return pc;
     }
 
+    private void store(final Cache<Object, Object> cache, final Object oid, final CachedPC<?> pc) {
+        final Object value = classGenerations != null ? classGenerations.newEntry(pc) : pc;
+        if (classKeyIndex == null && offHeapTier == null && snapshot == null && journal == null) {
+            cache.put(oid, value);
+            return;
+        }
+
+        final String className = pc.getObjectClass().getName();
+        cache.asMap().compute(oid, (key, previous) -> {
+            if (classKeyIndex != null) {
+                if (previous != null && !className.equals(getClassName(previous))) {
+                    classKeyIndex.remove(getClassName(previous), key);
+                }
+
+                classKeyIndex.add(className, key);
+            }
+            // Off-heap and snapshot copies, if any, are outdated now.
+            if (offHeapTier != null) {
+                offHeapTier.remove(key);
+            }
+            if (snapshot != null) {
+                snapshot.remove(key);
+            }
+            if (journal != null) {
+                journal.recordPut(key, pc);
+            }
+            return value;
+        });
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void putAll(final Map<Object, CachedPC> pcs) {
+        if (pcs == null || pcs.isEmpty()) {
+            return;
+        }
+
+        final var event = CacheEvents.beginBulkOperation();
+        try {
+            if (classKeyIndex != null || offHeapTier != null || snapshot != null || journal != null) {
+                // Index, off-heap tier, snapshot and journal maintenance require every entry to be written atomically with it.
+                pcs.forEach(this::put);
+                return;
+            }
+
+            final var valuesByCache = new HashMap<Cache<Object, Object>, Map<Object, Object>>();
+            for (final Map.Entry<Object, CachedPC> entry : pcs.entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null) {
+                    continue;
+                }
+
+                final Object value = classGenerations != null
+                        ? classGenerations.newEntry(entry.getValue())
+                        : entry.getValue();
+                valuesByCache
+                        .computeIfAbsent(getCacheForOid(entry.getKey(), entry.getValue()), ignored -> new HashMap<>())
+                        .put(entry.getKey(), value);
+                if (classStatistics != null) {
+                    classStatistics.recordPut(entry.getValue().getObjectClass().getName());
+                }
+                if (traceRecorder != null) {
+                    traceRecorder.record(AccessTrace.Operation.PUT, AccessTrace.hash(entry.getKey()));
+                }
+            }
+            valuesByCache.forEach((cache, values) -> {
+                cache.putAll(values);
+                if (metrics != null) {
+                    metrics.recordPuts(cache, values.size());
+                }
+            });
+        } finally {
+            CacheEvents.commitBulkOperation(event, "putAll", pcs.size());
+        }
+    }
+
     @Override
     public CachedPC putUnique(final CacheUniqueKey key, final CachedPC pc) {
-        return put(key, pc);
+        if (key == null || pc == null || pc.getId() == null) {
+            return null;
+        }
+
+        // DataNucleus puts the object itself via put(Object, CachedPC), so only the mapping is recorded here.
+        addUniqueKeyOfOid(pc.getId(), key);
+        uniqueKeyCache.put(key, pc.getId());
+        return pc;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void putUniqueAll(final Map<CacheUniqueKey, CachedPC> pcs) {
+        if (pcs == null || pcs.isEmpty()) {
+            return;
+        }
+
+        final var event = CacheEvents.beginBulkOperation();
+        try {
+            final var oidsByUniqueKey = new HashMap<CacheUniqueKey, Object>();
+            for (final Map.Entry<CacheUniqueKey, CachedPC> entry : pcs.entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null || entry.getValue().getId() == null) {
+                    continue;
+                }
+
+                addUniqueKeyOfOid(entry.getValue().getId(), entry.getKey());
+                oidsByUniqueKey.put(entry.getKey(), entry.getValue().getId());
+            }
+            uniqueKeyCache.putAll(oidsByUniqueKey);
+        } finally {
+            CacheEvents.commitBulkOperation(event, "putUniqueAll", pcs.size());
+        }
+    }
+
+    private void addUniqueKeyOfOid(final Object oid, final CacheUniqueKey key) {
+        uniqueKeysByOid.compute(oid, (ignored, uniqueKeys) -> {
+            final Set<CacheUniqueKey> keys = uniqueKeys != null ? uniqueKeys : ConcurrentHashMap.newKeySet();
+            keys.add(key);
+            return keys;
+        });
     }
 
     @Override
     public boolean containsOid(final Object oid) {
-        return caffeineCache.asMap().containsKey(oid);
+        if (oid == null) {
+            return false;
+        }
+
+        final Cache<Object, Object> cache = getCacheForOid(oid, null);
+        if (cache != null) {
+            return getIfPresent(cache, oid, false) != null
+                   || (offHeapTier != null && offHeapTier.contains(oid))
+                   || (snapshot != null && snapshot.contains(oid));
+        }
+
+        if (getIfPresent(caffeineCache, oid, false) != null) {
+            return true;
+        }
+        for (final CacheRegion region : regions) {
+            if (getIfPresent(region.getCache(), oid, false) != null) {
+                return true;
+            }
+        }
+
+        return (offHeapTier != null && offHeapTier.contains(oid))
+               || (snapshot != null && snapshot.contains(oid));
     }
 
     @Override
@@ -175,9 +1505,84 @@ public class CaffeineLevel2Cache extends AbstractLevel2Cache {
         // writes (and occasionally reads). We don't expect #getSize() to
         // be called often during normal operation, so we take the potential
         // performance penalty of performing cleanUp here, in favor of more
-        // accurate size estimates.
-        caffeineCache.cleanUp();
+        // accurate size estimates. For the same reason, stale entries
+        // of the epoch class eviction mode are purged here.
+        long size = cleanUp(caffeineCache);
+        for (final CacheRegion region : regions) {
+            size += cleanUp(region.getCache());
+        }
+        if (offHeapTier != null) {
+            size += offHeapTier.size();
+        }
+        if (snapshot != null) {
+            size += snapshot.size();
+        }
+
+        return Math.toIntExact(size);
+    }
+
+    private long cleanUp(final Cache<Object, Object> cache) {
+        if (classGenerations != null) {
+            cache.asMap().values().removeIf(value -> classGenerations.isStale((ClassGenerations.Entry) value));
+        }
+
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Determine the cache responsible for a given object.
+     * <p>
+     * The target class of the identity is preferred over the class of the {@link CachedPC},
+     * such that {@link #put(Object, CachedPC)} and {@link #get(Object)} agree on the same cache.
+     *
+     * @param oid The identity of the object
+     * @param pc  The cached object, if known
+     * @return The responsible cache, or {@code null} when it can't be determined without the {@link CachedPC}
+     */
+    private Cache<Object, Object> getCacheForOid(final Object oid, final CachedPC<?> pc) {
+        if (regions.isEmpty()) {
+            return caffeineCache;
+        }
+
+        String className = IdentityUtils.getTargetClassNameForIdentitySimple(oid);
+        if (className == null && pc != null) {
+            className = pc.getObjectClass().getName();
+        }
+        if (className == null) {
+            return null;
+        }
+
+        return getCacheForClassName(className);
+    }
+
+    private Cache<Object, Object> getCacheForClassName(final String className) {
+        if (regions.isEmpty()) {
+            return caffeineCache;
+        }
+
+        return cacheByClassName.computeIfAbsent(className, this::resolveCache);
+    }
+
+    private Cache<Object, Object> resolveCache(final String className) {
+        CacheRegion bestRegion = null;
+        int bestMatch = -1;
+        for (final CacheRegion region : regions) {
+            final int match = region.match(className);
+            if (match > bestMatch) {
+                bestRegion = region;
+                bestMatch = match;
+            }
+        }
+
+        return bestRegion != null ? bestRegion.getCache() : caffeineCache;
+    }
+
+    static CachedPC<?> toCachedPC(final Object value) {
+        return value instanceof ClassGenerations.Entry entry ? entry.pc() : (CachedPC<?>) value;
+    }
 
-        return Math.toIntExact(caffeineCache.estimatedSize());
+    private static String getClassName(final Object value) {
+        return toCachedPC(value).getObjectClass().getName();
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+/**
+ * Management interface of a {@link CaffeineLevel2Cache}.
+ * <p>
+ * Statistics and sizes are aggregated over the default cache and all region caches.
+ * Tuning operations only apply to the default cache, since regions are tuned via their spec.
+ */
+public interface CaffeineLevel2CacheMXBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getEvictionCount();
+
+    long getEvictionWeight();
+
+    long getEstimatedSize();
+
+    /**
+     * @return The maximum size, or maximum weight if {@link #isWeighted()}, of the default cache,
+     * or {@code -1} if it is unbounded
+     */
+    long getMaximumSize();
+
+    boolean isWeighted();
+
+    /**
+     * @return The expiry duration of the default cache in milliseconds,
+     * or {@code -1} if it does not expire entries after a fixed duration
+     */
+    long getExpiryMillis();
+
+    /**
+     * @return Age of the oldest entry in milliseconds, or {@code -1} if no cache tracks entry ages.
+     * Ages are measured since the last write, or the last access when expiring after access.
+     */
+    long getOldestEntryAgeMillis();
+
+    /**
+     * @return Age of the youngest entry in milliseconds, or {@code -1} if no cache tracks entry ages.
+     */
+    long getYoungestEntryAgeMillis();
+
+    /**
+     * @throws IllegalStateException When the default cache is unbounded
+     */
+    void setMaximumSize(long maximumSize);
+
+    /**
+     * @throws IllegalStateException When the default cache does not expire entries after a fixed duration
+     */
+    void setExpiryMillis(long expiryMillis);
+
+    void evictClass(String className, boolean subclasses);
+
+    void evictAll();
+
+}
@@ -0,0 +1,203 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+import org.datanucleus.ClassLoaderResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers a {@link CaffeineLevel2CacheMXBean} for a {@link CaffeineLevel2Cache} with the platform MBean server.
+ */
+final class CaffeineLevel2CacheManagement implements CaffeineLevel2CacheMXBean {
+
+    static final String OBJECT_NAME_DOMAIN = "io.github.nscuro.datanucleus.cache.caffeine";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CaffeineLevel2CacheManagement.class);
+
+    private final CaffeineLevel2Cache level2Cache;
+    private final ClassLoaderResolver clr;
+    private ObjectName objectName;
+
+    CaffeineLevel2CacheManagement(final CaffeineLevel2Cache level2Cache, final ClassLoaderResolver clr) {
+        this.level2Cache = level2Cache;
+        this.clr = clr;
+    }
+
+    void register(final String name) {
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            objectName = new ObjectName(OBJECT_NAME_DOMAIN + ":type=CaffeineLevel2Cache,name=" + ObjectName.quote(name));
+            mbeanServer.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register MBean for cache {}", name, e);
+            objectName = null;
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Failed to unregister MBean {}", objectName, e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    private List<Cache<?, ?>> getCaches() {
+        final var caches = new ArrayList<Cache<?, ?>>();
+        caches.add(level2Cache.getCaffeineCache());
+        caches.addAll(level2Cache.getRegionCaches().values());
+        return caches;
+    }
+
+    @Override
+    public long getHitCount() {
+        return level2Cache.getStats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return level2Cache.getStats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return level2Cache.getStats().hitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return level2Cache.getStats().evictionCount();
+    }
+
+    @Override
+    public long getEvictionWeight() {
+        return level2Cache.getStats().evictionWeight();
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return level2Cache.getEstimatedSize();
+    }
+
+    @Override
+    public long getMaximumSize() {
+        return level2Cache.getCaffeineCache().policy().eviction()
+                .map(Policy.Eviction::getMaximum)
+                .orElse(-1L);
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return level2Cache.getCaffeineCache().policy().eviction()
+                .map(Policy.Eviction::isWeighted)
+                .orElse(false);
+    }
+
+    @Override
+    public long getExpiryMillis() {
+        return getFixedExpiration(level2Cache.getCaffeineCache())
+                .map(expiration -> expiration.getExpiresAfter(TimeUnit.MILLISECONDS))
+                .orElse(-1L);
+    }
+
+    @Override
+    public long getOldestEntryAgeMillis() {
+        return getCaches().stream()
+                .mapToLong(cache -> getEntryAgeMillis(cache, true))
+                .max()
+                .orElse(-1);
+    }
+
+    @Override
+    public long getYoungestEntryAgeMillis() {
+        return getCaches().stream()
+                .mapToLong(cache -> getEntryAgeMillis(cache, false))
+                .filter(age -> age >= 0)
+                .min()
+                .orElse(-1);
+    }
+
+    private static <K, V> long getEntryAgeMillis(final Cache<K, V> cache, final boolean oldest) {
+        final Optional<Policy.FixedExpiration<K, V>> expiration = getFixedExpiration(cache);
+        if (expiration.isEmpty()) {
+            return -1;
+        }
+
+        final Map<K, V> entries = oldest ? expiration.get().oldest(1) : expiration.get().youngest(1);
+        if (entries.isEmpty()) {
+            return -1;
+        }
+
+        return expiration.get().ageOf(entries.keySet().iterator().next(), TimeUnit.MILLISECONDS).orElse(-1);
+    }
+
+    private static <K, V> Optional<Policy.FixedExpiration<K, V>> getFixedExpiration(final Cache<K, V> cache) {
+        return cache.policy().expireAfterWrite().or(() -> cache.policy().expireAfterAccess());
+    }
+
+    @Override
+    public void setMaximumSize(final long maximumSize) {
+        final CacheMaximum cacheMaximum = level2Cache.getCacheMaximum();
+        if (cacheMaximum == null) {
+            throw new IllegalStateException("The cache is unbounded, and can't be resized at runtime");
+        }
+        LOGGER.info("Changing maximum {} of the cache from {} to {}",
+                cacheMaximum.isWeighted() ? "weight" : "size", cacheMaximum.getTarget(), maximumSize);
+        cacheMaximum.setTarget(maximumSize);
+    }
+
+    @Override
+    public void setExpiryMillis(final long expiryMillis) {
+        final Policy.FixedExpiration<?, ?> expiration = getFixedExpiration(level2Cache.getCaffeineCache())
+                .orElseThrow(() -> new IllegalStateException("The cache does not expire entries after a fixed duration"));
+        LOGGER.info("Changing expiry of the cache from {}ms to {}ms", expiration.getExpiresAfter(TimeUnit.MILLISECONDS), expiryMillis);
+        expiration.setExpiresAfter(Duration.ofMillis(expiryMillis));
+    }
+
+    @Override
+    public void evictClass(final String className, final boolean subclasses) {
+        level2Cache.evictAll(clr.classForName(className), subclasses);
+    }
+
+    @Override
+    public void evictAll() {
+        level2Cache.evictAll();
+    }
+
+}
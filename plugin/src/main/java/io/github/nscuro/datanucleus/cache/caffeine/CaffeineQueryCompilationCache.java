@@ -0,0 +1,39 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.NucleusContext;
+import org.datanucleus.store.query.cache.QueryCompilationCache;
+import org.datanucleus.store.query.compiler.QueryCompilation;
+
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_QUERYCOMPILATION_CAFFEINE_MAXIMUM_SIZE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_QUERYCOMPILATION_CAFFEINE_STATISTICS_ENABLED;
+
+/**
+ * A Caffeine-backed cache of generic query compilations.
+ */
+public class CaffeineQueryCompilationCache extends AbstractCaffeineCompilationCache<QueryCompilation> implements QueryCompilationCache {
+
+    public CaffeineQueryCompilationCache(final NucleusContext nucleusCtx) {
+        super(nucleusCtx.getConfiguration(),
+                PROPERTY_CACHE_QUERYCOMPILATION_CAFFEINE_MAXIMUM_SIZE,
+                PROPERTY_CACHE_QUERYCOMPILATION_CAFFEINE_STATISTICS_ENABLED);
+    }
+
+}
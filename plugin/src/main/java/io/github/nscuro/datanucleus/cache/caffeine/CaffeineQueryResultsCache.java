@@ -0,0 +1,375 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.datanucleus.Configuration;
+import org.datanucleus.NucleusContext;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.store.query.Query;
+import org.datanucleus.store.query.QueryUtils;
+import org.datanucleus.store.query.cache.QueryResultsCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_EXPIRY_MILLIS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_EXPIRY_MODE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_MAXIMUM_WEIGHT;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_STATISTICS_ENABLED;
+import static org.datanucleus.PropertyNames.PROPERTY_CACHE_QUERYRESULTS_MAXSIZE;
+
+public class CaffeineQueryResultsCache implements QueryResultsCache {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(CaffeineQueryResultsCache.class);
+    private static final String EXPIRY_MODE_AFTER_ACCESS = "after-access";
+    private static final String EXPIRY_MODE_AFTER_WRITE = "after-write";
+
+    // Query results cache keys start with the query string, e.g. "JDOQL:SELECT FROM com.acme.Person WHERE ...".
+    // Keys with more than one FROM clause, e.g. due to subqueries or string literals, are ambiguous.
+    private static final Pattern CANDIDATE_PATTERN = Pattern.compile("\\sFROM\\s+([\\w.$]+)", Pattern.CASE_INSENSITIVE);
+
+    private final transient NucleusContext nucleusCtx;
+    private final transient Cache<String, List<Object>> caffeineCache;
+
+    // Keys by the candidate class (or entity) name of their query, so that results can be
+    // evicted when objects of that class change. Keys whose candidate can't be determined
+    // unambiguously are evicted whenever any class changes.
+    private final transient Map<String, Set<String>> keysByCandidate = new ConcurrentHashMap<>();
+    private final transient Set<String> keysWithUnknownCandidate = ConcurrentHashMap.newKeySet();
+
+    // Pinned results are held outside of Caffeine, so they're never evicted.
+    private final transient Map<String, List<Object>> pinnedResults = new ConcurrentHashMap<>();
+    private final transient Set<String> pinnedKeys = ConcurrentHashMap.newKeySet();
+    private final transient Set<String> pinnedKeyPrefixes = ConcurrentHashMap.newKeySet();
+
+    public CaffeineQueryResultsCache(final NucleusContext nucleusCtx) {
+        this.nucleusCtx = nucleusCtx;
+
+        final Configuration config = nucleusCtx.getConfiguration();
+
+        Caffeine<Object, Object> caffeine = Caffeine.newBuilder();
+        final long maximumWeight = CaffeineLevel2Cache.getLongProperty(config, PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_MAXIMUM_WEIGHT);
+        if (maximumWeight > 0) {
+            // Results are weighed by their number of elements, which are typically object ids.
+            caffeine = caffeine
+                    .maximumWeight(maximumWeight)
+                    .weigher((key, results) -> 1 + ((List<?>) results).size());
+        } else if (config.getIntProperty(PROPERTY_CACHE_QUERYRESULTS_MAXSIZE) >= 0) {
+            caffeine.maximumSize(config.getIntProperty(PROPERTY_CACHE_QUERYRESULTS_MAXSIZE));
+        }
+        if (config.getIntProperty(PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_EXPIRY_MILLIS) > 0) {
+            final Duration expiryDuration = Duration.ofMillis(config.getIntProperty(PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_EXPIRY_MILLIS));
+
+            if (EXPIRY_MODE_AFTER_ACCESS.equalsIgnoreCase(config.getStringProperty(PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_EXPIRY_MODE))) {
+                caffeine.expireAfterAccess(expiryDuration);
+            } else if (EXPIRY_MODE_AFTER_WRITE.equalsIgnoreCase(config.getStringProperty(PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_EXPIRY_MODE))) {
+                caffeine.expireAfterWrite(expiryDuration);
+            } else {
+                LOGGER.warn("No expiry mode ({}) configured, assuming {}",
+                        PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_EXPIRY_MODE, EXPIRY_MODE_AFTER_WRITE);
+                caffeine.expireAfterWrite(expiryDuration);
+            }
+        }
+        if (config.getBooleanProperty(PROPERTY_CACHE_QUERYRESULTS_CAFFEINE_STATISTICS_ENABLED)) {
+            caffeine.recordStats();
+        }
+
+        // The candidate index is only mutated while Caffeine holds the lock of the respective key,
+        // i.e. in compute functions and in the synchronous eviction listener. This prevents
+        // evictions of older entries from un-indexing newer entries of the same key.
+        caffeineCache = caffeine
+                .<String, List<Object>>evictionListener((key, results, cause) -> unindex(key))
+                .build();
+    }
+
+    public Cache<?, ?> getCaffeineCache() {
+        return caffeineCache;
+    }
+
+    @Override
+    public void close() {
+        evictAll();
+    }
+
+    @Override
+    public void evict(final Class candidate) {
+        if (candidate == null) {
+            return;
+        }
+
+        // Queries for a superclass may return instances of the given class,
+        // so their results are affected as well.
+        AbstractClassMetaData cmd = nucleusCtx.getMetaDataManager()
+                .getMetaDataForClass(candidate, nucleusCtx.getClassLoaderResolver(candidate.getClassLoader()));
+        if (cmd == null) {
+            evictByCandidate(candidate.getName());
+        }
+        while (cmd != null) {
+            evictByCandidate(cmd.getFullClassName());
+            // JDOQL candidates may be unqualified when the query declares imports.
+            evictByCandidate(cmd.getName());
+            if (cmd.getEntityName() != null) {
+                evictByCandidate(cmd.getEntityName());
+            }
+
+            cmd = cmd.getSuperAbstractClassMetaData();
+        }
+
+        for (final String key : keysWithUnknownCandidate) {
+            evict(key);
+        }
+    }
+
+    private void evictByCandidate(final String candidate) {
+        final Set<String> keys = keysByCandidate.get(candidate);
+        if (keys != null) {
+            keys.forEach(this::evict);
+        }
+    }
+
+    @Override
+    public void evict(final Query query) {
+        // Keys of all parameter values start with the base key, and thus share its candidate.
+        // Keys that are ambiguous due to their parameters are tracked as unknown.
+        final String baseKey = QueryUtils.getKeyForQueryResultsCache(query, null);
+        final String candidate = getCandidate(baseKey);
+        if (candidate == null) {
+            caffeineCache.asMap().keySet().stream()
+                    .filter(key -> key.startsWith(baseKey))
+                    .toList()
+                    .forEach(this::evict);
+            pinnedResults.keySet().stream()
+                    .filter(key -> key.startsWith(baseKey))
+                    .toList()
+                    .forEach(this::evict);
+            return;
+        }
+
+        Stream.concat(keysByCandidate.getOrDefault(candidate, Set.of()).stream(), keysWithUnknownCandidate.stream())
+                .filter(key -> key.startsWith(baseKey))
+                .toList()
+                .forEach(this::evict);
+    }
+
+    @Override
+    public void evict(final Query query, final Map params) {
+        evict(QueryUtils.getKeyForQueryResultsCache(query, params));
+    }
+
+    private void evict(final String key) {
+        caffeineCache.asMap().computeIfPresent(key, (ignored, results) -> {
+            unindex(key);
+            return null;
+        });
+        if (pinnedResults.remove(key) != null) {
+            unindex(key);
+        }
+    }
+
+    @Override
+    public void evictAll() {
+        // Clear the index first, so that results put after the invalidation below keep their index entry.
+        // Results put in between are indexed, but may be removed by the invalidation, and are pruned afterward.
+        keysByCandidate.values().forEach(Set::clear);
+        keysWithUnknownCandidate.clear();
+
+        caffeineCache.invalidateAll();
+        pinnedResults.clear();
+
+        Stream.concat(keysByCandidate.values().stream().flatMap(Set::stream), keysWithUnknownCandidate.stream())
+                .toList()
+                .forEach(key -> caffeineCache.asMap().compute(key, (ignored, results) -> {
+                    // Computed to hold the lock of the key, without creating an entry if it is absent.
+                    if (results == null && !pinnedResults.containsKey(key)) {
+                        unindex(key);
+                    }
+                    return results;
+                }));
+    }
+
+    @Override
+    public void pin(final Query query) {
+        pin(QueryUtils.getKeyForQueryResultsCache(query, null), true);
+    }
+
+    @Override
+    public void pin(final Query query, final Map params) {
+        pin(QueryUtils.getKeyForQueryResultsCache(query, params), false);
+    }
+
+    private void pin(final String key, final boolean prefix) {
+        if (prefix) {
+            pinnedKeyPrefixes.add(key);
+            caffeineCache.asMap().keySet().stream()
+                    .filter(cachedKey -> cachedKey.startsWith(key))
+                    .forEach(this::moveToPinned);
+        } else {
+            pinnedKeys.add(key);
+            moveToPinned(key);
+        }
+    }
+
+    private void moveToPinned(final String key) {
+        // Explicit removals don't notify the eviction listener, so the key remains indexed.
+        final List<Object> results = caffeineCache.asMap().remove(key);
+        if (results != null) {
+            pinnedResults.put(key, results);
+        }
+    }
+
+    @Override
+    public void unpin(final Query query) {
+        final String baseKey = QueryUtils.getKeyForQueryResultsCache(query, null);
+        pinnedKeyPrefixes.remove(baseKey);
+        pinnedResults.keySet().stream()
+                .filter(key -> key.startsWith(baseKey) && !pinnedKeys.contains(key))
+                .toList()
+                .forEach(this::moveToCaffeine);
+    }
+
+    @Override
+    public void unpin(final Query query, final Map params) {
+        final String key = QueryUtils.getKeyForQueryResultsCache(query, params);
+        pinnedKeys.remove(key);
+        if (!isPinned(key)) {
+            moveToCaffeine(key);
+        }
+    }
+
+    private void moveToCaffeine(final String key) {
+        final List<Object> results = pinnedResults.remove(key);
+        if (results != null) {
+            caffeineCache.put(key, results);
+        }
+    }
+
+    private boolean isPinned(final String key) {
+        if (pinnedKeys.contains(key)) {
+            return true;
+        }
+        for (final String prefix : pinnedKeyPrefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public int size() {
+        return Math.toIntExact(caffeineCache.estimatedSize() + pinnedResults.size());
+    }
+
+    @Override
+    public List<Object> get(final String queryKey) {
+        if (queryKey == null) {
+            return null;
+        }
+
+        if (!pinnedResults.isEmpty()) {
+            final List<Object> pinned = pinnedResults.get(queryKey);
+            if (pinned != null) {
+                return pinned;
+            }
+        }
+
+        return caffeineCache.getIfPresent(queryKey);
+    }
+
+    @Override
+    public List<Object> put(final String queryKey, final List<Object> results) {
+        if (queryKey == null || results == null) {
+            return null;
+        }
+
+        if ((!pinnedKeys.isEmpty() || !pinnedKeyPrefixes.isEmpty()) && isPinned(queryKey)) {
+            index(queryKey);
+            pinnedResults.put(queryKey, results);
+            return results;
+        }
+
+        caffeineCache.asMap().compute(queryKey, (key, previousResults) -> {
+            index(key);
+            return results;
+        });
+        return results;
+    }
+
+    @Override
+    public boolean contains(final String queryKey) {
+        return queryKey != null
+               && (pinnedResults.containsKey(queryKey) || caffeineCache.asMap().containsKey(queryKey));
+    }
+
+    private void index(final String key) {
+        final String candidate = getCandidate(key);
+        if (candidate != null) {
+            keysByCandidate.computeIfAbsent(candidate, ignored -> ConcurrentHashMap.newKeySet()).add(key);
+        } else {
+            keysWithUnknownCandidate.add(key);
+        }
+    }
+
+    private void unindex(final String key) {
+        if (key == null) {
+            return;
+        }
+
+        final String candidate = getCandidate(key);
+        if (candidate != null) {
+            final Set<String> keys = keysByCandidate.get(candidate);
+            if (keys != null) {
+                keys.remove(key);
+            }
+        } else {
+            keysWithUnknownCandidate.remove(key);
+        }
+    }
+
+    /**
+     * @return The candidate of the query of the given key, or {@code null} if it has no or more than one FROM clause
+     */
+    static String getCandidate(final String key) {
+        final Matcher matcher = CANDIDATE_PATTERN.matcher(key);
+        if (!matcher.find()) {
+            return null;
+        }
+
+        final String candidate = matcher.group(1);
+        return matcher.find() ? null : candidate;
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.cache.CachedPC;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-class generation counters for lazy, constant-time invalidation of all objects of a class.
+ * <p>
+ * Cached objects are wrapped in a {@link Entry} that records the generation of their class at
+ * the time they were put. Incrementing the generation of a class renders all of its entries
+ * stale, without having to visit them. Stale entries are treated as misses and removed on access.
+ */
+final class ClassGenerations {
+
+    record Entry(CachedPC<?> pc, long generation) {
+    }
+
+    private final Map<String, AtomicLong> generationByClassName = new ConcurrentHashMap<>();
+
+    Entry newEntry(final CachedPC<?> pc) {
+        return new Entry(pc, getGeneration(pc.getObjectClass().getName()).get());
+    }
+
+    boolean isStale(final Entry entry) {
+        return entry.generation() != getGeneration(entry.pc().getObjectClass().getName()).get();
+    }
+
+    void increment(final String className) {
+        getGeneration(className).incrementAndGet();
+    }
+
+    private AtomicLong getGeneration(final String className) {
+        final AtomicLong generation = generationByClassName.get(className);
+        if (generation != null) {
+            return generation;
+        }
+
+        return generationByClassName.computeIfAbsent(className, ignored -> new AtomicLong());
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent secondary index from the name of a persistent class to the keys of its cached objects.
+ * <p>
+ * The index itself is not atomic with the cache. Callers are expected to mutate it
+ * for a given key only while holding the cache's lock for that key, i.e. from within
+ * {@code compute} functions or a synchronous eviction listener.
+ */
+final class ClassKeyIndex {
+
+    // Sets are never removed once created. The number of persistent classes is small,
+    // and removing empty sets would race with concurrent additions for the same class.
+    private final Map<String, Set<Object>> keysByClassName = new ConcurrentHashMap<>();
+
+    void add(final String className, final Object key) {
+        keysByClassName.computeIfAbsent(className, ignored -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    void remove(final String className, final Object key) {
+        final Set<Object> keys = keysByClassName.get(className);
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * @return A live view of the names of all classes that were ever indexed
+     */
+    Set<String> getClassNames() {
+        return keysByClassName.keySet();
+    }
+
+    /**
+     * @return A live view of the keys of the given class. Iteration is weakly consistent.
+     */
+    Set<Object> getKeys(final String className) {
+        return keysByClassName.getOrDefault(className, Set.of());
+    }
+
+    void clear() {
+        keysByClassName.values().forEach(Set::clear);
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.Map;
+
+/**
+ * Statistics of the objects of a single persistent class in a {@link CaffeineLevel2Cache}.
+ *
+ * @param hitCount          Number of lookups that returned a cached object
+ * @param missCount         Number of lookups that did not return a cached object
+ * @param putCount          Number of objects put into the cache
+ * @param invalidationCount Number of objects removed explicitly, e.g. because they were evicted by DataNucleus
+ * @param evictionCount     Number of objects removed by the cache's policy, e.g. due to size or expiry constraints
+ * @param removalCounts     Number of objects removed, by {@link RemovalCause}. Unlike the counts above,
+ *                          this includes objects that were {@link RemovalCause#REPLACED replaced}
+ */
+public record ClassStatistics(
+        long hitCount,
+        long missCount,
+        long putCount,
+        long invalidationCount,
+        long evictionCount,
+        Map<RemovalCause, Long> removalCounts) {
+
+    public ClassStatistics {
+        removalCounts = Map.copyOf(removalCounts);
+    }
+
+    /**
+     * @return Number of objects removed due to the given cause
+     */
+    public long removalCount(final RemovalCause cause) {
+        return removalCounts.getOrDefault(cause, 0L);
+    }
+
+    public double hitRate() {
+        final long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+}
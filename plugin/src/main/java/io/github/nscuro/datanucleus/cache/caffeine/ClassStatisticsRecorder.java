@@ -0,0 +1,113 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records {@link ClassStatistics} for each persistent class.
+ * <p>
+ * Counters are {@link LongAdder}s, which stripe contended updates across cells
+ * instead of having all threads compete for a single value.
+ */
+final class ClassStatisticsRecorder {
+
+    private static final RemovalCause[] CAUSES = RemovalCause.values();
+
+    private final Map<String, Counters> countersByClassName = new ConcurrentHashMap<>();
+
+    void recordHit(final String className) {
+        getCounters(className).hits.increment();
+    }
+
+    void recordMiss(final String className) {
+        getCounters(className).misses.increment();
+    }
+
+    void recordPut(final String className) {
+        getCounters(className).puts.increment();
+    }
+
+    void recordRemoval(final String className, final RemovalCause cause) {
+        final Counters counters = getCounters(className);
+        counters.removalsByCause[cause.ordinal()].increment();
+
+        if (cause == RemovalCause.REPLACED) {
+            return;
+        }
+        if (cause.wasEvicted()) {
+            counters.evictions.increment();
+        } else {
+            counters.invalidations.increment();
+        }
+    }
+
+    Map<String, ClassStatistics> snapshot() {
+        final var statistics = new HashMap<String, ClassStatistics>(countersByClassName.size());
+        countersByClassName.forEach((className, counters) -> statistics.put(className, new ClassStatistics(
+                counters.hits.sum(),
+                counters.misses.sum(),
+                counters.puts.sum(),
+                counters.invalidations.sum(),
+                counters.evictions.sum(),
+                counters.getRemovalCounts())));
+        return statistics;
+    }
+
+    private Counters getCounters(final String className) {
+        // Avoid computeIfAbsent's locking for the common case of existing counters.
+        final Counters counters = countersByClassName.get(className);
+        return counters != null ? counters : countersByClassName.computeIfAbsent(className, ignored -> new Counters());
+    }
+
+    private static final class Counters {
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder puts = new LongAdder();
+        private final LongAdder invalidations = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder[] removalsByCause = new LongAdder[CAUSES.length];
+
+        private Counters() {
+            for (int i = 0; i < removalsByCause.length; i++) {
+                removalsByCause[i] = new LongAdder();
+            }
+        }
+
+        private Map<RemovalCause, Long> getRemovalCounts() {
+            final var removalCounts = new EnumMap<RemovalCause, Long>(RemovalCause.class);
+            for (final RemovalCause cause : CAUSES) {
+                final long count = removalsByCause[cause.ordinal()].sum();
+                if (count > 0) {
+                    removalCounts.put(cause, count);
+                }
+            }
+            return removalCounts;
+        }
+
+    }
+
+}
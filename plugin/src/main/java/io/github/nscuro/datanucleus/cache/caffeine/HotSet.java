@@ -0,0 +1,298 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.PersistenceNucleusContext;
+import org.datanucleus.cache.Level2Cache;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.state.DNStateManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Captures the identities of the hottest cached objects, and prefetches them from the datastore on the next start.
+ * <p>
+ * Unlike a {@link CacheSnapshot}, only identities are persisted, so prefetched objects always reflect the
+ * current state of the datastore. Identities are taken from {@link Policy.Eviction#hottest(int)} of every
+ * cache, periodically and when the cache is closed. They are prefetched in batches by a fixed number of
+ * threads, each of which uses its own execution context, and thereby at most one datastore connection.
+ * Prefetching starts once the cache was installed in its context, and does not delay startup.
+ */
+final class HotSet implements AutoCloseable {
+
+    static final int MAGIC = 0x444E4348;
+    static final byte VERSION = 1;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HotSet.class);
+    private static final int PREFETCH_BATCH_SIZE = 100;
+    private static final long READY_POLL_INTERVAL_MILLIS = 100;
+    private static final long READY_TIMEOUT_MILLIS = 60_000;
+
+    private final Path file;
+    private final int size;
+    private final List<Cache<Object, Object>> caches;
+    private final Supplier<BinaryCachedPCCodec> codecFactory;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final var thread = new Thread(runnable, "caffeine-l2-hot-set");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final CompletableFuture<Integer> prefetch = new CompletableFuture<>();
+    private volatile ExecutorService prefetchExecutor;
+
+    /**
+     * @param size Maximum number of identities captured per cache
+     */
+    HotSet(final Path file, final int size, final List<Cache<Object, Object>> caches, final Supplier<BinaryCachedPCCodec> codecFactory) {
+        this.file = file;
+        this.size = size;
+        this.caches = caches;
+        this.codecFactory = codecFactory;
+    }
+
+    void start(final long captureIntervalMillis) {
+        executor.scheduleWithFixedDelay(this::captureIfPrefetched, captureIntervalMillis, captureIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void captureIfPrefetched() {
+        if (!prefetch.isDone()) {
+            // The cache only holds part of the previous hot set, which must not be replaced by it.
+            LOGGER.debug("Not capturing hot set {}, because its prefetch is still in progress", file);
+            return;
+        }
+
+        try {
+            capture();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to capture hot set {}", file, e);
+        }
+    }
+
+    /**
+     * Prefetches the objects of the previously captured hot set into the given cache.
+     *
+     * @param connections Maximum number of datastore connections to use concurrently
+     */
+    void prefetch(final PersistenceNucleusContext nucleusCtx, final Level2Cache target, final int connections) {
+        final List<Object> ids;
+        try {
+            ids = Files.exists(file) ? read() : List.of();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to read hot set {}", file, e);
+            prefetch.complete(0);
+            return;
+        }
+        if (ids.isEmpty()) {
+            prefetch.complete(0);
+            return;
+        }
+
+        final long deadlineMillis = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+        executor.execute(() -> prefetchWhenReady(ids, nucleusCtx, target, connections, deadlineMillis));
+    }
+
+    /**
+     * @return The number of prefetched objects, once prefetching has completed
+     */
+    CompletableFuture<Integer> getPrefetch() {
+        return prefetch;
+    }
+
+    private void prefetchWhenReady(final List<Object> ids, final PersistenceNucleusContext nucleusCtx, final Level2Cache target,
+                                   final int connections, final long deadlineMillis) {
+        // Objects are loaded through execution contexts, which require the context to be initialised.
+        if (nucleusCtx.getLevel2Cache() != target) {
+            if (System.currentTimeMillis() >= deadlineMillis) {
+                LOGGER.warn("Cache was not initialised within {}ms; Skipping prefetch of hot set {}", READY_TIMEOUT_MILLIS, file);
+                prefetch.complete(0);
+            } else {
+                executor.schedule(() -> prefetchWhenReady(ids, nucleusCtx, target, connections, deadlineMillis),
+                        READY_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        final var threadCount = new AtomicInteger();
+        prefetchExecutor = Executors.newFixedThreadPool(connections, runnable -> {
+            final var thread = new Thread(runnable, "caffeine-l2-hot-set-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final long startNanos = System.nanoTime();
+        final var loaded = new AtomicInteger();
+        final var batches = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < ids.size(); i += PREFETCH_BATCH_SIZE) {
+            // Batches are submitted hottest first.
+            final List<Object> batch = ids.subList(i, Math.min(i + PREFETCH_BATCH_SIZE, ids.size()));
+            batches.add(CompletableFuture.runAsync(() -> loaded.addAndGet(load(nucleusCtx, batch)), prefetchExecutor));
+        }
+
+        CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new)).whenComplete((ignored, throwable) -> {
+            prefetchExecutor.shutdown();
+            LOGGER.info("Prefetched {} of {} objects of hot set {} in {}ms", loaded.get(), ids.size(), file,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            prefetch.complete(loaded.get());
+        });
+    }
+
+    private int load(final PersistenceNucleusContext nucleusCtx, final List<Object> ids) {
+        final ExecutionContext ec = nucleusCtx.getExecutionContext(null, null);
+        try {
+            Object[] pcs;
+            try {
+                pcs = ec.findObjectsById(ids.toArray(), true);
+            } catch (NucleusObjectNotFoundException e) {
+                // A single object that was deleted since it was captured fails the whole batch.
+                pcs = ids.stream().map(id -> findObject(ec, id)).toArray();
+            }
+
+            // Objects loaded from the datastore are not necessarily put into the cache by the context.
+            int loaded = 0;
+            for (final Object pc : pcs) {
+                final DNStateManager<?> sm = pc != null ? ec.findStateManager(pc) : null;
+                if (sm != null) {
+                    ec.putObjectIntoLevel2Cache(sm, false);
+                    loaded++;
+                }
+            }
+            return loaded;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to prefetch a batch of {} objects of hot set {}", ids.size(), file, e);
+            return 0;
+        } finally {
+            ec.close();
+        }
+    }
+
+    private static Object findObject(final ExecutionContext ec, final Object id) {
+        try {
+            return ec.findObject(id, true);
+        } catch (NucleusObjectNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Captures the identities of the hottest objects, replacing the previously captured hot set.
+     */
+    synchronized void capture() throws IOException {
+        final Set<Object> ids = new LinkedHashSet<>();
+        for (final Cache<Object, Object> cache : caches) {
+            ids.addAll(getHottest(cache));
+        }
+
+        final BinaryCachedPCCodec codec = codecFactory.get();
+        final var encodedIds = new ArrayList<byte[]>(ids.size());
+        for (final Object id : ids) {
+            try {
+                encodedIds.add(codec.encodeValue(id));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Failed to encode {} for hot set {}", id, file, e);
+            }
+        }
+
+        final Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (final var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(encodedIds.size());
+            for (final byte[] encodedId : encodedIds) {
+                out.writeInt(encodedId.length);
+                out.write(encodedId);
+            }
+        }
+
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.debug("Captured {} identities to hot set {}", encodedIds.size(), file);
+    }
+
+    private Collection<Object> getHottest(final Cache<Object, Object> cache) {
+        return cache.policy().eviction()
+                .<Collection<Object>>map(eviction -> eviction.hottest(size).keySet())
+                // Unbounded caches don't track the frequency of their entries.
+                .orElseGet(() -> cache.asMap().keySet().stream().limit(size).toList());
+    }
+
+    /**
+     * @return The captured identities, hottest first
+     */
+    List<Object> read() throws IOException {
+        final BinaryCachedPCCodec codec = codecFactory.get();
+        try (final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("%s is not a hot set of version %d".formatted(file, VERSION));
+            }
+
+            in.readLong();
+            final int count = in.readInt();
+            final var ids = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final var bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try {
+                    ids.add(codec.decodeValue(bytes));
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.debug("Failed to decode identity from hot set {}", file, e);
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Stops prefetching, and captures the hot set a final time, unless its prefetch did not complete.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        final ExecutorService currentPrefetchExecutor = prefetchExecutor;
+        if (currentPrefetchExecutor != null) {
+            currentPrefetchExecutor.shutdownNow();
+        }
+
+        captureIfPrefetched();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.cache.CachedPC;
+import org.datanucleus.exceptions.ClassNotResolvedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * A {@link CachedPCCodec} based on Java serialization. Classes are resolved through DataNucleus,
+ * since the class loader of this plugin does not necessarily see the application's classes.
+ */
+final class JavaSerializationCodec implements CachedPCCodec {
+
+    private final ClassLoaderResolver clr;
+
+    JavaSerializationCodec(final ClassLoaderResolver clr) {
+        this.clr = clr;
+    }
+
+    @Override
+    public byte[] encode(final CachedPC<?> pc) throws IOException {
+        return serialize(pc);
+    }
+
+    @Override
+    public CachedPC<?> decode(final byte[] bytes) throws IOException {
+        try {
+            return (CachedPC<?>) deserialize(bytes, 0, bytes.length, clr);
+        } catch (ClassCastException e) {
+            throw new IOException("Failed to decode cached object", e);
+        }
+    }
+
+    static byte[] serialize(final Object value) throws IOException {
+        final var bytes = new ByteArrayOutputStream(256);
+        try (final var out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Object deserialize(final byte[] bytes, final int offset, final int length, final ClassLoaderResolver clr) throws IOException {
+        try (final var in = new ResolvingObjectInputStream(new ByteArrayInputStream(bytes, offset, length), clr)) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Failed to decode cached object", e);
+        }
+    }
+
+    private static final class ResolvingObjectInputStream extends ObjectInputStream {
+
+        private final ClassLoaderResolver clr;
+
+        private ResolvingObjectInputStream(final InputStream in, final ClassLoaderResolver clr) throws IOException {
+            super(in);
+            this.clr = clr;
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return clr.classForName(desc.getName());
+            } catch (ClassNotResolvedException e) {
+                // Primitive types and arrays aren't resolvable through DataNucleus.
+                return super.resolveClass(desc);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shrinks caches while the heap is under memory pressure, and restores their maximum once the pressure clears.
+ * <p>
+ * Pressure is detected through collection usage thresholds of the heap's memory pools, i.e. the usage that
+ * remains after a garbage collection. This ignores garbage that a collection would reclaim anyway, and is
+ * typically only supported by pools of the old generation. Each notification halves the effective maximum of
+ * every cache, down to its {@link CacheMaximum floor}, which makes Caffeine evict the coldest entries. Pools are
+ * polled while pressure persists, and the limit is lifted once the usage of all pools drops sufficiently below
+ * their threshold.
+ * <p>
+ * Collection usage thresholds are global to the JVM, and shared by all monitors. Each pool uses the lowest
+ * threshold of all monitors, and the threshold it had before is restored when the last monitor is closed.
+ */
+final class MemoryPressureMonitor implements NotificationListener, AutoCloseable {
+
+    static final double SHRINK_FACTOR = 0.5;
+    static final double RECOVERY_RATIO = 0.9;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemoryPressureMonitor.class);
+    private static final long RECOVERY_POLL_INTERVAL_MILLIS = 5_000;
+
+    private static final List<MemoryPressureMonitor> STARTED_MONITORS = new ArrayList<>();
+    private static final Map<String, Long> ORIGINAL_THRESHOLD_BYTES_BY_POOL_NAME = new HashMap<>();
+
+    private final List<CacheMaximum> cacheMaxima;
+    private final double threshold;
+    private final Map<String, Long> thresholdBytesByPoolName = new HashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final var thread = new Thread(runnable, "caffeine-l2-memory-pressure");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> recoveryPoll;
+
+    MemoryPressureMonitor(final List<CacheMaximum> cacheMaxima, final double threshold) {
+        this.cacheMaxima = List.copyOf(cacheMaxima);
+        this.threshold = threshold;
+    }
+
+    void start() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final long max = pool.getUsage().getMax();
+            // Survivor spaces may be full after a collection, but only old generation pools support usage thresholds.
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()
+                || !pool.isCollectionUsageThresholdSupported() || max <= 0) {
+                continue;
+            }
+
+            final long thresholdBytes = (long) (max * threshold);
+            thresholdBytesByPoolName.put(pool.getName(), thresholdBytes);
+            LOGGER.debug("Monitoring collection usage of memory pool {} with a threshold of {} bytes", pool.getName(), thresholdBytes);
+        }
+
+        if (thresholdBytesByPoolName.isEmpty()) {
+            LOGGER.warn("None of the heap's memory pools support collection usage thresholds; Memory pressure will not be detected");
+            return;
+        }
+
+        synchronized (STARTED_MONITORS) {
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (thresholdBytesByPoolName.containsKey(pool.getName())) {
+                    ORIGINAL_THRESHOLD_BYTES_BY_POOL_NAME.putIfAbsent(pool.getName(), pool.getCollectionUsageThreshold());
+                }
+            }
+            STARTED_MONITORS.add(this);
+            updateThresholds();
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+    /**
+     * Sets the threshold of each pool to the lowest one of all started monitors, or restores the pool's original
+     * threshold if no monitor is using it anymore. Lower original thresholds, e.g. of monitoring tools, are kept,
+     * since notifications are filtered by each monitor's own threshold.
+     */
+    private static void updateThresholds() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final Long originalThresholdBytes = ORIGINAL_THRESHOLD_BYTES_BY_POOL_NAME.get(pool.getName());
+            if (originalThresholdBytes == null) {
+                continue;
+            }
+
+            long thresholdBytes = originalThresholdBytes;
+            boolean used = false;
+            for (final MemoryPressureMonitor monitor : STARTED_MONITORS) {
+                final Long monitorThresholdBytes = monitor.thresholdBytesByPoolName.get(pool.getName());
+                if (monitorThresholdBytes != null) {
+                    used = true;
+                    thresholdBytes = thresholdBytes == 0 ? monitorThresholdBytes : Math.min(thresholdBytes, monitorThresholdBytes);
+                }
+            }
+            if (!used) {
+                ORIGINAL_THRESHOLD_BYTES_BY_POOL_NAME.remove(pool.getName());
+            }
+            if (pool.getCollectionUsageThreshold() != thresholdBytes) {
+                pool.setCollectionUsageThreshold(thresholdBytes);
+            }
+        }
+    }
+
+    @Override
+    public void handleNotification(final Notification notification, final Object handback) {
+        if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            return;
+        }
+
+        final MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+        final Long thresholdBytes = thresholdBytesByPoolName.get(info.getPoolName());
+        if (thresholdBytes != null && info.getUsage().getUsed() >= thresholdBytes) {
+            // Notifications are delivered on a shared JMX thread, while shrinking evicts entries synchronously.
+            executor.execute(() -> onPressure(info.getPoolName(), info.getUsage()));
+        }
+    }
+
+    synchronized void onPressure(final String poolName, final MemoryUsage usage) {
+        if (recoveryPoll == null) {
+            recoveryPoll = executor.scheduleWithFixedDelay(this::checkRecovered,
+                    RECOVERY_POLL_INTERVAL_MILLIS, RECOVERY_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        LOGGER.warn("Memory pool {} is still using {} of {} bytes after garbage collection; Shrinking caches by {}%",
+                poolName, usage.getUsed(), usage.getMax(), Math.round((1 - SHRINK_FACTOR) * 100));
+        cacheMaxima.forEach(cacheMaximum -> cacheMaximum.limit(SHRINK_FACTOR));
+    }
+
+    synchronized void onRecovered() {
+        if (recoveryPoll == null) {
+            return;
+        }
+
+        LOGGER.info("Memory pressure has cleared; Restoring the maximum of caches");
+        cacheMaxima.forEach(CacheMaximum::lift);
+        recoveryPoll.cancel(false);
+        recoveryPoll = null;
+    }
+
+    synchronized boolean isUnderPressure() {
+        return recoveryPoll != null;
+    }
+
+    private void checkRecovered() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final Long thresholdBytes = thresholdBytesByPoolName.get(pool.getName());
+            final MemoryUsage collectionUsage = pool.getCollectionUsage();
+            if (thresholdBytes != null && collectionUsage != null && collectionUsage.getUsed() >= thresholdBytes * RECOVERY_RATIO) {
+                return;
+            }
+        }
+
+        onRecovered();
+    }
+
+    @Override
+    public void close() {
+        if (!thresholdBytesByPoolName.isEmpty()) {
+            try {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                LOGGER.debug("Memory notification listener was already removed", e);
+            }
+            synchronized (STARTED_MONITORS) {
+                STARTED_MONITORS.remove(this);
+                updateThresholds();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+}
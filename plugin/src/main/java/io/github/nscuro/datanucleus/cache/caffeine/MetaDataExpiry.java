@@ -0,0 +1,90 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.datanucleus.NucleusContext;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * An {@link Expiry} that expires entries after a per-class duration since they were last written.
+ * <p>
+ * The duration is taken from the {@value #EXTENSION_EXPIRY_MILLIS} metadata extension of the
+ * object's class, or of its closest superclass that declares it. Classes without the extension
+ * use the given default duration. The duration is resolved once per class.
+ */
+final class MetaDataExpiry implements Expiry<Object, Object> {
+
+    static final String EXTENSION_EXPIRY_MILLIS = "caffeine-expiry-millis";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetaDataExpiry.class);
+    private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    private final ClassValue<Long> expiryNanosByClass;
+
+    MetaDataExpiry(final NucleusContext nucleusCtx, final Duration defaultExpiry) {
+        final long defaultExpiryNanos = defaultExpiry != null ? defaultExpiry.toNanos() : NO_EXPIRY;
+
+        this.expiryNanosByClass = new ClassValue<>() {
+
+            @Override
+            protected Long computeValue(final Class<?> type) {
+                AbstractClassMetaData cmd = nucleusCtx.getMetaDataManager()
+                        .getMetaDataForClass(type, nucleusCtx.getClassLoaderResolver(type.getClassLoader()));
+                while (cmd != null) {
+                    if (cmd.hasExtension(EXTENSION_EXPIRY_MILLIS)) {
+                        final String expiryMillis = cmd.getValueForExtension(EXTENSION_EXPIRY_MILLIS);
+                        try {
+                            return Duration.ofMillis(Long.parseLong(expiryMillis.trim())).toNanos();
+                        } catch (NumberFormatException e) {
+                            LOGGER.warn("Ignoring invalid {} extension value \"{}\" of {}",
+                                    EXTENSION_EXPIRY_MILLIS, expiryMillis, cmd.getFullClassName());
+                            break;
+                        }
+                    }
+
+                    cmd = cmd.getSuperAbstractClassMetaData();
+                }
+
+                return defaultExpiryNanos;
+            }
+
+        };
+    }
+
+    @Override
+    public long expireAfterCreate(final Object key, final Object value, final long currentTime) {
+        return expiryNanosByClass.get(CaffeineLevel2Cache.toCachedPC(value).getObjectClass());
+    }
+
+    @Override
+    public long expireAfterUpdate(final Object key, final Object value, final long currentTime, final long currentDuration) {
+        return expiryNanosByClass.get(CaffeineLevel2Cache.toCachedPC(value).getObjectClass());
+    }
+
+    @Override
+    public long expireAfterRead(final Object key, final Object value, final long currentTime, final long currentDuration) {
+        return currentDuration;
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the statistics of the caches backing a {@link CaffeineLevel2Cache} to Micrometer.
+ * <p>
+ * Micrometer is an optional dependency. This class is the only one referring to it,
+ * and must only be loaded after {@link #isAvailable()} returned {@code true}.
+ * <p>
+ * Meters follow Micrometer's naming conventions for caches, and are tagged with the name of the cache,
+ * the persistence unit, and the class (or package) selector of the cache region. The default cache
+ * uses the class tag value {@value #DEFAULT_CLASS_TAG_VALUE}.
+ * <p>
+ * Meters are only published. The statistics returned by {@link Cache#stats()} are recorded independently,
+ * since meters of the global registry are no-ops until the application adds a registry to it.
+ */
+final class MicrometerCacheMetrics {
+
+    static final String DEFAULT_CLASS_TAG_VALUE = "default";
+
+    // Caches with the same name and persistence unit share their meters.
+    // Meters are only removed from the registry once no cache refers to them anymore.
+    private static final Map<Meter.Id, Integer> REFERENCE_COUNTS = new HashMap<>();
+
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final List<Meter> meters = new CopyOnWriteArrayList<>();
+    private final Map<Cache<?, ?>, Counter> putCountersByCache = new ConcurrentHashMap<>();
+
+    private MicrometerCacheMetrics(final MeterRegistry registry, final String cacheName, final String persistenceUnitName) {
+        this.registry = registry;
+        this.tags = Tags.of(
+                "cache", cacheName != null ? cacheName : DEFAULT_CLASS_TAG_VALUE,
+                "persistenceUnit", persistenceUnitName != null ? persistenceUnitName : DEFAULT_CLASS_TAG_VALUE);
+    }
+
+    static boolean isAvailable() {
+        try {
+            Class.forName("io.micrometer.core.instrument.MeterRegistry", false, MicrometerCacheMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates metrics that are published to Micrometer's global registry. Applications publish
+     * them by adding their own registry to it, e.g. via {@code Metrics.addRegistry(registry)}.
+     */
+    static MicrometerCacheMetrics create(final String cacheName, final String persistenceUnitName) {
+        return new MicrometerCacheMetrics(Metrics.globalRegistry, cacheName, persistenceUnitName);
+    }
+
+    StatsCounter newStatsCounter(final String className) {
+        return new MeterStatsCounter(tagsFor(className));
+    }
+
+    void bind(final Cache<?, ?> cache, final String className) {
+        final Tags cacheTags = tagsFor(className);
+
+        register(() -> Gauge.builder("cache.size", cache, Cache::estimatedSize)
+                .tags(cacheTags)
+                .description("The approximate number of entries in the cache")
+                .register(registry));
+        cache.policy().eviction()
+                .filter(Policy.Eviction::isWeighted)
+                .ifPresent(eviction -> register(() -> Gauge.builder("cache.weighted.size", eviction, e -> e.weightedSize().orElse(0))
+                        .tags(cacheTags)
+                        .description("The approximate accumulated weight of entries in the cache")
+                        .register(registry)));
+        putCountersByCache.put(cache, register(() -> Counter.builder("cache.puts")
+                .tags(cacheTags)
+                .description("The number of entries put into the cache")
+                .register(registry)));
+    }
+
+    void recordPuts(final Cache<?, ?> cache, final int count) {
+        final Counter putCounter = putCountersByCache.get(cache);
+        if (putCounter != null) {
+            putCounter.increment(count);
+        }
+    }
+
+    void close() {
+        synchronized (REFERENCE_COUNTS) {
+            for (final Meter meter : meters) {
+                if (REFERENCE_COUNTS.merge(meter.getId(), -1, Integer::sum) <= 0) {
+                    REFERENCE_COUNTS.remove(meter.getId());
+                    registry.remove(meter);
+                }
+            }
+        }
+        meters.clear();
+        putCountersByCache.clear();
+    }
+
+    private Tags tagsFor(final String className) {
+        return tags.and("class", className != null ? className : DEFAULT_CLASS_TAG_VALUE);
+    }
+
+    private <M extends Meter> M register(final Supplier<M> registration) {
+        synchronized (REFERENCE_COUNTS) {
+            final M meter = registration.get();
+            meters.add(meter);
+            REFERENCE_COUNTS.merge(meter.getId(), 1, Integer::sum);
+            return meter;
+        }
+    }
+
+    /**
+     * Records statistics in a {@link ConcurrentStatsCounter}, and publishes them to meters alongside.
+     */
+    private final class MeterStatsCounter implements StatsCounter {
+
+        private final ConcurrentStatsCounter delegate = new ConcurrentStatsCounter();
+        private final Counter hitCounter;
+        private final Counter missCounter;
+        private final Timer loadSuccessTimer;
+        private final Timer loadFailureTimer;
+        private final Map<RemovalCause, Counter> evictionCounters = new EnumMap<>(RemovalCause.class);
+        private final Counter evictionWeightCounter;
+
+        private MeterStatsCounter(final Tags cacheTags) {
+            hitCounter = register(() -> Counter.builder("cache.gets")
+                    .tags(cacheTags)
+                    .tag("result", "hit")
+                    .description("The number of times cache lookup methods have returned a cached value")
+                    .register(registry));
+            missCounter = register(() -> Counter.builder("cache.gets")
+                    .tags(cacheTags)
+                    .tag("result", "miss")
+                    .description("The number of times cache lookup methods have not returned a value")
+                    .register(registry));
+            loadSuccessTimer = register(() -> Timer.builder("cache.loads")
+                    .tags(cacheTags)
+                    .tag("result", "success")
+                    .description("The number of times cache lookup methods have successfully loaded a new value")
+                    .register(registry));
+            loadFailureTimer = register(() -> Timer.builder("cache.loads")
+                    .tags(cacheTags)
+                    .tag("result", "failure")
+                    .description("The number of times cache lookup methods failed to load a new value")
+                    .register(registry));
+            for (final RemovalCause cause : RemovalCause.values()) {
+                if (cause.wasEvicted()) {
+                    evictionCounters.put(cause, register(() -> Counter.builder("cache.evictions")
+                            .tags(cacheTags)
+                            .tag("cause", cause.name().toLowerCase(Locale.ROOT))
+                            .description("The number of times the cache was evicted")
+                            .register(registry)));
+                }
+            }
+            evictionWeightCounter = register(() -> Counter.builder("cache.eviction.weight")
+                    .tags(cacheTags)
+                    .description("The sum of weights of evicted entries")
+                    .register(registry));
+        }
+
+        @Override
+        public void recordHits(final int count) {
+            delegate.recordHits(count);
+            hitCounter.increment(count);
+        }
+
+        @Override
+        public void recordMisses(final int count) {
+            delegate.recordMisses(count);
+            missCounter.increment(count);
+        }
+
+        @Override
+        public void recordLoadSuccess(final long loadTime) {
+            delegate.recordLoadSuccess(loadTime);
+            loadSuccessTimer.record(loadTime, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void recordLoadFailure(final long loadTime) {
+            delegate.recordLoadFailure(loadTime);
+            loadFailureTimer.record(loadTime, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void recordEviction(final int weight, final RemovalCause cause) {
+            delegate.recordEviction(weight, cause);
+            final Counter evictionCounter = evictionCounters.get(cause);
+            if (evictionCounter != null) {
+                evictionCounter.increment();
+            }
+            evictionWeightCounter.increment(weight);
+        }
+
+        @Override
+        public CacheStats snapshot() {
+            return delegate.snapshot();
+        }
+
+    }
+
+}
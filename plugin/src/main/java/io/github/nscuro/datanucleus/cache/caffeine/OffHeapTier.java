@@ -0,0 +1,351 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.cache.CachedPC;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A tier of encoded {@link CachedPC}s in direct {@link ByteBuffer} slabs, outside the Java heap.
+ * <p>
+ * Slabs form a ring that is written like a log: encoded objects are appended to the current slab,
+ * and once it is full, writing continues in the next one. When the ring wraps around, the oldest slab
+ * is recycled, dropping all objects it holds. Eviction is thus first-in, first-out at slab granularity,
+ * and removing an object only drops it from the index, while its bytes are reclaimed with the slab.
+ * <p>
+ * Only the index, which maps keys to the location of their encoded object, lives on the heap.
+ * Reads are not blocked by writes. Instead, each slab has an epoch that is incremented when the slab
+ * is recycled, and reads whose slab was recycled while they were copying its bytes are discarded.
+ * <p>
+ * Recycling a slab happens while Caffeine evicts, and must not scan the index. The keys written to
+ * each slab are tracked instead, and their locations are purged from the index in the background.
+ * Until then, locations of recycled slabs are recognized by their epoch, and treated as absent.
+ * <p>
+ * Each object keeps the time at which it would have expired on-heap, and is treated as absent afterward.
+ */
+final class OffHeapTier {
+
+    record Entry(CachedPC<?> pc, long generation, long expiresAtMillis) {
+    }
+
+    private record Location(int slab, long slabEpoch, int offset, int length, String className, long generation, long expiresAtMillis) {
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapTier.class);
+    private static final int MIN_SLAB_SIZE = 64 * 1024;
+    private static final int MAX_SLAB_SIZE = 64 * 1024 * 1024;
+
+    private final CachedPCCodec codec;
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final AtomicLongArray slabEpochs;
+    private final Map<Object, Location> index = new ConcurrentHashMap<>();
+    private final List<Object>[] keysBySlab;
+    private final AtomicLong pendingPurges = new AtomicLong();
+    private final ExecutorService purgeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final var thread = new Thread(runnable, "caffeine-l2-off-heap-purge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private int currentSlab = -1;
+    private int writeOffset;
+
+    /**
+     * @param maximumSize Maximum number of bytes of all slabs
+     */
+    OffHeapTier(final CachedPCCodec codec, final long maximumSize) {
+        this.codec = codec;
+        this.slabSize = (int) Math.max(MIN_SLAB_SIZE, Math.min(MAX_SLAB_SIZE, maximumSize / 16));
+
+        // At least two slabs, so that recycling one doesn't drop everything.
+        final int slabCount = (int) Math.max(2, (maximumSize + slabSize - 1) / slabSize);
+        this.slabs = new ByteBuffer[slabCount];
+        this.slabEpochs = new AtomicLongArray(slabCount);
+        this.keysBySlab = newKeyLists(slabCount);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object>[] newKeyLists(final int slabCount) {
+        final var keyLists = (List<Object>[]) new List<?>[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            keyLists[i] = new ArrayList<>();
+        }
+        return keyLists;
+    }
+
+    /**
+     * Stores the given object, replacing any object previously stored for the key.
+     * Objects that can't be encoded, or don't fit into a slab, are not stored.
+     *
+     * @param expiresAtMillis Time at which the object expires, or {@link Long#MAX_VALUE} if it doesn't
+     */
+    void put(final Object key, final CachedPC<?> pc, final long generation, final long expiresAtMillis) {
+        final byte[] bytes;
+        try {
+            bytes = codec.encode(pc);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Failed to encode {} for the off-heap tier", key, e);
+            reject(key);
+            return;
+        }
+        if (bytes.length > slabSize) {
+            reject(key);
+            return;
+        }
+
+        writeLock.lock();
+        try {
+            if (currentSlab < 0 || writeOffset + bytes.length > slabSize) {
+                advance();
+            }
+
+            slabs[currentSlab].put(writeOffset, bytes);
+            keysBySlab[currentSlab].add(key);
+            index.put(key, new Location(currentSlab, slabEpochs.get(currentSlab), writeOffset, bytes.length,
+                    pc.getObjectClass().getName(), generation, expiresAtMillis));
+            writeOffset += bytes.length;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the object of the given key, and returns it.
+     *
+     * @return The object, or {@code null} if none is stored, or it could no longer be read
+     */
+    Entry take(final Object key) {
+        return decode(key, index.remove(key));
+    }
+
+    /**
+     * Returns the object of the given key, without removing it.
+     *
+     * @return The object, or {@code null} if none is stored, or it could no longer be read
+     */
+    Entry get(final Object key) {
+        return decode(key, index.get(key));
+    }
+
+    private Entry decode(final Object key, final Location location) {
+        if (location == null) {
+            misses.increment();
+            return null;
+        }
+
+        final byte[] bytes = read(location);
+        if (bytes == null) {
+            misses.increment();
+            return null;
+        }
+
+        try {
+            final CachedPC<?> pc = codec.decode(bytes);
+            hits.increment();
+            return new Entry(pc, location.generation(), location.expiresAtMillis());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to decode {} from the off-heap tier", key, e);
+            misses.increment();
+            return null;
+        }
+    }
+
+    /**
+     * @return The name of the class of the object stored for the given key, or {@code null} if none is stored
+     */
+    String getClassName(final Object key) {
+        final Location location = getLiveLocation(key);
+        return location != null ? location.className() : null;
+    }
+
+    boolean contains(final Object key) {
+        return getLiveLocation(key) != null;
+    }
+
+    private Location getLiveLocation(final Object key) {
+        final Location location = index.get(key);
+        if (location == null || isLive(location)) {
+            return location;
+        }
+
+        // Expired objects are dropped lazily, while those of recycled slabs are purged in the background.
+        if (slabEpochs.get(location.slab()) == location.slabEpoch()) {
+            index.remove(key, location);
+        }
+        return null;
+    }
+
+    void remove(final Object key) {
+        index.remove(key);
+    }
+
+    /**
+     * @return The number of objects that were removed
+     */
+    long removeClasses(final Collection<String> classNames) {
+        long removed = 0;
+        for (final Iterator<Location> iterator = index.values().iterator(); iterator.hasNext(); ) {
+            final Location location = iterator.next();
+            if (classNames.contains(location.className())) {
+                iterator.remove();
+                if (isLive(location)) {
+                    removed++;
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    void clear() {
+        writeLock.lock();
+        try {
+            index.clear();
+            for (final List<Object> keys : keysBySlab) {
+                keys.clear();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return The approximate number of stored objects
+     */
+    long size() {
+        // Keys of recycled slabs may have been stored again in another slab, so this may undercount.
+        return Math.max(0, index.size() - pendingPurges.get());
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    void close() {
+        purgeExecutor.shutdownNow();
+        writeLock.lock();
+        try {
+            index.clear();
+
+            // Direct buffers are freed once they're garbage collected.
+            for (int i = 0; i < slabs.length; i++) {
+                slabEpochs.incrementAndGet(i);
+                slabs[i] = null;
+            }
+            currentSlab = -1;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void reject(final Object key) {
+        rejections.increment();
+
+        // A previously stored object of the key would otherwise be outdated.
+        index.remove(key);
+    }
+
+    private void advance() {
+        final int nextSlab = (currentSlab + 1) % slabs.length;
+        if (slabs[nextSlab] == null) {
+            slabs[nextSlab] = ByteBuffer.allocateDirect(slabSize);
+        } else {
+            // Invalidate concurrent reads of the slab before overwriting it.
+            final long recycledEpoch = slabEpochs.getAndIncrement(nextSlab);
+            VarHandle.storeStoreFence();
+
+            final List<Object> keys = keysBySlab[nextSlab];
+            keysBySlab[nextSlab] = new ArrayList<>();
+            pendingPurges.addAndGet(keys.size());
+            purgeExecutor.execute(() -> purge(nextSlab, recycledEpoch, keys));
+        }
+
+        currentSlab = nextSlab;
+        writeOffset = 0;
+    }
+
+    private void purge(final int slab, final long epoch, final List<Object> keys) {
+        for (final Object key : keys) {
+            // Keys that were stored again since, or removed, are left alone.
+            index.computeIfPresent(key, (ignored, location) -> {
+                if (location.slab() != slab || location.slabEpoch() != epoch) {
+                    return location;
+                }
+
+                evictions.increment();
+                return null;
+            });
+            pendingPurges.decrementAndGet();
+        }
+    }
+
+    private boolean isLive(final Location location) {
+        return slabEpochs.get(location.slab()) == location.slabEpoch()
+               && location.expiresAtMillis() > System.currentTimeMillis();
+    }
+
+    private byte[] read(final Location location) {
+        final ByteBuffer slab = slabs[location.slab()];
+        if (slab == null || !isLive(location)) {
+            return null;
+        }
+
+        final var bytes = new byte[location.length()];
+        slab.get(location.offset(), bytes);
+
+        // Same validation as StampedLock#validate: the bytes are only valid if the slab wasn't recycled meanwhile.
+        VarHandle.acquireFence();
+        return slabEpochs.get(location.slab()) == location.slabEpoch() ? bytes : null;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveSizerTest {
+
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final double[] heapHeadroom = {0.5};
+    private Cache<Object, Object> cache;
+    private CacheMaximum cacheMaximum;
+    private AdaptiveSizer sizer;
+
+    @BeforeEach
+    void beforeEach() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(100)
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+        cacheMaximum = new CacheMaximum(cache, 10);
+        sizer = new AdaptiveSizer(cache, cacheMaximum, 50, 400, () -> heapHeadroom[0]);
+    }
+
+    @Test
+    void testGrowWhileHitRatioImproves() {
+        // 300 uniformly accessed keys don't fit into the initial maximum, so growing it improves the hit ratio.
+        runIntervals(60, 300);
+        assertThat(getMaximum()).isBetween(300L, 400L);
+        assertThat(cacheMaximum.getTarget()).isEqualTo(getMaximum());
+    }
+
+    @Test
+    void testShrinkWhenGrowthDoesNotImproveHitRatio() {
+        // 10000 uniformly accessed keys barely benefit from a few more entries.
+        runIntervals(AdaptiveSizer.WINDOW_INTERVALS, 10_000);
+        assertThat(getMaximum()).isEqualTo(125);
+
+        runIntervals(AdaptiveSizer.WINDOW_INTERVALS, 10_000);
+        assertThat(getMaximum()).isEqualTo(100);
+
+        // Growth is not attempted again for a while.
+        runIntervals(AdaptiveSizer.HOLD_INTERVALS - AdaptiveSizer.WINDOW_INTERVALS, 10_000);
+        assertThat(getMaximum()).isEqualTo(100);
+    }
+
+    @Test
+    void testShrinkWithoutHeapHeadroom() {
+        heapHeadroom[0] = 0.05;
+        sizer.adjust();
+        assertThat(getMaximum()).isEqualTo(80);
+
+        for (int interval = 0; interval < 20; interval++) {
+            sizer.adjust();
+        }
+        assertThat(getMaximum()).isEqualTo(50);
+    }
+
+    @Test
+    void testBackOffWhileLimited() {
+        runIntervals(60, 300);
+        final long grownMaximum = getMaximum();
+
+        // The effective maximum is owned by the memory pressure limit, and the target is left alone.
+        heapHeadroom[0] = 0.05;
+        cacheMaximum.limit(0.5);
+        sizer.adjust();
+        assertThat(cacheMaximum.getTarget()).isEqualTo(grownMaximum);
+        assertThat(getMaximum()).isEqualTo(grownMaximum / 2);
+
+        cacheMaximum.lift();
+        assertThat(getMaximum()).isEqualTo(grownMaximum);
+
+        sizer.adjust();
+        assertThat(getMaximum()).isLessThan(grownMaximum);
+    }
+
+    private void runIntervals(final int intervals, final int keys) {
+        for (int interval = 0; interval < intervals; interval++) {
+            for (int i = 0; i < 1000; i++) {
+                cache.get(random.nextInt(keys), key -> key);
+            }
+            sizer.adjust();
+        }
+    }
+
+    private long getMaximum() {
+        return cache.policy().eviction().orElseThrow().getMaximum();
+    }
+
+}
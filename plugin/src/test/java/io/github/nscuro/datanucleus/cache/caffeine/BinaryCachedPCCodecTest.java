@@ -0,0 +1,276 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.PersistenceNucleusContextImpl;
+import org.datanucleus.cache.CachedPC;
+import org.datanucleus.identity.IntId;
+import org.datanucleus.identity.LongId;
+import org.datanucleus.identity.StringId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class BinaryCachedPCCodecTest {
+
+    private static PersistenceNucleusContextImpl nucleusCtx;
+    private BinaryCachedPCCodec codec;
+
+    @BeforeAll
+    static void beforeAll() {
+        nucleusCtx = new PersistenceNucleusContextImpl("JDO", Map.of());
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        codec = new BinaryCachedPCCodec(nucleusCtx);
+    }
+
+    @AfterAll
+    static void afterAll() {
+        if (nucleusCtx != null) {
+            nucleusCtx.close();
+        }
+    }
+
+    static Stream<Object> values() {
+        final var timestamp = new java.sql.Timestamp(1_700_000_000_123L);
+        timestamp.setNanos(123_456_789);
+
+        return Stream.of(
+                true, false,
+                Integer.MIN_VALUE, Long.MAX_VALUE, (short) -1, (byte) 127, 'ß', 1.5f, -2.5d,
+                "", "föö 🙂",
+                new Date(1_700_000_000_000L),
+                timestamp,
+                new java.sql.Date(1_700_000_000_000L),
+                new java.sql.Time(1_700_000_000_000L),
+                new BigDecimal("-123.456"),
+                new BigDecimal(BigInteger.TWO.pow(100), 7),
+                BigInteger.valueOf(-42),
+                BigInteger.TWO.pow(100).negate(),
+                UUID.randomUUID(),
+                Color.RED,
+                Color.GREEN,
+                Instant.ofEpochSecond(1_700_000_000L, 123_456_789),
+                LocalDate.of(2024, 2, 29),
+                LocalDateTime.of(2024, 2, 29, 23, 59, 59, 999_999_999),
+                new LongId(Widget.class, 42),
+                new IntId(Widget.class, 42),
+                new StringId(Widget.class, "42"));
+    }
+
+    @ParameterizedTest
+    @MethodSource("values")
+    void testValue(final Object value) throws IOException {
+        final Object decodedValue = codec.decodeValue(codec.encodeValue(value));
+        assertThat(decodedValue).isEqualTo(value);
+        assertThat(decodedValue).hasSameClassAs(value);
+    }
+
+    @Test
+    void testNull() throws IOException {
+        assertThat(codec.decodeValue(codec.encodeValue(null))).isNull();
+    }
+
+    @Test
+    void testByteArray() throws IOException {
+        final var bytes = new byte[]{0, 1, -1, Byte.MIN_VALUE, Byte.MAX_VALUE};
+        assertThat(codec.decodeValue(codec.encodeValue(bytes))).isEqualTo(bytes);
+    }
+
+    static Stream<Object> collections() {
+        return Stream.of(
+                new ArrayList<>(List.of(1, "two", 3L)),
+                new LinkedList<>(List.of(1, 2, 3)),
+                new HashSet<>(Set.of("a", "b")),
+                new LinkedHashSet<>(List.of("b", "a")),
+                new TreeSet<>(Set.of("b", "a")),
+                new HashMap<>(Map.of("a", 1, "b", List.of())),
+                new LinkedHashMap<>(Map.of(1, "a")),
+                new TreeMap<>(Map.of("b", 2, "a", 1)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("collections")
+    void testCollection(final Object collection) throws IOException {
+        final Object decodedCollection = codec.decodeValue(codec.encodeValue(collection));
+        assertThat(decodedCollection).isEqualTo(collection);
+        assertThat(decodedCollection).hasSameClassAs(collection);
+    }
+
+    @Test
+    void testCollectionFallbacks() throws IOException {
+        // Collections lacking a public constructor are restored as their most common mutable counterpart.
+        final Object list = codec.decodeValue(codec.encodeValue(Collections.unmodifiableList(List.of(1, 2))));
+        assertThat(list).isInstanceOf(ArrayList.class).isEqualTo(List.of(1, 2));
+
+        final Object set = codec.decodeValue(codec.encodeValue(Set.of("a")));
+        assertThat(set).isInstanceOf(LinkedHashSet.class).isEqualTo(Set.of("a"));
+
+        final Object map = codec.decodeValue(codec.encodeValue(Map.of("a", 1)));
+        assertThat(map).isInstanceOf(HashMap.class).isEqualTo(Map.of("a", 1));
+    }
+
+    @Test
+    void testSerializedFallback() throws IOException {
+        // Sorted collections with a comparator can't be restored from their elements alone.
+        final var sortedSet = new TreeSet<String>(Comparator.reverseOrder());
+        sortedSet.addAll(List.of("a", "b", "c"));
+        final Object decodedSortedSet = codec.decodeValue(codec.encodeValue(sortedSet));
+        assertThat(decodedSortedSet).isInstanceOf(TreeSet.class);
+        assertThat((TreeSet<?>) decodedSortedSet).containsExactly("c", "b", "a");
+
+        final var point = new Point(1, 2);
+        assertThat(codec.decodeValue(codec.encodeValue(point))).isEqualTo(point);
+
+        final var nestedArray = new String[][]{{"a"}, {"b", null}};
+        assertThat(codec.decodeValue(codec.encodeValue(nestedArray))).isEqualTo(nestedArray);
+    }
+
+    @Test
+    void testObjectArray() throws IOException {
+        final var strings = new String[]{"a", null, "a"};
+        final Object decodedStrings = codec.decodeValue(codec.encodeValue(strings));
+        assertThat(decodedStrings).isInstanceOf(String[].class).isEqualTo(strings);
+
+        final var objects = new Object[]{1, "two", Color.GREEN, List.of(3L)};
+        final Object decodedObjects = codec.decodeValue(codec.encodeValue(objects));
+        assertThat(decodedObjects).isInstanceOf(Object[].class);
+        assertThat((Object[]) decodedObjects).containsExactly(1, "two", Color.GREEN, List.of(3L));
+    }
+
+    @Test
+    void testCachedId() throws IOException {
+        final var cachedId = new CachedPC.CachedId(Widget.class.getName(), new LongId(Widget.class, 1));
+        final Object decodedValue = codec.decodeValue(codec.encodeValue(cachedId));
+        assertThat(decodedValue).isInstanceOf(CachedPC.CachedId.class);
+        assertThat(((CachedPC.CachedId) decodedValue).getClassName()).isEqualTo(Widget.class.getName());
+        assertThat(((CachedPC.CachedId) decodedValue).getId()).isEqualTo(new LongId(Widget.class, 1));
+    }
+
+    @Test
+    void testCachedPC() throws IOException {
+        final CachedPC<Widget> nestedPC = newCachedPC(2);
+        nestedPC.setFieldValue(0, "nested");
+
+        final CachedPC<Widget> pc = newCachedPC(1);
+        pc.setFieldValue(0, "föö");
+        pc.setFieldValue(1, nestedPC);
+        pc.setFieldValue(2, new CachedPC.CachedId(Widget.class.getName(), new LongId(Widget.class, 3)));
+        pc.setFieldValue(3, null);
+
+        final CachedPC<?> decodedPC = codec.decode(codec.encode(pc));
+        assertThat(decodedPC.getObjectClass()).isEqualTo(Widget.class);
+        assertThat(decodedPC.getId()).isEqualTo(new LongId(Widget.class, 1));
+        assertThat(decodedPC.getVersion()).isEqualTo(1L);
+        assertThat(decodedPC.getLoadedFields()).isEqualTo(pc.getLoadedFields());
+        assertThat(decodedPC.getFieldValue(0)).isEqualTo("föö");
+        assertThat(decodedPC.getFieldValue(3)).isNull();
+
+        final Object decodedNestedPC = decodedPC.getFieldValue(1);
+        assertThat(decodedNestedPC).isInstanceOf(CachedPC.class);
+        assertThat(((CachedPC<?>) decodedNestedPC).getId()).isEqualTo(new LongId(Widget.class, 2));
+        assertThat(((CachedPC<?>) decodedNestedPC).getFieldValue(0)).isEqualTo("nested");
+
+        final Object decodedCachedId = decodedPC.getFieldValue(2);
+        assertThat(decodedCachedId).isInstanceOf(CachedPC.CachedId.class);
+        assertThat(((CachedPC.CachedId) decodedCachedId).getId()).isEqualTo(new LongId(Widget.class, 3));
+    }
+
+    @Test
+    void testRestoreSchema() throws IOException {
+        final byte[] bytes = codec.encode(newCachedPC(1));
+        final BinaryCachedPCCodec.ClassSchema schema = codec.getSchemas().get(0);
+
+        final var restoredCodec = new BinaryCachedPCCodec(nucleusCtx);
+        assertThat(restoredCodec.restoreSchema(schema.id(), Widget.class.getName(), schema.fingerprint())).isTrue();
+        assertThat(restoredCodec.decode(bytes).getId()).isEqualTo(new LongId(Widget.class, 1));
+    }
+
+    @Test
+    void testRestoreSchemaWithFingerprintMismatch() throws IOException {
+        final byte[] bytes = codec.encode(newCachedPC(1));
+        final BinaryCachedPCCodec.ClassSchema schema = codec.getSchemas().get(0);
+
+        final var restoredCodec = new BinaryCachedPCCodec(nucleusCtx);
+        assertThat(restoredCodec.restoreSchema(schema.id(), Widget.class.getName(), schema.fingerprint() + 1)).isFalse();
+        assertThat(restoredCodec.restoreSchema(1, "com.example.Missing", 0)).isFalse();
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> restoredCodec.decode(bytes))
+                .withMessageContaining("outdated");
+
+        // Outdated schemas keep their id occupied, so that newly assigned ids don't collide with restored ones.
+        assertThat(restoredCodec.getSchema(Widget.class).id()).isEqualTo(2);
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> restoredCodec.restoreSchema(5, Widget.class.getName(), schema.fingerprint()));
+    }
+
+    private static CachedPC<Widget> newCachedPC(final long id) {
+        final var loadedFields = new boolean[]{true, true, true, true};
+        return new CachedPC<>(Widget.class, loadedFields, id, new LongId(Widget.class, id));
+    }
+
+    public static class Widget {
+    }
+
+    enum Color {
+        RED,
+        GREEN {
+            @Override
+            public String toString() {
+                return "green";
+            }
+        }
+    }
+
+    record Point(int x, int y) implements Serializable {
+    }
+
+}
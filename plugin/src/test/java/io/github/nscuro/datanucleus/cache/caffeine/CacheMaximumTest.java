@@ -0,0 +1,99 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class CacheMaximumTest {
+
+    @Test
+    void testLimitAndLift() {
+        final Cache<Object, Object> cache = Caffeine.newBuilder().maximumSize(100).build();
+        final var cacheMaximum = new CacheMaximum(cache);
+        assertThat(cacheMaximum.getTarget()).isEqualTo(100);
+        assertThat(cacheMaximum.getFloor()).isEqualTo(10);
+        assertThat(cacheMaximum.isLimited()).isFalse();
+
+        cacheMaximum.limit(0.5);
+        assertThat(getMaximum(cache)).isEqualTo(50);
+        cacheMaximum.limit(0.5);
+        assertThat(getMaximum(cache)).isEqualTo(25);
+        assertThat(cacheMaximum.isLimited()).isTrue();
+        assertThat(cacheMaximum.getTarget()).isEqualTo(100);
+
+        // Limits don't go below the floor.
+        cacheMaximum.limit(0.5);
+        cacheMaximum.limit(0.5);
+        assertThat(getMaximum(cache)).isEqualTo(10);
+
+        cacheMaximum.lift();
+        assertThat(getMaximum(cache)).isEqualTo(100);
+        assertThat(cacheMaximum.isLimited()).isFalse();
+    }
+
+    @Test
+    void testSetTargetWhileLimited() {
+        final Cache<Object, Object> cache = Caffeine.newBuilder().maximumSize(100).build();
+        final var cacheMaximum = new CacheMaximum(cache, 20);
+
+        cacheMaximum.limit(0.5);
+        assertThat(getMaximum(cache)).isEqualTo(50);
+
+        // Targets below the limit take effect immediately, all others once the limit is lifted.
+        cacheMaximum.setTarget(30);
+        assertThat(getMaximum(cache)).isEqualTo(30);
+        cacheMaximum.setTarget(80);
+        assertThat(getMaximum(cache)).isEqualTo(50);
+
+        // Further limits are relative to the lower of limit and target.
+        cacheMaximum.limit(0.5);
+        assertThat(getMaximum(cache)).isEqualTo(25);
+
+        cacheMaximum.lift();
+        assertThat(getMaximum(cache)).isEqualTo(80);
+    }
+
+    @Test
+    void testWeighted() {
+        final Cache<Object, Object> cache = Caffeine.newBuilder()
+                .maximumWeight(1000)
+                .weigher((key, value) -> 1)
+                .build();
+        final var cacheMaximum = new CacheMaximum(cache);
+        assertThat(cacheMaximum.isWeighted()).isTrue();
+        assertThat(cacheMaximum.getFloor()).isEqualTo(100);
+    }
+
+    @Test
+    void testUnbounded() {
+        final Cache<Object, Object> cache = Caffeine.newBuilder().build();
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new CacheMaximum(cache, 1));
+    }
+
+    private static long getMaximum(final Cache<?, ?> cache) {
+        return cache.policy().eviction().orElseThrow().getMaximum();
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class CacheRegionTest {
+
+    @Test
+    void testParse() {
+        final List<CacheRegion> regions = CacheRegion.parse(
+                " com.acme.A = maximumWeight=1000,refreshAfterWrite=1m;;com.acme.b.*=maximumSize=10,expireAfterAccess=1h,recordStats;");
+        assertThat(regions).satisfiesExactly(
+                region -> {
+                    assertThat(region.getSelector()).isEqualTo("com.acme.A");
+                    assertThat(region.isWeighted()).isTrue();
+                    assertThat(region.hasExpiry()).isFalse();
+                    assertThat(region.isRecordingStats()).isFalse();
+                },
+                region -> {
+                    assertThat(region.getSelector()).isEqualTo("com.acme.b.*");
+                    assertThat(region.isWeighted()).isFalse();
+                    assertThat(region.hasExpiry()).isTrue();
+                    assertThat(region.isRecordingStats()).isTrue();
+                    assertThat(region.getSpecWithoutStats().toParsableString())
+                            .contains("maximumSize=10")
+                            .doesNotContain("recordStats");
+                });
+    }
+
+    @Test
+    void testParseEmpty() {
+        assertThat(CacheRegion.parse(null)).isEmpty();
+        assertThat(CacheRegion.parse(" ")).isEmpty();
+    }
+
+    @Test
+    void testParseInvalid() {
+        assertThatExceptionOfType(NucleusUserException.class)
+                .isThrownBy(() -> CacheRegion.parse("com.acme.A"))
+                .withMessageContaining("expected <selector>=<spec>");
+        assertThatExceptionOfType(NucleusUserException.class)
+                .isThrownBy(() -> CacheRegion.parse("=maximumSize=10"));
+        assertThatExceptionOfType(NucleusUserException.class)
+                .isThrownBy(() -> CacheRegion.parse("com.acme.A=maximumSize=foo"))
+                .withMessageContaining("com.acme.A");
+    }
+
+    @Test
+    void testMatch() {
+        final List<CacheRegion> regions = CacheRegion.parse(
+                "com.acme.A=maximumSize=1;com.acme.*=maximumSize=2;com.acme.b.*=maximumSize=3");
+
+        final CacheRegion classRegion = regions.get(0);
+        assertThat(classRegion.match("com.acme.A")).isEqualTo(Integer.MAX_VALUE);
+        assertThat(classRegion.match("com.acme.AB")).isEqualTo(-1);
+
+        final CacheRegion packageRegion = regions.get(1);
+        final CacheRegion subPackageRegion = regions.get(2);
+        assertThat(packageRegion.match("com.acme.A")).isPositive();
+        assertThat(packageRegion.match("com.acmeco.A")).isEqualTo(-1);
+        assertThat(subPackageRegion.match("com.acme.A")).isEqualTo(-1);
+
+        // Deeper packages win over their parents, and exact classes over any package.
+        assertThat(subPackageRegion.match("com.acme.b.C")).isGreaterThan(packageRegion.match("com.acme.b.C"));
+        assertThat(classRegion.match("com.acme.A")).isGreaterThan(packageRegion.match("com.acme.A"));
+    }
+
+}
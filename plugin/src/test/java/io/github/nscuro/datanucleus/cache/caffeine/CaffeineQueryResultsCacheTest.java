@@ -0,0 +1,65 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import org.junit.jupiter.api.Test;
+
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineQueryResultsCache.getCandidate;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CaffeineQueryResultsCacheTest {
+
+    @Test
+    void testGetCandidate() {
+        assertThat(getCandidate("JDOQL:SELECT FROM com.acme.Person WHERE name == :name ")).isEqualTo("com.acme.Person");
+        assertThat(getCandidate("JDOQL:SELECT FROM com.acme.Outer$Inner ")).isEqualTo("com.acme.Outer$Inner");
+        assertThat(getCandidate("JPQL:select p from Person p ")).isEqualTo("Person");
+        assertThat(getCandidate("JDOQL:SELECT\nFROM\tPerson ")).isEqualTo("Person");
+    }
+
+    @Test
+    void testGetCandidateWithoutFrom() {
+        assertThat(getCandidate("JDOQL:SELECT UNIQUE this ")).isNull();
+        assertThat(getCandidate("")).isNull();
+    }
+
+    @Test
+    void testGetCandidateWithSubquery() {
+        assertThat(getCandidate("JDOQL:SELECT FROM com.acme.Person WHERE age > "
+                + "(SELECT avg(p.age) FROM com.acme.Employee p) ")).isNull();
+        assertThat(getCandidate("JPQL:SELECT p FROM Person p WHERE p.age > (SELECT AVG(e.age) FROM Employee e) ")).isNull();
+    }
+
+    @Test
+    void testGetCandidateWithMultipleFromClauses() {
+        assertThat(getCandidate("JDOQL:SELECT FROM com.acme.Person FROM com.acme.Employee ")).isNull();
+        assertThat(getCandidate("JPQL:SELECT p FROM Person p from Employee e ")).isNull();
+    }
+
+    @Test
+    void testGetCandidateWithQuotedFrom() {
+        // A quoted FROM that looks like a clause makes the key ambiguous, and thus subject to eviction by any class.
+        assertThat(getCandidate("JDOQL:SELECT FROM com.acme.Person WHERE name == ' FROM com.acme.Other' ")).isNull();
+        assertThat(getCandidate("JDOQL:SELECT FROM com.acme.Person WHERE name == \" from Other\" ")).isNull();
+
+        // A quoted FROM without surrounding whitespace is not mistaken for a clause.
+        assertThat(getCandidate("JDOQL:SELECT FROM com.acme.Person WHERE name == 'FROM' ")).isEqualTo("com.acme.Person");
+    }
+
+}
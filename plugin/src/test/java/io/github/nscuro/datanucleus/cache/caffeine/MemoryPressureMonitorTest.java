@@ -0,0 +1,119 @@
+/*
+ * This file is part of DataNucleus Cache Caffeine.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright (c) Niklas Düster. All Rights Reserved.
+ */
+package io.github.nscuro.datanucleus.cache.caffeine;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MemoryPressureMonitorTest {
+
+    @Test
+    void testPressureAndRecovery() {
+        final Cache<Object, Object> cache = Caffeine.newBuilder().maximumSize(100).build();
+        final Cache<Object, Object> otherCache = Caffeine.newBuilder().maximumSize(1000).build();
+        final var cacheMaximum = new CacheMaximum(cache);
+
+        try (final var monitor = new MemoryPressureMonitor(List.of(cacheMaximum, new CacheMaximum(otherCache)), 0.9)) {
+            assertThat(monitor.isUnderPressure()).isFalse();
+
+            // Simulate notifications, since actually exhausting the heap is not an option.
+            final var usage = new MemoryUsage(0, 99, 100, 100);
+            monitor.onPressure("Old Gen", usage);
+            assertThat(monitor.isUnderPressure()).isTrue();
+            assertThat(getMaximum(cache)).isEqualTo(50);
+            assertThat(getMaximum(otherCache)).isEqualTo(500);
+
+            monitor.onPressure("Old Gen", usage);
+            assertThat(getMaximum(cache)).isEqualTo(25);
+            assertThat(getMaximum(otherCache)).isEqualTo(250);
+
+            // Changes of the maximum made under pressure are kept once it clears.
+            cacheMaximum.setTarget(80);
+            monitor.onRecovered();
+            assertThat(monitor.isUnderPressure()).isFalse();
+            assertThat(getMaximum(cache)).isEqualTo(80);
+            assertThat(getMaximum(otherCache)).isEqualTo(1000);
+        }
+    }
+
+    @Test
+    void testRecoveryWithoutPressure() {
+        final Cache<Object, Object> cache = Caffeine.newBuilder().maximumSize(100).build();
+        final var cacheMaximum = new CacheMaximum(cache);
+        cacheMaximum.limit(0.5);
+
+        // Limits that weren't imposed by the monitor are left alone.
+        try (final var monitor = new MemoryPressureMonitor(List.of(cacheMaximum), 0.9)) {
+            monitor.onRecovered();
+            assertThat(getMaximum(cache)).isEqualTo(50);
+        }
+    }
+
+    @Test
+    void testThresholds() {
+        final Map<String, Long> originalThresholds = getCollectionUsageThresholds();
+        final Cache<Object, Object> cache = Caffeine.newBuilder().maximumSize(100).build();
+
+        final var monitor = new MemoryPressureMonitor(List.of(new CacheMaximum(cache)), 0.99);
+        final var otherMonitor = new MemoryPressureMonitor(List.of(new CacheMaximum(cache)), 0.98);
+        try {
+            monitor.start();
+            final Map<String, Long> thresholds = getCollectionUsageThresholds();
+            assertThat(thresholds.values()).anySatisfy(threshold -> assertThat(threshold).isPositive());
+
+            // Pools use the lowest threshold of all monitors.
+            otherMonitor.start();
+            final Map<String, Long> lowerThresholds = getCollectionUsageThresholds();
+            thresholds.forEach((poolName, threshold) -> {
+                if (threshold > 0) {
+                    assertThat(lowerThresholds.get(poolName)).isLessThan(threshold);
+                }
+            });
+
+            otherMonitor.close();
+            assertThat(getCollectionUsageThresholds()).isEqualTo(thresholds);
+        } finally {
+            otherMonitor.close();
+            monitor.close();
+        }
+
+        assertThat(getCollectionUsageThresholds()).isEqualTo(originalThresholds);
+    }
+
+    private static Map<String, Long> getCollectionUsageThresholds() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(MemoryPoolMXBean::isCollectionUsageThresholdSupported)
+                .collect(Collectors.toMap(MemoryPoolMXBean::getName, MemoryPoolMXBean::getCollectionUsageThreshold));
+    }
+
+    private static long getMaximum(final Cache<?, ?> cache) {
+        return cache.policy().eviction().orElseThrow().getMaximum();
+    }
+
+}
@@ -1,4 +1,9 @@
 create table if not exists "PERSON" (
   "ID" int primary key generated always as identity
 , "NAME" text
+);
+
+create table if not exists "EVENT" (
+  "ID" int primary key generated always as identity
+, "NAME" text
 );
\ No newline at end of file
@@ -18,28 +18,77 @@
  */
 package io.github.nscuro.datanucleus.cache.caffeine;
 
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.RemovalListener;
+import io.github.nscuro.datanucleus.cache.caffeine.test.model.Event;
 import io.github.nscuro.datanucleus.cache.caffeine.test.model.Person;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.datanucleus.api.jdo.JDODataStoreCache;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.api.jdo.JDOQuery;
+import org.datanucleus.cache.CacheUniqueKey;
+import org.datanucleus.cache.CachedPC;
 import org.datanucleus.cache.Level2Cache;
+import org.datanucleus.store.query.QueryManager;
+import org.datanucleus.store.query.cache.QueryResultsCache;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 
 import javax.jdo.JDOHelper;
 import javax.jdo.PersistenceManager;
 import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L1_CAFFEINE_MAXIMUM_SIZE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_SIZING_ENABLED;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_CLASS_EVICTION_MODE;
 import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_EXPIRY_MODE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_FILE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_JMX_ENABLED;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_DIRECTORY;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_MAX_REPLAY_AGE_MILLIS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_MAXIMUM_WEIGHT;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_MEMORY_PRESSURE_THRESHOLD;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_METRICS_ENABLED;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_OFF_HEAP_MAXIMUM_SIZE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_REGIONS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_REMOVAL_LISTENERS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_FILE;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_MAX_AGE_MILLIS;
+import static io.github.nscuro.datanucleus.cache.caffeine.CaffeineCachePropertyNames.PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE;
 import static java.util.Map.entry;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.awaitility.Awaitility.await;
+import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L1_TYPE;
 import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L2_EXPIRY_MILLIS;
 import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L2_MAXSIZE;
 import static org.datanucleus.PropertyNames.PROPERTY_CACHE_L2_STATISTICS_ENABLED;
@@ -57,6 +106,9 @@ class CaffeineCacheTest {
     private static org.testcontainers.containers.PostgreSQLContainer<?> postgresContainer;
     private PersistenceManagerFactory pmf;
 
+    @TempDir
+    private Path tempDir;
+
     @BeforeAll
     static void beforeAll() {
         postgresContainer = new org.testcontainers.containers.PostgreSQLContainer<>("postgres:16-alpine");
@@ -104,6 +156,68 @@ class CaffeineCacheTest {
         assertThat(secondLevelCache.getSize()).isEqualTo(100);
     }
 
+    @Test
+    void testMaxWeight() {
+        pmf = createPmf(Map.of(PROPERTY_CACHE_L2_CAFFEINE_MAXIMUM_WEIGHT, "10000"));
+
+        final Object shortNameOid;
+        final Object longNameOid;
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final var shortNamePerson = new Person();
+            shortNamePerson.setName("name");
+            pm.makePersistent(shortNamePerson);
+            shortNameOid = pm.getObjectId(shortNamePerson);
+
+            final var longNamePerson = new Person();
+            longNamePerson.setName("n".repeat(250));
+            pm.makePersistent(longNamePerson);
+            longNameOid = pm.getObjectId(longNamePerson);
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        final var weigher = new CachedPCWeigher();
+        final int shortNameWeight = weigher.weigh(shortNameOid, secondLevelCache.get(shortNameOid));
+        final int longNameWeight = weigher.weigh(longNameOid, secondLevelCache.get(longNameOid));
+        assertThat(longNameWeight).isGreaterThanOrEqualTo(shortNameWeight + 240);
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 48; i++) {
+                final var person = new Person();
+                person.setName("n".repeat(250));
+                pm.makePersistent(person);
+            }
+        }
+
+        // 50 objects would fit into a cache bounded by count, but their weight only allows for a fraction of them.
+        secondLevelCache.getCaffeineCache().cleanUp();
+        final var eviction = secondLevelCache.getCaffeineCache().policy().eviction().orElseThrow();
+        assertThat(eviction.isWeighted()).isTrue();
+        assertThat(eviction.weightedSize().orElseThrow()).isLessThanOrEqualTo(10000);
+        assertThat(secondLevelCache.getSize()).isBetween(1, 10000 / longNameWeight + 1);
+    }
+
+    @Test
+    void testRegions() {
+        pmf = createPmf(Map.of(PROPERTY_CACHE_L2_CAFFEINE_REGIONS, Person.class.getName() + "=maximumSize=5"));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 20; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getSize()).isEqualTo(5);
+        assertThat(secondLevelCache.getCaffeineCache().estimatedSize()).isZero();
+        assertThat(secondLevelCache.getRegionCaches()).hasEntrySatisfying(Person.class.getName(),
+                regionCache -> assertThat(regionCache.estimatedSize()).isEqualTo(5));
+
+        secondLevelCache.evictAll(Person.class, false);
+        assertThat(secondLevelCache.getSize()).isZero();
+    }
+
     @Test
     void testExpiryAfterWrite() {
         pmf = createPmf(Map.of(
@@ -170,7 +284,337 @@ class CaffeineCacheTest {
     }
 
     @Test
-    void testEvictAllByClass() {
+    void testVariableExpiry() {
+        pmf = createPmf(Map.of(
+                PROPERTY_CACHE_L2_EXPIRY_MILLIS, "60000",
+                PROPERTY_CACHE_L2_CAFFEINE_EXPIRY_MODE, "variable"));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+
+                final var event = new Event();
+                event.setName("name-" + i);
+                pm.makePersistent(event);
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getSize()).isEqualTo(20);
+
+        // Events declare an expiry of 1s via metadata extension,
+        // persons fall back to the globally configured 60s.
+        await("Event expiry")
+                .atMost(Duration.ofSeconds(3))
+                .untilAsserted(() -> assertThat(secondLevelCache.getSize()).isEqualTo(10));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"scan", "index", "epoch"})
+    void testEvictAllByClass(final String classEvictionMode) {
+        pmf = createPmf(Map.of(PROPERTY_CACHE_L2_CAFFEINE_CLASS_EVICTION_MODE, classEvictionMode));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+
+                final var event = new Event();
+                event.setName("name-" + i);
+                pm.makePersistent(event);
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getSize()).isEqualTo(20);
+
+        secondLevelCache.evictAll(Person.class, false);
+        assertThat(secondLevelCache.getSize()).isEqualTo(10);
+
+        secondLevelCache.evictAll(Event.class, true);
+        assertThat(secondLevelCache.getSize()).isEqualTo(0);
+    }
+
+    @Test
+    void testBulkOperations() {
+        pmf = createPmf(Collections.emptyMap());
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        final List<Object> oids = new ArrayList<>(secondLevelCache.getCaffeineCache().asMap().keySet());
+        assertThat(oids).hasSize(10);
+
+        final Map<Object, CachedPC> pcs = secondLevelCache.getAll(oids);
+        assertThat(pcs).hasSize(10);
+
+        secondLevelCache.evictAll();
+        assertThat(secondLevelCache.getAll(oids)).isEmpty();
+
+        secondLevelCache.putAll(pcs);
+        assertThat(secondLevelCache.getSize()).isEqualTo(10);
+        assertThat(secondLevelCache.getAll(oids)).containsOnlyKeys(oids);
+    }
+
+    @Test
+    void testUniqueKeys() {
+        pmf = createPmf(Collections.emptyMap());
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final var person = new Person();
+            person.setName("foo");
+            pm.makePersistent(person);
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        final Object oid = secondLevelCache.getCaffeineCache().asMap().keySet().iterator().next();
+        final CachedPC pc = secondLevelCache.get(oid);
+        assertThat(pc).isNotNull();
+
+        final var uniqueKey = new CacheUniqueKey(Person.class.getName(), new String[]{"name"}, new Object[]{"foo"});
+        secondLevelCache.putUnique(uniqueKey, pc);
+        assertThat(secondLevelCache.getUnique(uniqueKey)).isSameAs(pc);
+
+        final var otherUniqueKey = new CacheUniqueKey(Person.class.getName(), new String[]{"name"}, new Object[]{"bar"});
+        secondLevelCache.putUniqueAll(Map.of(otherUniqueKey, pc));
+        assertThat(secondLevelCache.getUnique(otherUniqueKey)).isSameAs(pc);
+
+        // Unique keys map to the oid instead of holding a copy of the object.
+        assertThat(secondLevelCache.getSize()).isEqualTo(1);
+
+        secondLevelCache.evict(oid);
+        assertThat(secondLevelCache.getUnique(uniqueKey)).isNull();
+        assertThat(secondLevelCache.getUnique(otherUniqueKey)).isNull();
+    }
+
+    @Test
+    void testQueryResultsCache() {
+        pmf = createPmf(Map.of("datanucleus.cache.queryResults.type", "caffeine"));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 5; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+            }
+        }
+
+        final QueryResultsCache queryResultsCache = ((JDOPersistenceManagerFactory) pmf).getNucleusContext()
+                .getStoreManager().getQueryManager().getQueryResultsCache();
+        assertThat(queryResultsCache).isInstanceOf(CaffeineQueryResultsCache.class);
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final Query<Person> query = pm.newQuery(Person.class);
+            query.addExtension("datanucleus.query.results.cached", "true");
+            assertThat(query.executeList()).hasSize(5);
+        }
+
+        assertThat(queryResultsCache.size()).isEqualTo(1);
+
+        queryResultsCache.evict(Person.class);
+        assertThat(queryResultsCache.isEmpty()).isTrue();
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final Query<Person> query = pm.newQuery(Person.class);
+            query.addExtension("datanucleus.query.results.cached", "true");
+            assertThat(query.executeList()).hasSize(5);
+            queryResultsCache.pin(((JDOQuery<Person>) query).getInternalQuery());
+        }
+
+        assertThat(queryResultsCache.size()).isEqualTo(1);
+
+        // DataNucleus evicts results by candidate class when modified objects are flushed, even if they're pinned.
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            pm.currentTransaction().begin();
+            final Person person = pm.newQuery(Person.class).executeList().get(0);
+            person.setName("modified");
+            pm.currentTransaction().commit();
+        }
+
+        assertThat(queryResultsCache.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testQueryCompilationCaches() {
+        pmf = createPmf(Map.of(
+                "datanucleus.cache.queryCompilation.type", "caffeine",
+                "datanucleus.cache.queryCompilationDatastore.type", "caffeine"));
+
+        final QueryManager queryManager = ((JDOPersistenceManagerFactory) pmf).getNucleusContext()
+                .getStoreManager().getQueryManager();
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final Query<Person> query = pm.newQuery(Person.class, "name == :name");
+            assertThat(query.setParameters("foo").executeList()).isEmpty();
+        }
+
+        assertThat(queryManager.getQueryCompilationCache()).isInstanceOf(CaffeineQueryCompilationCache.class);
+        assertThat(queryManager.getQueryCompilationCache().size()).isEqualTo(1);
+        assertThat(queryManager.getQueryDatastoreCompilationCache()).isInstanceOf(CaffeineQueryDatastoreCompilationCache.class);
+        assertThat(queryManager.getQueryDatastoreCompilationCache().size()).isEqualTo(1);
+    }
+
+    @Test
+    void testLevel1CacheMaxSize() {
+        pmf = createPmf(Map.of(PROPERTY_CACHE_L1_TYPE, "caffeine-bounded"));
+
+        final String previousMaximumSize = System.setProperty(PROPERTY_CACHE_L1_CAFFEINE_MAXIMUM_SIZE, "10");
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            pm.currentTransaction().begin();
+            for (int i = 0; i < 50; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+            }
+
+            // New objects must not be evicted before they're flushed.
+            assertThat(pm.getManagedObjects()).hasSize(50);
+            pm.currentTransaction().commit();
+
+            // Committed objects are no longer new, and thus subject to the bound.
+            assertThat(pm.getManagedObjects()).hasSizeLessThanOrEqualTo(10);
+
+            pm.currentTransaction().begin();
+            assertThat(pm.newQuery(Person.class).executeList()).hasSize(50);
+            assertThat(pm.getManagedObjects()).hasSizeLessThanOrEqualTo(10);
+            pm.currentTransaction().commit();
+        } finally {
+            if (previousMaximumSize != null) {
+                System.setProperty(PROPERTY_CACHE_L1_CAFFEINE_MAXIMUM_SIZE, previousMaximumSize);
+            } else {
+                System.clearProperty(PROPERTY_CACHE_L1_CAFFEINE_MAXIMUM_SIZE);
+            }
+        }
+    }
+
+    @Test
+    void testMetrics() {
+        final var meterRegistry = new SimpleMeterRegistry();
+        Metrics.addRegistry(meterRegistry);
+        try {
+            pmf = createPmf(Map.of(
+                    PROPERTY_CACHE_L2_CAFFEINE_METRICS_ENABLED, "true",
+                    PROPERTY_CACHE_L2_MAXSIZE, "5"));
+
+            try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+                for (int i = 0; i < 10; i++) {
+                    final var person = new Person();
+                    person.setName("name-" + i);
+                    pm.makePersistent(person);
+                }
+            }
+
+            final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+            final Object oid = secondLevelCache.getCaffeineCache().asMap().keySet().iterator().next();
+            assertThat(secondLevelCache.get(oid)).isNotNull();
+            secondLevelCache.getCaffeineCache().cleanUp();
+
+            assertThat(meterRegistry.get("cache.puts").counter().count()).isGreaterThanOrEqualTo(10);
+            assertThat(meterRegistry.get("cache.gets").tag("result", "hit").counter().count()).isEqualTo(1);
+            assertThat(meterRegistry.get("cache.evictions").tag("cause", "size").counter().count()).isEqualTo(5);
+            assertThat(meterRegistry.get("cache.size").tag("class", "default").gauge().value()).isEqualTo(5);
+            assertThat(secondLevelCache.getCaffeineCache().stats().evictionCount()).isEqualTo(5);
+
+            pmf.close();
+            pmf = null;
+            assertThat(meterRegistry.find("cache.puts").counter()).isNull();
+        } finally {
+            Metrics.removeRegistry(meterRegistry);
+        }
+    }
+
+    @Test
+    void testMetricsWithoutRegistry() {
+        // Without a registry, the meters of the global registry are no-ops.
+        pmf = createPmf(Map.of(
+                PROPERTY_CACHE_L2_CAFFEINE_METRICS_ENABLED, "true",
+                PROPERTY_CACHE_L2_MAXSIZE, "5"));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        final Object oid = secondLevelCache.getCaffeineCache().asMap().keySet().iterator().next();
+        assertThat(secondLevelCache.get(oid)).isNotNull();
+        secondLevelCache.getCaffeineCache().cleanUp();
+
+        assertThat(secondLevelCache.getCaffeineCache().stats().hitCount()).isEqualTo(1);
+        assertThat(secondLevelCache.getCaffeineCache().stats().evictionCount()).isEqualTo(5);
+    }
+
+    @Test
+    void testMetricsSharedBetweenCaches() {
+        final var meterRegistry = new SimpleMeterRegistry();
+        Metrics.addRegistry(meterRegistry);
+        try {
+            final Map<String, String> configOverrides = Map.of(PROPERTY_CACHE_L2_CAFFEINE_METRICS_ENABLED, "true");
+            pmf = createPmf(configOverrides);
+            final PersistenceManagerFactory otherPmf = createPmf(configOverrides);
+            otherPmf.getPersistenceManager().close();
+            assertThat(meterRegistry.find("cache.puts").counter()).isNotNull();
+
+            // Both caches have the same name and persistence unit, and thus share their meters.
+            otherPmf.close();
+            assertThat(meterRegistry.find("cache.puts").counter()).isNotNull();
+
+            pmf.close();
+            pmf = null;
+            assertThat(meterRegistry.find("cache.puts").counter()).isNull();
+        } finally {
+            Metrics.removeRegistry(meterRegistry);
+        }
+    }
+
+    @Test
+    void testMXBean() throws Exception {
+        pmf = createPmf(Map.of(
+                PROPERTY_CACHE_L2_CAFFEINE_JMX_ENABLED, "true",
+                PROPERTY_CACHE_L2_MAXSIZE, "100"));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+            }
+        }
+
+        final var objectName = new ObjectName("io.github.nscuro.datanucleus.cache.caffeine:type=CaffeineLevel2Cache,name=\"test\"");
+        final CaffeineLevel2CacheMXBean mxBean = JMX.newMXBeanProxy(
+                ManagementFactory.getPlatformMBeanServer(), objectName, CaffeineLevel2CacheMXBean.class);
+        assertThat(mxBean.getEstimatedSize()).isEqualTo(10);
+        assertThat(mxBean.getMaximumSize()).isEqualTo(100);
+
+        mxBean.setMaximumSize(5);
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        secondLevelCache.getCaffeineCache().cleanUp();
+        assertThat(mxBean.getMaximumSize()).isEqualTo(5);
+        assertThat(mxBean.getEstimatedSize()).isEqualTo(5);
+
+        mxBean.evictClass(Person.class.getName(), false);
+        assertThat(secondLevelCache.getSize()).isZero();
+
+        pmf.close();
+        pmf = null;
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)).isFalse();
+    }
+
+    @Test
+    void testFlightRecorderEvents() throws Exception {
         pmf = createPmf(Collections.emptyMap());
 
         try (final PersistenceManager pm = pmf.getPersistenceManager()) {
@@ -182,10 +626,483 @@ class CaffeineCacheTest {
         }
 
         final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        final Path recordingPath = tempDir.resolve("recording.jfr");
+        try (final var recording = new Recording()) {
+            recording.enable("io.github.nscuro.datanucleus.cache.caffeine.ClassEviction");
+            recording.enable("io.github.nscuro.datanucleus.cache.caffeine.BulkOperation");
+            recording.start();
+
+            secondLevelCache.getAll(List.copyOf(secondLevelCache.getCaffeineCache().asMap().keySet()));
+            secondLevelCache.evictAll(Person.class, false);
+
+            recording.stop();
+            recording.dump(recordingPath);
+        }
+
+        final List<RecordedEvent> events = RecordingFile.readAllEvents(recordingPath);
+        assertThat(events).anySatisfy(event -> {
+            assertThat(event.getEventType().getName()).isEqualTo("io.github.nscuro.datanucleus.cache.caffeine.BulkOperation");
+            assertThat(event.getString("operation")).isEqualTo("getAll");
+            assertThat(event.getInt("objectCount")).isEqualTo(10);
+        });
+        assertThat(events).anySatisfy(event -> {
+            assertThat(event.getEventType().getName()).isEqualTo("io.github.nscuro.datanucleus.cache.caffeine.ClassEviction");
+            assertThat(event.getString("objectClass")).isEqualTo(Person.class.getName());
+            assertThat(event.getLong("entriesRemoved")).isEqualTo(10);
+        });
+    }
+
+    @Test
+    void testClassStatistics() {
+        pmf = createPmf(Map.of(PROPERTY_CACHE_L2_STATISTICS_ENABLED, "true"));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        final Object oid = secondLevelCache.getCaffeineCache().asMap().keySet().iterator().next();
+        assertThat(secondLevelCache.get(oid)).isNotNull();
+        secondLevelCache.evict(oid);
+        assertThat(secondLevelCache.get(oid)).isNull();
+
+        await("Invalidation")
+                .atMost(Duration.ofSeconds(5))
+                .untilAsserted(() -> assertThat(secondLevelCache.getClassStatistics()).hasEntrySatisfying(Person.class.getName(), statistics -> {
+                    assertThat(statistics.putCount()).isGreaterThanOrEqualTo(10);
+                    assertThat(statistics.hitCount()).isEqualTo(1);
+                    assertThat(statistics.missCount()).isEqualTo(1);
+                    assertThat(statistics.invalidationCount()).isEqualTo(1);
+                    assertThat(statistics.hitRate()).isEqualTo(0.5);
+                }));
+    }
+
+    @Test
+    void testRemovalListeners() {
+        RecordingRemovalListener.REMOVALS.clear();
+
+        pmf = createPmf(Map.ofEntries(
+                entry(PROPERTY_CACHE_L2_MAXSIZE, "5"),
+                entry(PROPERTY_CACHE_L2_STATISTICS_ENABLED, "true"),
+                entry(PROPERTY_CACHE_L2_CAFFEINE_REMOVAL_LISTENERS, RecordingRemovalListener.class.getName())));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        secondLevelCache.getCaffeineCache().cleanUp();
+        secondLevelCache.evict(secondLevelCache.getCaffeineCache().asMap().keySet().iterator().next());
+
+        await("Removals")
+                .atMost(Duration.ofSeconds(5))
+                .untilAsserted(() -> {
+                    assertThat(RecordingRemovalListener.REMOVALS).contains(RemovalCause.EXPLICIT);
+                    assertThat(RecordingRemovalListener.REMOVALS).filteredOn(RemovalCause.SIZE::equals).hasSizeGreaterThanOrEqualTo(5);
+                    assertThat(secondLevelCache.getClassStatistics()).hasEntrySatisfying(Person.class.getName(), statistics -> {
+                        assertThat(statistics.removalCount(RemovalCause.EXPLICIT)).isEqualTo(1);
+                        assertThat(statistics.removalCount(RemovalCause.SIZE)).isGreaterThanOrEqualTo(5);
+                        assertThat(statistics.removalCount(RemovalCause.EXPIRED)).isZero();
+                    });
+                });
+    }
+
+    @Test
+    void testAccessTrace() throws Exception {
+        final Path traceFile = tempDir.resolve("trace.bin");
+        pmf = createPmf(Map.of(PROPERTY_CACHE_L2_CAFFEINE_TRACE_FILE, traceFile.toString()));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        final Object oid = secondLevelCache.getCaffeineCache().asMap().keySet().iterator().next();
+        assertThat(secondLevelCache.get(oid)).isNotNull();
+        secondLevelCache.evict(oid);
+        assertThat(secondLevelCache.get(oid)).isNull();
+
+        // Closing the factory closes the cache, which flushes the trace.
+        pmf.close();
+        pmf = null;
+
+        final var operations = new ArrayList<AccessTrace.Operation>();
+        final var keyHashes = new ArrayList<Long>();
+        assertThat(AccessTrace.getFiles(traceFile)).containsExactly(traceFile);
+        AccessTrace.read(traceFile, (operation, keyHash, timestampNanos) -> {
+            operations.add(operation);
+            keyHashes.add(keyHash);
+        });
+
+        assertThat(operations).filteredOn(AccessTrace.Operation.PUT::equals).hasSizeGreaterThanOrEqualTo(10);
+        assertThat(operations).containsSubsequence(
+                AccessTrace.Operation.HIT,
+                AccessTrace.Operation.EVICT,
+                AccessTrace.Operation.MISS,
+                AccessTrace.Operation.EVICT_ALL);
+        assertThat(keyHashes.get(operations.lastIndexOf(AccessTrace.Operation.HIT)))
+                .isEqualTo(keyHashes.get(operations.lastIndexOf(AccessTrace.Operation.MISS)));
+    }
+
+    @Test
+    void testAdaptiveSizing() {
+        pmf = createPmf(Map.ofEntries(
+                entry(PROPERTY_CACHE_L2_MAXSIZE, "100"),
+                entry(PROPERTY_CACHE_L2_CAFFEINE_ADAPTIVE_SIZING_ENABLED, "true")));
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getAdaptiveSizer()).isNotNull();
+        assertThat(secondLevelCache.getCaffeineCache().policy().isRecordingStats()).isTrue();
+    }
+
+    @Test
+    void testMemoryPressure() {
+        final Map<String, Long> originalThresholds = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(MemoryPoolMXBean::isCollectionUsageThresholdSupported)
+                .collect(Collectors.toMap(MemoryPoolMXBean::getName, MemoryPoolMXBean::getCollectionUsageThreshold));
+
+        pmf = createPmf(Map.ofEntries(
+                entry(PROPERTY_CACHE_L2_MAXSIZE, "100"),
+                entry(PROPERTY_CACHE_L2_CAFFEINE_MEMORY_PRESSURE_THRESHOLD, "0.99")));
+
+        assertThat(ManagementFactory.getMemoryPoolMXBeans())
+                .filteredOn(MemoryPoolMXBean::isCollectionUsageThresholdSupported)
+                .anySatisfy(pool -> assertThat(pool.getCollectionUsageThreshold()).isPositive());
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        final MemoryPressureMonitor monitor = secondLevelCache.getMemoryPressureMonitor();
+        assertThat(monitor).isNotNull();
+        assertThat(monitor.isUnderPressure()).isFalse();
+
+        // Simulate a notification, since actually exhausting the heap is not an option.
+        monitor.onPressure("Old Gen", new MemoryUsage(0, 99, 100, 100));
+        assertThat(secondLevelCache.getCaffeineCache().policy().eviction().orElseThrow().getMaximum()).isEqualTo(50);
+
+        monitor.onRecovered();
+        assertThat(secondLevelCache.getCaffeineCache().policy().eviction().orElseThrow().getMaximum()).isEqualTo(100);
+
+        pmf.close();
+        pmf = null;
+        assertThat(ManagementFactory.getMemoryPoolMXBeans())
+                .filteredOn(MemoryPoolMXBean::isCollectionUsageThresholdSupported)
+                .allSatisfy(pool -> assertThat(pool.getCollectionUsageThreshold()).isEqualTo(originalThresholds.get(pool.getName())));
+    }
+
+    @Test
+    void testOffHeapTier() {
+        pmf = createPmf(Map.ofEntries(
+                entry(PROPERTY_CACHE_L2_MAXSIZE, "5"),
+                entry(PROPERTY_CACHE_L2_CAFFEINE_OFF_HEAP_MAXIMUM_SIZE, String.valueOf(1024 * 1024))));
+
+        final var oids = new ArrayList<>();
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+                oids.add(pm.getObjectId(person));
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        secondLevelCache.getCaffeineCache().cleanUp();
+        assertThat(secondLevelCache.getCaffeineCache().estimatedSize()).isEqualTo(5);
+        assertThat(secondLevelCache.getOffHeapTier().size()).isEqualTo(5);
         assertThat(secondLevelCache.getSize()).isEqualTo(10);
 
+        // Objects that were evicted on-heap are promoted back from the off-heap tier.
+        for (final Object oid : oids) {
+            assertThat(secondLevelCache.containsOid(oid)).isTrue();
+            final CachedPC<?> pc = secondLevelCache.get(oid);
+            assertThat(pc).isNotNull();
+            assertThat(pc.getObjectClass()).isEqualTo(Person.class);
+        }
+        assertThat(secondLevelCache.getOffHeapTier().getHitCount()).isGreaterThanOrEqualTo(5);
+
+        secondLevelCache.getCaffeineCache().cleanUp();
+        final Object demotedOid = oids.stream()
+                .filter(oid -> secondLevelCache.getOffHeapTier().contains(oid))
+                .findAny()
+                .orElseThrow();
+        secondLevelCache.evict(demotedOid);
+        assertThat(secondLevelCache.get(demotedOid)).isNull();
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final Person person = (Person) pm.getObjectById(oids.get(0));
+            assertThat(person.getName()).isEqualTo("name-0");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"after-write", "variable"})
+    void testOffHeapTierExpiry(final String expiryMode) {
+        // Events expire after 1s, either globally, or via metadata extension.
+        pmf = createPmf(Map.ofEntries(
+                entry(PROPERTY_CACHE_L2_MAXSIZE, "5"),
+                entry(PROPERTY_CACHE_L2_EXPIRY_MILLIS, "1000"),
+                entry(PROPERTY_CACHE_L2_CAFFEINE_EXPIRY_MODE, expiryMode),
+                entry(PROPERTY_CACHE_L2_CAFFEINE_OFF_HEAP_MAXIMUM_SIZE, String.valueOf(1024 * 1024))));
+
+        final var oids = new ArrayList<>();
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var event = new Event();
+                event.setName("name-" + i);
+                pm.makePersistent(event);
+                oids.add(pm.getObjectId(event));
+            }
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        secondLevelCache.getCaffeineCache().cleanUp();
+        assertThat(secondLevelCache.getOffHeapTier().size()).isEqualTo(5);
+
+        // Reading demoted objects must not extend their lifetime beyond the one they had on-heap.
+        for (final Object oid : oids) {
+            assertThat(secondLevelCache.get(oid)).isNotNull();
+        }
+
+        await("Off-heap expiry")
+                .atMost(Duration.ofSeconds(3))
+                .untilAsserted(() -> assertThat(oids).noneMatch(secondLevelCache::containsOid));
+        assertThat(secondLevelCache.getOffHeapTier().size()).isZero();
+    }
+
+    @Test
+    void testBinaryCodec() throws Exception {
+        pmf = createPmf(Collections.emptyMap());
+
+        final Object oid;
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final var person = new Person();
+            person.setName("föö");
+            pm.makePersistent(person);
+            oid = pm.getObjectId(person);
+        }
+
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        final CachedPC<?> pc = secondLevelCache.get(oid);
+        assertThat(pc).isNotNull();
+
+        final var nucleusCtx = ((JDOPersistenceManagerFactory) pmf).getNucleusContext();
+        final var codec = new BinaryCachedPCCodec(nucleusCtx);
+        final byte[] bytes = codec.encode(pc);
+        assertThat(bytes).hasSizeLessThan(new JavaSerializationCodec(nucleusCtx.getClassLoaderResolver(null)).encode(pc).length);
+
+        final CachedPC<?> decodedPC = codec.decode(bytes);
+        assertThat(decodedPC.getObjectClass()).isEqualTo(Person.class);
+        assertThat(decodedPC.getId()).isEqualTo(pc.getId());
+        assertThat(decodedPC.getVersion()).isEqualTo(pc.getVersion());
+        assertThat(decodedPC.getLoadedFields()).isEqualTo(pc.getLoadedFields());
+        assertThat(decodedPC.getLoadedFieldNumbers()).containsExactlyInAnyOrder(pc.getLoadedFieldNumbers());
+        for (final int fieldNumber : pc.getLoadedFieldNumbers()) {
+            assertThat(decodedPC.getFieldValue(fieldNumber)).isEqualTo(pc.getFieldValue(fieldNumber));
+        }
+    }
+
+    @Test
+    void testSnapshot() {
+        final Path snapshotFile = tempDir.resolve("cache.snapshot");
+        final Map<String, String> configOverrides = Map.of(PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_FILE, snapshotFile.toString());
+        pmf = createPmf(configOverrides);
+
+        final var oids = new ArrayList<>();
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+                oids.add(pm.getObjectId(person));
+            }
+        }
+
+        var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getSnapshot()).isNull();
+        final CachedPC<?> originalPC = secondLevelCache.get(oids.get(0));
+        assertThat(originalPC).isNotNull();
+
+        pmf.close();
+        pmf = null;
+        assertThat(snapshotFile).exists();
+
+        pmf = createPmf(configOverrides);
+        secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(snapshotFile).doesNotExist();
+        assertThat(secondLevelCache.getSnapshot()).isNotNull();
+        assertThat(secondLevelCache.getSnapshot().size()).isEqualTo(10);
+        assertThat(secondLevelCache.getCaffeineCache().estimatedSize()).isZero();
+        assertThat(secondLevelCache.getSize()).isEqualTo(10);
+
+        // Objects are restored into the cache when they're first accessed.
+        final CachedPC<?> restoredPC = secondLevelCache.get(oids.get(0));
+        assertThat(restoredPC).isNotNull();
+        assertThat(restoredPC.getObjectClass()).isEqualTo(Person.class);
+        for (final int fieldNumber : originalPC.getLoadedFieldNumbers()) {
+            assertThat(restoredPC.getFieldValue(fieldNumber)).isEqualTo(originalPC.getFieldValue(fieldNumber));
+        }
+        assertThat(secondLevelCache.getSnapshot().size()).isEqualTo(9);
+        assertThat(secondLevelCache.getCaffeineCache().estimatedSize()).isEqualTo(1);
+
+        secondLevelCache.evict(oids.get(1));
+        assertThat(secondLevelCache.containsOid(oids.get(1))).isFalse();
+        assertThat(secondLevelCache.get(oids.get(1))).isNull();
+
         secondLevelCache.evictAll(Person.class, false);
-        assertThat(secondLevelCache.getSize()).isEqualTo(0);
+        assertThat(secondLevelCache.getSnapshot().size()).isZero();
+    }
+
+    @Test
+    void testSnapshotMaxAge() {
+        final Path snapshotFile = tempDir.resolve("cache.snapshot");
+        pmf = createPmf(Map.of(PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_FILE, snapshotFile.toString()));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final var person = new Person();
+            person.setName("foo");
+            pm.makePersistent(person);
+        }
+
+        pmf.close();
+        pmf = null;
+        assertThat(snapshotFile).exists();
+
+        // The snapshot was written before the factory was closed.
+        final long closedAtMillis = System.currentTimeMillis();
+        await("Snapshot expiry")
+                .atMost(Duration.ofSeconds(5))
+                .until(() -> System.currentTimeMillis() - closedAtMillis > 10);
+
+        pmf = createPmf(Map.ofEntries(
+                entry(PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_FILE, snapshotFile.toString()),
+                entry(PROPERTY_CACHE_L2_CAFFEINE_SNAPSHOT_MAX_AGE_MILLIS, "10")));
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getSnapshot()).isNull();
+        assertThat(secondLevelCache.getSize()).isZero();
+        assertThat(snapshotFile).doesNotExist();
+    }
+
+    @Test
+    void testJournal() throws Exception {
+        final Path journalDirectory = tempDir.resolve("journal");
+        final Map<String, String> configOverrides = Map.of(PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_DIRECTORY, journalDirectory.toString());
+        pmf = createPmf(configOverrides);
+
+        final var oids = new ArrayList<>();
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+                oids.add(pm.getObjectId(person));
+            }
+        }
+
+        var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getJournal()).isNotNull();
+        final CachedPC<?> originalPC = secondLevelCache.get(oids.get(0));
+        assertThat(originalPC).isNotNull();
+        secondLevelCache.evict(oids.get(1));
+
+        pmf.close();
+        pmf = null;
+        try (final Stream<Path> segments = Files.list(journalDirectory)) {
+            assertThat(segments).isNotEmpty();
+        }
+
+        // Journaled objects are replayed into the cache on startup.
+        pmf = createPmf(configOverrides);
+        secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getCaffeineCache().estimatedSize()).isEqualTo(9);
+        assertThat(secondLevelCache.containsOid(oids.get(1))).isFalse();
+
+        final CachedPC<?> replayedPC = secondLevelCache.get(oids.get(0));
+        assertThat(replayedPC).isNotNull();
+        assertThat(replayedPC.getObjectClass()).isEqualTo(Person.class);
+        for (final int fieldNumber : originalPC.getLoadedFieldNumbers()) {
+            assertThat(replayedPC.getFieldValue(fieldNumber)).isEqualTo(originalPC.getFieldValue(fieldNumber));
+        }
+
+        secondLevelCache.evictAll(Person.class, false);
+
+        pmf.close();
+        pmf = null;
+
+        pmf = createPmf(configOverrides);
+        secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getSize()).isZero();
+    }
+
+    @Test
+    void testJournalMaxReplayAge() {
+        final Path journalDirectory = tempDir.resolve("journal");
+        pmf = createPmf(Map.of(PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_DIRECTORY, journalDirectory.toString()));
+
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            final var person = new Person();
+            person.setName("foo");
+            pm.makePersistent(person);
+        }
+
+        pmf.close();
+        pmf = null;
+
+        // All records were journaled before the factory was closed.
+        final long closedAtMillis = System.currentTimeMillis();
+        await("Journal record expiry")
+                .atMost(Duration.ofSeconds(5))
+                .until(() -> System.currentTimeMillis() - closedAtMillis > 10);
+
+        pmf = createPmf(Map.ofEntries(
+                entry(PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_DIRECTORY, journalDirectory.toString()),
+                entry(PROPERTY_CACHE_L2_CAFFEINE_JOURNAL_MAX_REPLAY_AGE_MILLIS, "10")));
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getSize()).isZero();
+    }
+
+    @Test
+    void testHotSetPrefetch() throws Exception {
+        final Path hotSetFile = tempDir.resolve("hot.set");
+        pmf = createPmf(Map.of(PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_FILE, hotSetFile.toString()));
+
+        final var oids = new ArrayList<>();
+        try (final PersistenceManager pm = pmf.getPersistenceManager()) {
+            for (int i = 0; i < 10; i++) {
+                final var person = new Person();
+                person.setName("name-" + i);
+                pm.makePersistent(person);
+                oids.add(pm.getObjectId(person));
+            }
+        }
+
+        pmf.close();
+        pmf = null;
+        assertThat(hotSetFile).exists();
+
+        // The schema is not recreated, so that the hot objects can be loaded from the datastore again.
+        pmf = createPmf(Map.ofEntries(
+                entry(PROPERTY_CACHE_L2_CAFFEINE_HOT_SET_FILE, hotSetFile.toString()),
+                entry(PROPERTY_SCHEMA_GENERATE_DATABASE_MODE, "none")));
+        final var secondLevelCache = (CaffeineLevel2Cache) ((JDODataStoreCache) pmf.getDataStoreCache()).getLevel2Cache();
+        assertThat(secondLevelCache.getHotSet().getPrefetch().get(30, TimeUnit.SECONDS)).isEqualTo(10);
+        assertThat(secondLevelCache.getSize()).isEqualTo(10);
+
+        for (final Object oid : oids) {
+            final CachedPC<?> pc = secondLevelCache.get(oid);
+            assertThat(pc).isNotNull();
+            assertThat(pc.getObjectClass()).isEqualTo(Person.class);
+        }
     }
 
     @Test
@@ -225,4 +1142,18 @@ class CaffeineCacheTest {
         return JDOHelper.getPersistenceManagerFactory(config, "test");
     }
 
+    public static class RecordingRemovalListener implements RemovalListener<Object, Object> {
+
+        private static final Queue<RemovalCause> REMOVALS = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void onRemoval(final Object key, final Object value, final RemovalCause cause) {
+            // Listeners are isolated from failures, so record only removals of values of the expected type.
+            if (value instanceof CachedPC<?>) {
+                REMOVALS.add(cause);
+            }
+        }
+
+    }
+
 }